@@ -0,0 +1,130 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import net.aehx.twitch.ml7bot.nightbot.UserLevel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link CommandListDiff} with the previous diff loop of <code>CommandsUpdater.runIntrnl</code> (key set
+ * iteration with repeated lookups and field by field comparison), on a poll where a few commands were edited, added
+ * and deleted and a tenth of them only changed their count.
+ *
+ * <p>Run with <code>./gradlew jmh</code>, add <code>-prof gc</code> in the jmh config for allocation rates.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandListDiffBenchmark {
+
+    @Param({"50", "500", "5000"})
+    public int commandCount;
+
+    private Map<String, NightbotCommand> oldCommands;
+    private Map<String, NightbotCommand> newCommands;
+    private CommandSnapshot oldSnapshot;
+    private CommandSnapshot newSnapshot;
+
+    @Setup
+    public void setup() {
+        oldCommands = new HashMap<>();
+        newCommands = new HashMap<>();
+
+        for (int i = 0; i < commandCount; ++i) {
+            NightbotCommand oldCmd = createCommand(i);
+            oldCommands.put(oldCmd.name, oldCmd);
+
+            // Two deleted commands
+            if (i < 2)
+                continue;
+
+            NightbotCommand newCmd = createCommand(i);
+            if (i < 4) {
+                newCmd.message += " edited";
+                newCmd.updatedAt += 1000;
+            } else if (i % 10 == 0) {
+                newCmd.count += 1;
+                newCmd.updatedAt += 1000;
+            }
+            newCommands.put(newCmd.name, newCmd);
+        }
+
+        // Two new commands
+        for (int i = commandCount; i < commandCount + 2; ++i) {
+            NightbotCommand newCmd = createCommand(i);
+            newCommands.put(newCmd.name, newCmd);
+        }
+
+        oldSnapshot = new CommandSnapshot(oldCommands);
+        newSnapshot = new CommandSnapshot(newCommands);
+    }
+
+    @Benchmark
+    public int previousLoop() {
+        List<NightbotCommand[]> changes = new ArrayList<>();
+
+        for (String k : newCommands.keySet()) {
+            if (!oldCommands.containsKey(k))
+                changes.add(new NightbotCommand[]{null, newCommands.get(k)});
+        }
+
+        for (String k : oldCommands.keySet()) {
+            if (!newCommands.containsKey(k)) {
+                changes.add(new NightbotCommand[]{oldCommands.get(k), null});
+            } else {
+                final NightbotCommand oldCmd = oldCommands.get(k);
+                final NightbotCommand newCmd = newCommands.get(k);
+
+                if (newCmd.updatedAt <= oldCmd.updatedAt)
+                    continue;
+
+                if (newCmd.message.equals(oldCmd.message)
+                        && newCmd.alias.equals(oldCmd.alias)
+                        && newCmd.userLevel == oldCmd.userLevel
+                        && newCmd.coolDown == oldCmd.coolDown) {
+                    continue;
+                }
+
+                changes.add(new NightbotCommand[]{oldCmd, newCmd});
+            }
+        }
+
+        return changes.size();
+    }
+
+    @Benchmark
+    public int fingerprint() {
+        return CommandListDiff.diff(oldSnapshot, newSnapshot).size();
+    }
+
+    /**
+     * Includes building the id index of the fetched list, which the changelog does once per changed list
+     */
+    @Benchmark
+    public int fingerprintWithSnapshot() {
+        return CommandListDiff.diff(oldSnapshot, new CommandSnapshot(newCommands)).size();
+    }
+
+    private static NightbotCommand createCommand(int i) {
+        NightbotCommand cmd = new NightbotCommand();
+        cmd.id = String.format("5f0c1a2b3c4d5e6f%08d", i);
+        cmd.createdAt = 1643823202000L;
+        cmd.updatedAt = 1643882400355L;
+        cmd.name = "!command" + i;
+        cmd.message = "@$(touser) -> Check out https://example.com/" + i + " and " +
+                "$(urlfetch json https://api.example.com/v1/some/long/path?channel=$(channel)&index=" + i + ")";
+        cmd.userLevel = i % 10 == 0 ? UserLevel.MODERATOR : UserLevel.EVERYONE;
+        cmd.alias = i % 20 == 0 ? "!alias" + i : "";
+        cmd.count = i * 7;
+        cmd.coolDown = 30;
+        return cmd;
+    }
+}
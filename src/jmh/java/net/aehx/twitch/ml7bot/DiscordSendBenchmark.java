@@ -0,0 +1,119 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Announcement throughput against a simulated discord api with a fixed latency per message, before and after
+ * {@link DiscordMessageSender}.
+ *
+ * <ul>
+ *     <li><b>blocking:</b> every update blocks its scheduler worker until each announcement was sent, like the
+ *     previous <code>createMessage(msg).block()</code></li>
+ *     <li><b>sender:</b> updates submit their announcements and return, the sender sends the batches of the
+ *     channels concurrently</li>
+ * </ul>
+ *
+ * <p>
+ *     The time is until every message was sent, the worker time is how long the updates kept the scheduler workers
+ *     busy. Run with <code>./gradlew jmhJar</code> and
+ *     <code>java -cp build/libs/ml7bot-1.0-jmh.jar net.aehx.twitch.ml7bot.DiscordSendBenchmark
+ *     [channels] [messages per channel] [latency millis]</code>
+ * </p>
+ */
+public class DiscordSendBenchmark {
+
+    /** Default of commandchangelog.scheduler.threads */
+    private static final int WORKER_THREADS = 1;
+
+    private static final int CONCURRENCY = 4;
+
+    public static void main(String[] args) throws Exception {
+        final int channels = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        final int messagesPerChannel = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+        final Function<String, Mono<?>> discord = msg -> Mono.delay(Duration.ofMillis(latencyMillis));
+        final int messages = channels * messagesPerChannel;
+
+        System.out.printf("%d channels x %d announcements, %d ms per message%n",
+                channels, messagesPerChannel, latencyMillis);
+
+        final long[] blocking = runBlocking(discord, channels, messagesPerChannel);
+        print("blocking", messages, blocking);
+
+        final long[] sender = runSender(discord, channels, messagesPerChannel);
+        print("sender", messages, sender);
+    }
+
+    /**
+     * @return total and worker nanos
+     */
+    private static long[] runBlocking(Function<String, Mono<?>> discord, int channels, int messagesPerChannel)
+            throws InterruptedException {
+        final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+        final long[] workerNanos = new long[1];
+
+        final long start = System.nanoTime();
+        for (int channel = 0; channel < channels; ++channel) {
+            workers.execute(() -> {
+                final long updateStart = System.nanoTime();
+                for (int i = 0; i < messagesPerChannel; ++i)
+                    discord.apply("announcement " + i).block();
+
+                synchronized (workerNanos) {
+                    workerNanos[0] += System.nanoTime() - updateStart;
+                }
+            });
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        return new long[] {System.nanoTime() - start, workerNanos[0]};
+    }
+
+    /**
+     * @return total and worker nanos
+     */
+    private static long[] runSender(Function<String, Mono<?>> discord, int channels, int messagesPerChannel)
+            throws InterruptedException {
+        final DiscordMessageSender sender = new DiscordMessageSender(CONCURRENCY, Duration.ofSeconds(10), 0,
+                new MetricsService("benchmark", false, null, 0));
+        final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+        final long[] workerNanos = new long[1];
+
+        final long start = System.nanoTime();
+        for (int channel = 0; channel < channels; ++channel) {
+            workers.execute(() -> {
+                final long updateStart = System.nanoTime();
+                final List<Mono<Void>> batch = new ArrayList<>(messagesPerChannel);
+                for (int i = 0; i < messagesPerChannel; ++i)
+                    batch.add(sender.send(discord, "announcement " + i));
+                sender.submit(batch);
+
+                synchronized (workerNanos) {
+                    workerNanos[0] += System.nanoTime() - updateStart;
+                }
+            });
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        sender.stop(Duration.ofHours(1));
+        return new long[] {System.nanoTime() - start, workerNanos[0]};
+    }
+
+    private static void print(String name, int messages, long[] nanos) {
+        System.out.printf("%-8s %,8.0f messages/s, %,6d ms total, %,6d ms worker time%n", name + ":",
+                messages / (nanos[0] / 1e9), TimeUnit.NANOSECONDS.toMillis(nanos[0]),
+                TimeUnit.NANOSECONDS.toMillis(nanos[1]));
+    }
+}
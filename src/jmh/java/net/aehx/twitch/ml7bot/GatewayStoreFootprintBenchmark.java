@@ -0,0 +1,267 @@
+package net.aehx.twitch.ml7bot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import discord4j.common.JacksonResources;
+import discord4j.common.store.Store;
+import discord4j.common.store.action.gateway.GatewayActions;
+import discord4j.common.store.api.StoreAction;
+import discord4j.discordjson.json.gateway.GuildCreate;
+import discord4j.discordjson.json.gateway.MessageCreate;
+import discord4j.discordjson.json.gateway.MessageReactionAdd;
+import discord4j.gateway.intent.Intent;
+import discord4j.gateway.intent.IntentSet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Retained heap of the Discord4J entity store for a synthetic large guild, with the {@link DiscordGatewayProfile}s.
+ *
+ * <p>
+ *     The store of each profile is fed the gateway events its intents subscribe to: the guild with its channels,
+ *     roles and emojis, voice states of users in voice channels, and chat messages from many members, each with a
+ *     reaction. JMH has no retained size measure, so this is a plain program measuring the used heap after full
+ *     GCs. Run with <code>./gradlew jmhJar</code> and
+ *     <code>java -cp build/libs/ml7bot-1.0-jmh.jar net.aehx.twitch.ml7bot.GatewayStoreFootprintBenchmark
+ *     [messages] [members in voice] [cached messages]</code>
+ * </p>
+ */
+public class GatewayStoreFootprintBenchmark {
+
+    private static final int CHANNELS = 200;
+    private static final int ROLES = 250;
+    private static final int EMOJIS = 200;
+    private static final int AUTHORS = 20_000;
+
+    private static final long GUILD_ID = 100_000_000_000_000_000L;
+    private static final long CHANNEL_IDS = GUILD_ID + 1_000_000;
+    private static final long ROLE_IDS = GUILD_ID + 2_000_000;
+    private static final long EMOJI_IDS = GUILD_ID + 3_000_000;
+    private static final long USER_IDS = GUILD_ID + 10_000_000;
+    private static final long MESSAGE_IDS = GUILD_ID + 100_000_000;
+
+    private static final String TIMESTAMP = "2022-03-01T12:00:00.000000+00:00";
+
+    private static final ObjectMapper MAPPER = JacksonResources.create().getObjectMapper();
+
+    /** Keeps the measured store reachable */
+    private static Store retained;
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        final int voiceMembers = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        final int cachedMessages = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        // Warm up parsing and measurement
+        for (DiscordGatewayProfile profile : DiscordGatewayProfile.values())
+            fill(profile, Math.min(messages, 1000), Math.min(voiceMembers, 100), cachedMessages);
+
+        System.out.printf("1 guild, %d channels, %d roles, %d emojis, %d members in voice, %d messages from %d " +
+                "members%n", CHANNELS, ROLES, EMOJIS, voiceMembers, messages, AUTHORS);
+
+        for (DiscordGatewayProfile profile : DiscordGatewayProfile.values()) {
+            final long baseline = usedHeap();
+            retained = fill(profile, messages, voiceMembers, cachedMessages);
+            final long bytes = usedHeap() - baseline;
+            System.out.printf("%-8s %,14d bytes retained by the store%n", profile.name().toLowerCase() + ":", bytes);
+            retained = null;
+        }
+    }
+
+    private static Store fill(DiscordGatewayProfile profile, int messages, int voiceMembers, int cachedMessages)
+            throws Exception {
+        final Store store = profile.createStore(cachedMessages);
+        final IntentSet intents = profile.getIntents();
+
+        // Without GUILD_VOICE_STATES, discord leaves voice states and their members out of the guild
+        final int guildVoiceMembers = intents.contains(Intent.GUILD_VOICE_STATES) ? voiceMembers : 0;
+        execute(store, GatewayActions.guildCreate(0, MAPPER.readValue(
+                createGuild(guildVoiceMembers).toString(), GuildCreate.class)));
+
+        final boolean reactions = intents.contains(Intent.GUILD_MESSAGE_REACTIONS);
+        for (int i = 0; i < messages; ++i) {
+            execute(store, GatewayActions.messageCreate(MAPPER.readValue(
+                    createMessage(i).toString(), MessageCreate.class)));
+
+            if (reactions) {
+                execute(store, GatewayActions.messageReactionAdd(MAPPER.readValue(
+                        createReaction(i).toString(), MessageReactionAdd.class)));
+            }
+        }
+        return store;
+    }
+
+    private static void execute(Store store, StoreAction<?> action) {
+        Mono.from(store.execute(action)).block();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+
+    // ---- Synthetic gateway payloads ----
+
+    private static JSONObject createGuild(int voiceMembers) {
+        final JSONArray channels = new JSONArray();
+        for (int i = 0; i < CHANNELS; ++i) {
+            channels.put(new JSONObject()
+                    .put("id", String.valueOf(CHANNEL_IDS + i))
+                    .put("type", i % 10 == 0 ? 2 : 0)
+                    .put("guild_id", String.valueOf(GUILD_ID))
+                    .put("name", "channel-" + i)
+                    .put("position", i)
+                    .put("permission_overwrites", new JSONArray())
+                    .put("topic", "Topic of channel " + i)
+                    .put("nsfw", false)
+                    .put("last_message_id", JSONObject.NULL)
+                    .put("rate_limit_per_user", 0)
+                    .put("parent_id", JSONObject.NULL));
+        }
+
+        final JSONArray roles = new JSONArray();
+        for (int i = 0; i < ROLES; ++i) {
+            roles.put(new JSONObject()
+                    .put("id", String.valueOf(i == 0 ? GUILD_ID : ROLE_IDS + i))
+                    .put("name", i == 0 ? "@everyone" : "role-" + i)
+                    .put("color", 0)
+                    .put("hoist", false)
+                    .put("position", i)
+                    .put("permissions", "104324673")
+                    .put("managed", false)
+                    .put("mentionable", false));
+        }
+
+        final JSONArray emojis = new JSONArray();
+        for (int i = 0; i < EMOJIS; ++i) {
+            emojis.put(new JSONObject()
+                    .put("id", String.valueOf(EMOJI_IDS + i))
+                    .put("name", "emoji" + i)
+                    .put("roles", new JSONArray())
+                    .put("require_colons", true)
+                    .put("managed", false)
+                    .put("animated", false)
+                    .put("available", true));
+        }
+
+        final JSONArray voiceStates = new JSONArray();
+        final JSONArray members = new JSONArray();
+        for (int i = 0; i < voiceMembers; ++i) {
+            final JSONObject member = createMember(i).put("user", createUser(i));
+            members.put(member);
+            voiceStates.put(new JSONObject()
+                    .put("guild_id", String.valueOf(GUILD_ID))
+                    .put("channel_id", String.valueOf(CHANNEL_IDS + (i % (CHANNELS / 10)) * 10))
+                    .put("user_id", String.valueOf(USER_IDS + i))
+                    .put("member", member)
+                    .put("session_id", "session" + i)
+                    .put("deaf", false)
+                    .put("mute", false)
+                    .put("self_deaf", false)
+                    .put("self_mute", i % 2 == 0)
+                    .put("self_video", false)
+                    .put("suppress", false)
+                    .put("request_to_speak_timestamp", JSONObject.NULL));
+        }
+
+        return new JSONObject()
+                .put("id", String.valueOf(GUILD_ID))
+                .put("name", "Large Guild")
+                .put("icon", JSONObject.NULL)
+                .put("splash", JSONObject.NULL)
+                .put("discovery_splash", JSONObject.NULL)
+                .put("owner_id", String.valueOf(USER_IDS))
+                .put("afk_channel_id", JSONObject.NULL)
+                .put("afk_timeout", 300)
+                .put("verification_level", 1)
+                .put("default_message_notifications", 1)
+                .put("explicit_content_filter", 0)
+                .put("roles", roles)
+                .put("emojis", emojis)
+                .put("features", new JSONArray())
+                .put("mfa_level", 0)
+                .put("application_id", JSONObject.NULL)
+                .put("system_channel_id", JSONObject.NULL)
+                .put("system_channel_flags", 0)
+                .put("rules_channel_id", JSONObject.NULL)
+                .put("vanity_url_code", JSONObject.NULL)
+                .put("description", JSONObject.NULL)
+                .put("banner", JSONObject.NULL)
+                .put("premium_tier", 0)
+                .put("preferred_locale", "en-US")
+                .put("public_updates_channel_id", JSONObject.NULL)
+                .put("nsfw_level", 0)
+                .put("premium_progress_bar_enabled", false)
+                .put("joined_at", TIMESTAMP)
+                .put("large", true)
+                .put("unavailable", false)
+                .put("member_count", 250_000)
+                .put("voice_states", voiceStates)
+                .put("members", members)
+                .put("channels", channels)
+                .put("threads", new JSONArray())
+                .put("presences", new JSONArray())
+                .put("stage_instances", new JSONArray())
+                .put("stickers", new JSONArray())
+                .put("guild_scheduled_events", new JSONArray());
+    }
+
+    private static JSONObject createMessage(int i) {
+        final int author = i % AUTHORS;
+        return new JSONObject()
+                .put("id", String.valueOf(MESSAGE_IDS + i))
+                .put("channel_id", String.valueOf(CHANNEL_IDS + 1 + i % (CHANNELS - 1)))
+                .put("guild_id", String.valueOf(GUILD_ID))
+                .put("author", createUser(author))
+                .put("member", createMember(author))
+                .put("content", "Chat message " + i + " of a busy guild, long enough to look like real chat")
+                .put("timestamp", TIMESTAMP)
+                .put("edited_timestamp", JSONObject.NULL)
+                .put("tts", false)
+                .put("mention_everyone", false)
+                .put("mentions", new JSONArray())
+                .put("mention_roles", new JSONArray())
+                .put("attachments", new JSONArray())
+                .put("embeds", new JSONArray())
+                .put("pinned", false)
+                .put("type", 0);
+    }
+
+    private static JSONObject createReaction(int i) {
+        final int user = (i + 1) % AUTHORS;
+        return new JSONObject()
+                .put("user_id", String.valueOf(USER_IDS + user))
+                .put("channel_id", String.valueOf(CHANNEL_IDS + 1 + i % (CHANNELS - 1)))
+                .put("message_id", String.valueOf(MESSAGE_IDS + i))
+                .put("guild_id", String.valueOf(GUILD_ID))
+                .put("member", createMember(user).put("user", createUser(user)))
+                .put("emoji", new JSONObject()
+                        .put("id", String.valueOf(EMOJI_IDS + i % EMOJIS))
+                        .put("name", "emoji" + i % EMOJIS));
+    }
+
+    private static JSONObject createUser(int i) {
+        return new JSONObject()
+                .put("id", String.valueOf(USER_IDS + i))
+                .put("username", "user" + i)
+                .put("discriminator", String.format("%04d", i % 10000))
+                .put("avatar", JSONObject.NULL);
+    }
+
+    private static JSONObject createMember(int i) {
+        return new JSONObject()
+                .put("nick", i % 5 == 0 ? "nick" + i : JSONObject.NULL)
+                .put("roles", new JSONArray().put(String.valueOf(ROLE_IDS + 1 + i % (ROLES - 1))))
+                .put("joined_at", TIMESTAMP)
+                .put("deaf", false)
+                .put("mute", false);
+    }
+}
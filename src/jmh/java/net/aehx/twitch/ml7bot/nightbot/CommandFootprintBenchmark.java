@@ -0,0 +1,172 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retained heap per command of the command lists a multi-channel bot keeps between polls, before and after the
+ * compact representation.
+ *
+ * <ul>
+ *     <li><b>before:</b> every poll decoded into a new object graph, <code>userLevel</code> and empty aliases as
+ *     separate strings per command, like the previous decoder</li>
+ *     <li><b>after:</b> {@link UserLevel} enum, shared empty strings, and unchanged commands and messages reused
+ *     from the previous poll with {@link NightbotCommand#reuseUnchanged}, like {@link CachingNightbotAPI}</li>
+ * </ul>
+ *
+ * <p>
+ *     JMH has no retained size measure, so this is a plain program measuring the used heap after full GCs. Run with
+ *     <code>./gradlew jmhJar</code> and
+ *     <code>java -cp build/libs/ml7bot-1.0-jmh.jar net.aehx.twitch.ml7bot.nightbot.CommandFootprintBenchmark
+ *     [channels] [commands per channel]</code>
+ * </p>
+ */
+public class CommandFootprintBenchmark {
+
+    private static final int POLLS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final int channels = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int commandCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        // Polls differ in the count of a tenth of the commands, like counter commands used in chat
+        final byte[][] bodies = new byte[POLLS][];
+        for (int poll = 0; poll < POLLS; ++poll)
+            bodies[poll] = createBody(commandCount, poll);
+
+        final long commands = (long) channels * commandCount;
+
+        // Warm up decoder and measurement
+        keepBefore(channels, bodies);
+        keepAfter(channels, bodies);
+
+        System.out.printf("%d channels x %d commands, %d polls%n", channels, commandCount, POLLS);
+
+        long baseline = usedHeap();
+        List<Map<String, LegacyCommand>> before = keepBefore(channels, bodies);
+        final long beforeBytes = usedHeap() - baseline;
+        System.out.printf("before: %,d bytes retained by %d lists, %d bytes/command%n",
+                beforeBytes, before.size(), beforeBytes / commands);
+        before = null;
+
+        baseline = usedHeap();
+        final List<Map<String, NightbotCommand>> after = keepAfter(channels, bodies);
+        final long afterBytes = usedHeap() - baseline;
+        System.out.printf("after:  %,d bytes retained by %d lists, %d bytes/command%n",
+                afterBytes, after.size(), afterBytes / commands);
+    }
+
+    /**
+     * @return latest list of every channel
+     */
+    private static List<Map<String, LegacyCommand>> keepBefore(int channels, byte[][] bodies) throws Exception {
+        final List<Map<String, LegacyCommand>> latest = new ArrayList<>(channels);
+        for (int channel = 0; channel < channels; ++channel) {
+            Map<String, LegacyCommand> commands = null;
+            for (byte[] body : bodies)
+                commands = LegacyCommand.copyOf(NightbotCommandsDecoder.decode(new ByteArrayInputStream(body)));
+            latest.add(commands);
+        }
+        return latest;
+    }
+
+    /**
+     * @return latest list of every channel
+     */
+    private static List<Map<String, NightbotCommand>> keepAfter(int channels, byte[][] bodies) throws Exception {
+        final List<Map<String, NightbotCommand>> latest = new ArrayList<>(channels);
+        for (int channel = 0; channel < channels; ++channel) {
+            Map<String, NightbotCommand> commands = null;
+            for (byte[] body : bodies) {
+                commands = NightbotCommand.reuseUnchanged(
+                        NightbotCommandsDecoder.decode(new ByteArrayInputStream(body)), commands);
+            }
+            latest.add(commands);
+        }
+        return latest;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static byte[] createBody(int commandCount, int poll) {
+        JSONArray commandsArr = new JSONArray();
+        for (int i = 0; i < commandCount; ++i) {
+            final boolean counter = i % 10 == 0;
+
+            JSONObject commandObj = new JSONObject();
+            commandObj.put("_id", String.format("5f0c1a2b3c4d5e6f%08d", i));
+            commandObj.put("createdAt", "2022-02-02T17:33:22.000Z");
+            commandObj.put("updatedAt", counter ? "2022-02-03T10:00:0" + poll + ".355Z" : "2022-02-03T10:00:00.355Z");
+            commandObj.put("name", "!command" + i);
+            commandObj.put("message", "@$(touser) -> Check out https://example.com/" + i + " and " +
+                    "$(urlfetch json https://api.example.com/v1/some/long/path?channel=$(channel)&index=" + i + ")");
+            commandObj.put("userLevel", i % 10 == 1 ? "moderator" : "everyone");
+            commandObj.put("alias", i % 20 == 0 ? "!alias" + i : "");
+            commandObj.put("count", counter ? i * 7 + poll : i * 7);
+            commandObj.put("coolDown", 30);
+            commandsArr.put(commandObj);
+        }
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("_total", commandCount);
+        responseObj.put("commands", commandsArr);
+        return responseObj.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The previous {@link NightbotCommand}: same fields, but user level as string
+     */
+    private static class LegacyCommand {
+        String id;
+        long createdAt;
+        long updatedAt;
+        String name;
+        String alias;
+        String message;
+        String userLevel;
+        int count;
+        int coolDown;
+        volatile long contentFingerprint;
+
+        /**
+         * Copies every string the way the previous decoder created them
+         */
+        static Map<String, LegacyCommand> copyOf(Map<String, NightbotCommand> commands) {
+            final Map<String, LegacyCommand> copies = new HashMap<>();
+            for (NightbotCommand cmd : commands.values()) {
+                LegacyCommand copy = new LegacyCommand();
+                copy.id = copy(cmd.id);
+                copy.createdAt = cmd.createdAt;
+                copy.updatedAt = cmd.updatedAt;
+                copy.name = copy(cmd.name);
+                copy.alias = copy(cmd.alias);
+                copy.message = copy(cmd.message);
+                copy.userLevel = copy(cmd.userLevel.getApiName());
+                copy.count = cmd.count;
+                copy.coolDown = cmd.coolDown;
+                copies.put(copy.name, copy);
+            }
+            return copies;
+        }
+
+        private static String copy(String str) {
+            return new StringBuilder(str).toString();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming {@link NightbotCommandsDecoder} with the previous org.json path (body as string, full
+ * object tree, then copied into {@link NightbotCommand}s).
+ *
+ * <p>Run with <code>./gradlew jmh</code>, add <code>-prof gc</code> in the jmh config for allocation rates.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NightbotCommandsDecoderBenchmark {
+
+    @Param({"50", "500", "5000"})
+    public int commandCount;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        JSONArray commandsArr = new JSONArray();
+        for (int i = 0; i < commandCount; ++i) {
+            JSONObject commandObj = new JSONObject();
+            commandObj.put("_id", String.format("5f0c1a2b3c4d5e6f%08d", i));
+            commandObj.put("createdAt", "2022-02-02T17:33:22.000Z");
+            commandObj.put("updatedAt", "2022-02-03T10:00:00.355Z");
+            commandObj.put("name", "!command" + i);
+            commandObj.put("message", "@$(touser) -> Check out https://example.com/" + i + " and " +
+                    "$(urlfetch json https://api.example.com/v1/some/long/path?channel=$(channel)&index=" + i + ")");
+            commandObj.put("userLevel", i % 10 == 0 ? "moderator" : "everyone");
+            commandObj.put("alias", i % 20 == 0 ? "!alias" + i : "");
+            commandObj.put("count", i * 7);
+            commandObj.put("coolDown", 30);
+            commandObj.put("_channel", "5a0b1c2d3e4f5a6b7c8d9e0f");
+            commandsArr.put(commandObj);
+        }
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("_total", commandCount);
+        responseObj.put("status", 200);
+        responseObj.put("commands", commandsArr);
+
+        body = responseObj.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Map<String, NightbotCommand> orgJson() {
+        return NightbotAPI.parseChannelCommands(new JSONObject(new String(body, StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public Map<String, NightbotCommand> streaming() throws Exception {
+        return NightbotCommandsDecoder.decode(new ByteArrayInputStream(body));
+    }
+}
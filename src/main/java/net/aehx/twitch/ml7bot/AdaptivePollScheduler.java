@@ -0,0 +1,386 @@
+package net.aehx.twitch.ml7bot;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.aehx.twitch.ml7bot.config.Config;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.NightbotHttpException;
+import net.aehx.twitch.ml7bot.nightbot.NightbotRateLimit;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Decides when the command list of each channel is polled next. Shared by all channels of the process.
+ *
+ * <ul>
+ *     <li>Channels with recent edit activity are polled every <code>active</code> interval, channels without
+ *     activity for a long time only every <code>quiet</code> interval, all others at the configured update
+ *     interval.</li>
+ *     <li>After failed polls, a channel backs off exponentially with jitter, or as long as nightbot asked for
+ *     (<code>Retry-After</code> / rate limit reset on 429).</li>
+ *     <li>All channels share one request budget (a token bucket of requests per minute). When it or the rate limit
+ *     reported by nightbot is used up, polls are deferred until there is room again.</li>
+ *     <li>Chat edits trigger a sync once nightbot likely shows them. Bursts of edits are coalesced into one sync, but
+ *     it is never pushed back more than the max wait after the first edit. How long nightbot takes to show chat
+ *     edits is learned from the syncs: it shrinks while syncs find the edits at once, and grows towards the
+ *     observed delay when a quick re-poll was needed.</li>
+ * </ul>
+ */
+public class AdaptivePollScheduler {
+
+    /** Keep a few requests of the nightbot rate limit for startup and chat triggered syncs */
+    private static final int RATE_LIMIT_RESERVE = 2;
+
+    private static final double INTERVAL_JITTER = 0.1;
+
+    /** Shrink of the propagation delay estimate per chat edit found by the first sync */
+    private static final double PROPAGATION_DECREASE = 0.95;
+
+    /** Weight of a delay observed after a missed sync */
+    private static final double PROPAGATION_SAMPLE_WEIGHT = 0.25;
+
+    private final long activeIntervalMillis;
+    private final long normalIntervalMillis;
+    private final long quietIntervalMillis;
+    private final long activityWindowMillis;
+    private final long quietAfterMillis;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long chatSyncMinDelayMillis;
+    private final long chatSyncMaxDelayMillis;
+    private final long chatSyncMaxWaitMillis;
+
+    private final Supplier<NightbotRateLimit> rateLimitSource;
+    private final LongSupplier clock;
+    private final Random random;
+
+    // Shared request budget
+    private final Lock budgetLock;
+    private final double budgetCapacity;
+    private final double budgetRefillPerMilli;
+    private double budgetTokens;
+    private long budgetUpdatedAt;
+
+    // Learned delay until nightbot shows chat edits, shared as it does not depend on the channel
+    private final Lock propagationLock;
+    private double propagationEstimateMillis;
+
+    // Metrics
+    private final Counter activeDecisions;
+    private final Counter normalDecisions;
+    private final Counter quietDecisions;
+    private final Counter backoffDecisions;
+    private final Counter chatDecisions;
+    private final Counter repollDecisions;
+    private final Counter budgetDeferrals;
+    private final Counter rateLimitDeferrals;
+    private final DistributionSummary pollDelay;
+
+
+    /**
+     * @param rateLimitSource rate limit most recently reported by nightbot, may return <code>null</code>
+     */
+    public AdaptivePollScheduler(Config config, Supplier<NightbotRateLimit> rateLimitSource,
+                                 MetricsService metricsService) {
+        this(config, rateLimitSource, metricsService, System::currentTimeMillis, new Random());
+    }
+
+    @VisibleForTesting
+    AdaptivePollScheduler(Config config, Supplier<NightbotRateLimit> rateLimitSource, MetricsService metricsService,
+                          LongSupplier clock, Random random) {
+        this.rateLimitSource = rateLimitSource;
+        this.clock = clock;
+        this.random = random;
+
+        normalIntervalMillis = config.getCommandChangelogUpdateIntervalMillis();
+        activeIntervalMillis = Math.min(config.getCommandChangelogPollActiveIntervalMillis(), normalIntervalMillis);
+        quietIntervalMillis = Math.max(config.getCommandChangelogPollQuietIntervalMillis(), normalIntervalMillis);
+        activityWindowMillis = config.getCommandChangelogPollActivityWindowMillis();
+        quietAfterMillis = config.getCommandChangelogPollQuietAfterMillis();
+        minBackoffMillis = config.getCommandChangelogPollMinBackoffMillis();
+        maxBackoffMillis = config.getCommandChangelogPollMaxBackoffMillis();
+        chatSyncMinDelayMillis = config.getCommandChangelogChatSyncMinDelayMillis();
+        chatSyncMaxDelayMillis = Math.max(config.getCommandChangelogChatSyncMaxDelayMillis(), chatSyncMinDelayMillis);
+        chatSyncMaxWaitMillis = config.getCommandChangelogChatSyncMaxWaitMillis();
+
+        budgetLock = new ReentrantLock();
+        budgetCapacity = config.getNightbotRequestsPerMinute();
+        budgetRefillPerMilli = budgetCapacity / 60_000.0;
+        budgetTokens = budgetCapacity;
+        budgetUpdatedAt = clock.getAsLong();
+
+        propagationLock = new ReentrantLock();
+        propagationEstimateMillis = clamp(config.getCommandChangelogChatSyncInitialDelayMillis(),
+                chatSyncMinDelayMillis, chatSyncMaxDelayMillis);
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        activeDecisions = registry.counter("nightbot_poll_decisions", "decision", "active");
+        normalDecisions = registry.counter("nightbot_poll_decisions", "decision", "normal");
+        quietDecisions = registry.counter("nightbot_poll_decisions", "decision", "quiet");
+        backoffDecisions = registry.counter("nightbot_poll_decisions", "decision", "backoff");
+        chatDecisions = registry.counter("nightbot_poll_decisions", "decision", "chat");
+        repollDecisions = registry.counter("nightbot_poll_decisions", "decision", "repoll");
+        budgetDeferrals = registry.counter("nightbot_poll_deferrals", "reason", "budget");
+        rateLimitDeferrals = registry.counter("nightbot_poll_deferrals", "reason", "rate_limit");
+        pollDelay = DistributionSummary.builder("nightbot_poll_delay_millis")
+                .publishPercentiles(0.5, 0.95)
+                .register(registry);
+        registry.gauge("nightbot_rate_limit_remaining", this, s -> {
+            NightbotRateLimit rateLimit = s.rateLimitSource.get();
+            return rateLimit != null ? rateLimit.remaining : Double.NaN;
+        });
+        registry.gauge("nightbot_propagation_delay_millis", this, s -> s.getPropagationEstimateMillis());
+    }
+
+    public ChannelPollState createChannelState() {
+        return new ChannelPollState();
+    }
+
+    /**
+     * @return delay until the next regular poll of the channel
+     */
+    public long nextPollDelay(ChannelPollState state) {
+        final long now = clock.getAsLong();
+        final long delay;
+
+        try {
+            state.lock.lock();
+
+            if (state.consecutiveFailures > 0) {
+                delay = Math.max(0, state.backoffUntil - now);
+                backoffDecisions.increment();
+            } else {
+                final boolean hadActivity = state.lastActivityAt >= 0;
+                final long idle = now - (hadActivity ? state.lastActivityAt : state.createdAt);
+                final long interval;
+                if (hadActivity && idle <= activityWindowMillis) {
+                    interval = activeIntervalMillis;
+                    activeDecisions.increment();
+                } else if (idle >= quietAfterMillis) {
+                    interval = quietIntervalMillis;
+                    quietDecisions.increment();
+                } else {
+                    interval = normalIntervalMillis;
+                    normalDecisions.increment();
+                }
+
+                // Keep channels from drifting into the same slot
+                delay = Math.round(interval * (1 - INTERVAL_JITTER + 2 * INTERVAL_JITTER * nextRandom()));
+            }
+        } finally {
+            state.lock.unlock();
+        }
+
+        pollDelay.record(delay);
+        return delay;
+    }
+
+    /**
+     * @return delay of the sync triggered by a chat edit, replacing any sync scheduled before. Does not undercut a
+     *         running backoff.
+     */
+    public long chatTriggeredPollDelay(ChannelPollState state) {
+        final long now = clock.getAsLong();
+        final long expectedDelay = Math.round(getPropagationEstimateMillis());
+        long delay;
+
+        try {
+            state.lock.lock();
+            state.lastActivityAt = now;
+            if (state.pendingChatEditSince < 0)
+                state.pendingChatEditSince = now;
+
+            // Every edit of a burst pushes the sync back, but only up to the max wait after the first one
+            delay = Math.max(0, Math.min(expectedDelay, state.pendingChatEditSince + chatSyncMaxWaitMillis - now));
+            if (state.consecutiveFailures > 0)
+                delay = Math.max(delay, state.backoffUntil - now);
+        } finally {
+            state.lock.unlock();
+        }
+
+        chatDecisions.increment();
+        pollDelay.record(delay);
+        return delay;
+    }
+
+    /**
+     * @param oldestPendingEditAt time of the oldest chat edit the last sync did not find yet
+     * @return delay of a quick re-poll for the edit, or -1 if it is too old to still show up and the channel should
+     *         be polled regularly again
+     */
+    public long repollDelay(ChannelPollState state, long oldestPendingEditAt) {
+        final long now = clock.getAsLong();
+        if (now - oldestPendingEditAt > chatSyncMaxDelayMillis)
+            return -1;
+
+        long delay = Math.max(chatSyncMinDelayMillis, Math.round(getPropagationEstimateMillis() / 2));
+        try {
+            state.lock.lock();
+            if (state.consecutiveFailures > 0)
+                return -1;
+        } finally {
+            state.lock.unlock();
+        }
+
+        repollDecisions.increment();
+        pollDelay.record(delay);
+        return delay;
+    }
+
+    /**
+     * A sync of the channel is about to fetch the commands, so it covers all chat edits until now
+     */
+    public void onPollStarted(ChannelPollState state) {
+        try {
+            state.lock.lock();
+            state.pendingChatEditSince = -1;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Learns from a chat edit a sync found
+     *
+     * @param observedMillis time from the chat message until the sync that found it
+     * @param missed whether an earlier sync after the chat message did not find it yet
+     */
+    public void onChatEditPropagated(long observedMillis, boolean missed) {
+        try {
+            propagationLock.lock();
+            final double estimate = missed
+                    ? propagationEstimateMillis + PROPAGATION_SAMPLE_WEIGHT * (observedMillis - propagationEstimateMillis)
+                    : propagationEstimateMillis * PROPAGATION_DECREASE;
+            propagationEstimateMillis = clamp(estimate, chatSyncMinDelayMillis, chatSyncMaxDelayMillis);
+        } finally {
+            propagationLock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    double getPropagationEstimateMillis() {
+        try {
+            propagationLock.lock();
+            return propagationEstimateMillis;
+        } finally {
+            propagationLock.unlock();
+        }
+    }
+
+    /**
+     * Takes one request from the shared budget.
+     *
+     * @return 0 if the poll may run now, otherwise the millis to wait before trying again
+     */
+    public long tryAcquire() {
+        final long now = clock.getAsLong();
+
+        final NightbotRateLimit rateLimit = rateLimitSource.get();
+        if (rateLimit != null && rateLimit.remaining <= RATE_LIMIT_RESERVE && rateLimit.resetAtMillis > now) {
+            rateLimitDeferrals.increment();
+            return rateLimit.resetAtMillis - now + jitter(1000);
+        }
+
+        try {
+            budgetLock.lock();
+
+            budgetTokens = Math.min(budgetCapacity, budgetTokens + (now - budgetUpdatedAt) * budgetRefillPerMilli);
+            budgetUpdatedAt = now;
+
+            if (budgetTokens >= 1) {
+                budgetTokens -= 1;
+                return 0;
+            }
+
+            budgetDeferrals.increment();
+            return (long) Math.ceil((1 - budgetTokens) / budgetRefillPerMilli) + jitter(1000);
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * @param changed whether the command list had changes
+     */
+    public void onPollSucceeded(ChannelPollState state, boolean changed) {
+        try {
+            state.lock.lock();
+            state.consecutiveFailures = 0;
+            if (changed)
+                state.lastActivityAt = clock.getAsLong();
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    public void onPollFailed(ChannelPollState state, Exception e) {
+        final long now = clock.getAsLong();
+
+        long retryAfter = -1;
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NightbotHttpException) {
+                retryAfter = ((NightbotHttpException) cause).getRetryAfterMillis();
+                break;
+            }
+        }
+
+        try {
+            state.lock.lock();
+            ++state.consecutiveFailures;
+
+            // Full jitter in the upper half, so channels failing together don't retry together
+            final long backoff = Math.min(maxBackoffMillis,
+                    minBackoffMillis << Math.min(state.consecutiveFailures - 1, 20));
+            long delay = backoff / 2 + jitter(backoff / 2);
+            if (retryAfter >= 0)
+                delay = Math.max(delay, retryAfter);
+
+            state.backoffUntil = now + delay;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private long jitter(long maxMillis) {
+        return maxMillis <= 0 ? 0 : (long) (nextRandom() * maxMillis);
+    }
+
+    private double nextRandom() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+
+    /**
+     * Poll history of a single channel
+     */
+    public class ChannelPollState {
+        private final Lock lock = new ReentrantLock();
+        private final long createdAt = clock.getAsLong();
+        private long lastActivityAt = -1;
+        private int consecutiveFailures;
+        private long backoffUntil;
+        private long pendingChatEditSince = -1;
+
+        @VisibleForTesting
+        int getConsecutiveFailures() {
+            try {
+                lock.lock();
+                return consecutiveFailures;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
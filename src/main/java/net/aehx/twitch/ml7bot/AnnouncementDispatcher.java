@@ -0,0 +1,348 @@
+package net.aehx.twitch.ml7bot;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.store.AnnouncementOutbox;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Sends the command changelog announcements of all channels from the {@link AnnouncementOutbox}.
+ *
+ * <p>
+ *     Announcements are written to the outbox before they are sent and acknowledged once discord accepted them, so
+ *     neither a failed send nor a restart loses them. Every discord channel is its own route: its announcements are
+ *     sent one after another in order, at most {@link #ROUTE_BUCKET_SIZE} per {@link #ROUTE_BUCKET_REFILL_MILLIS}
+ *     (discord's message limit per channel), so bursts never run into rate limits. A route whose send failed for
+ *     good is retried with exponential backoff, announcements discord rejects or that are older than
+ *     {@link #MAX_ANNOUNCEMENT_AGE_MILLIS} are dropped.
+ * </p>
+ * <p>
+ *     Without outbox, announcements are only queued in memory.
+ * </p>
+ */
+public class AnnouncementDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AnnouncementDispatcher.class);
+
+    static final int ROUTE_BUCKET_SIZE = 5;
+    static final long ROUTE_BUCKET_REFILL_MILLIS = 5_000;
+
+    static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long MAX_ANNOUNCEMENT_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Sends a message to the discord channel with the given id
+     */
+    public interface MessageTarget {
+        Mono<?> send(long discordChannelId, String message);
+    }
+
+    private final DiscordMessageSender messageSender;
+    private final AnnouncementOutbox outbox;
+    private final TimingWheelScheduler scheduler;
+    private final MessageTarget target;
+    private final LongSupplier clock;
+    private final Predicate<Throwable> isRetryable;
+
+    private final Lock routesLock;
+    private final Condition drained;
+    /** discord channel id -> route */
+    private final Map<Long, Route> routes;
+    /** Called once the last announcement of a dispatch was sent. Not kept across restarts. */
+    private final Map<AnnouncementOutbox.Entry, Runnable> sentCallbacks;
+    private final AtomicInteger queuedAnnouncements;
+    private final AtomicLong inMemoryIds;
+
+    // Metrics
+    private final Counter droppedAnnouncements;
+    private final Counter failedOutboxWrites;
+    private final Timer sendLatency;
+
+
+    /**
+     * @param outbox <code>null</code> to only queue in memory
+     */
+    public AnnouncementDispatcher(DiscordMessageSender messageSender, AnnouncementOutbox outbox,
+                                  TimingWheelScheduler scheduler, MessageTarget target,
+                                  MetricsService metricsService) {
+        this(messageSender, outbox, scheduler, target, metricsService, System::currentTimeMillis,
+                DiscordMessageSender::isRetryable);
+    }
+
+    @VisibleForTesting
+    AnnouncementDispatcher(DiscordMessageSender messageSender, AnnouncementOutbox outbox,
+                           TimingWheelScheduler scheduler, MessageTarget target, MetricsService metricsService,
+                           LongSupplier clock, Predicate<Throwable> isRetryable) {
+        this.messageSender = messageSender;
+        this.outbox = outbox;
+        this.scheduler = scheduler;
+        this.target = target;
+        this.clock = clock;
+        this.isRetryable = isRetryable;
+
+        routesLock = new ReentrantLock();
+        drained = routesLock.newCondition();
+        routes = new HashMap<>();
+        sentCallbacks = Collections.synchronizedMap(new IdentityHashMap<>());
+        queuedAnnouncements = new AtomicInteger();
+        inMemoryIds = new AtomicLong();
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        registry.gauge("announcement_outbox_depth", queuedAnnouncements, AtomicInteger::get);
+        droppedAnnouncements = registry.counter("announcements_dropped");
+        failedOutboxWrites = registry.counter("announcement_outbox_failed_writes");
+        sendLatency = Timer.builder("announcement_send_latency")
+                .description("Time from queueing an announcement until discord accepted it")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+    }
+
+    /**
+     * Sends the announcements left in the outbox by the previous run
+     */
+    public void start() {
+        if (outbox == null)
+            return;
+
+        final List<AnnouncementOutbox.Entry> pending = outbox.getPending();
+        for (AnnouncementOutbox.Entry entry : pending)
+            enqueue(entry);
+
+        if (!pending.isEmpty())
+            LOG.info("Resending {} announcements of the previous run", pending.size());
+    }
+
+    /**
+     * Queues the messages to be sent in order, after everything queued for the channel before. Never blocks on
+     * discord, only on writing the outbox.
+     *
+     * @param onSent run once the last message was sent
+     */
+    public void dispatch(long discordChannelId, List<String> messages, Runnable onSent) {
+        if (messages.isEmpty())
+            return;
+
+        List<AnnouncementOutbox.Entry> entries = null;
+        if (outbox != null) {
+            try {
+                entries = outbox.add(discordChannelId, messages);
+            } catch (IOException e) {
+                // Still worth sending, just not durable
+                failedOutboxWrites.increment();
+                LOG.error("Failed to write {} announcements to the outbox", messages.size(), e);
+            }
+        }
+
+        if (entries == null) {
+            final long now = clock.getAsLong();
+            entries = new ArrayList<>(messages.size());
+            for (String message : messages) {
+                entries.add(new AnnouncementOutbox.Entry(-inMemoryIds.incrementAndGet(), discordChannelId, now,
+                        message));
+            }
+        }
+
+        if (onSent != null)
+            sentCallbacks.put(entries.get(entries.size() - 1), onSent);
+
+        for (AnnouncementOutbox.Entry entry : entries)
+            enqueue(entry);
+    }
+
+    /**
+     * Waits until all queued announcements were sent. Those still queued after <code>maxWait</code> stay in the
+     * outbox for the next run.
+     *
+     * @return true if all were sent
+     */
+    public boolean drain(Duration maxWait) throws InterruptedException {
+        long remainingNanos = maxWait.toNanos();
+        try {
+            routesLock.lock();
+            while (queuedAnnouncements.get() > 0) {
+                if (remainingNanos <= 0) {
+                    LOG.warn("{} announcements were not sent before shutdown", queuedAnnouncements.get());
+                    return false;
+                }
+                remainingNanos = drained.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            routesLock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    int getQueuedAnnouncements() {
+        return queuedAnnouncements.get();
+    }
+
+    private void enqueue(AnnouncementOutbox.Entry entry) {
+        final Route route;
+        try {
+            routesLock.lock();
+            route = routes.computeIfAbsent(entry.discordChannelId, id -> new Route(id, clock.getAsLong()));
+            route.queue.add(entry);
+            queuedAnnouncements.incrementAndGet();
+        } finally {
+            routesLock.unlock();
+        }
+
+        sendNext(route);
+    }
+
+    /**
+     * Sends the head of the route's queue, unless one is being sent or the route waits for a retry or its rate limit
+     */
+    private void sendNext(Route route) {
+        final AnnouncementOutbox.Entry entry;
+        try {
+            routesLock.lock();
+            if (route.busy || route.queue.isEmpty())
+                return;
+
+            final long waitMillis = route.takeToken(clock.getAsLong());
+            if (waitMillis > 0) {
+                route.busy = true;
+                scheduler.schedule(() -> resume(route), waitMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            route.busy = true;
+            entry = route.queue.peek();
+        } finally {
+            routesLock.unlock();
+        }
+
+        messageSender.submit(Collections.singletonList(
+                messageSender.send(message -> target.send(entry.discordChannelId, message), entry.message)
+                        .doOnSuccess(sent -> onSent(route, entry))
+                        .doOnError(e -> onFailed(route, entry, e))));
+    }
+
+    private void resume(Route route) {
+        try {
+            routesLock.lock();
+            route.busy = false;
+        } finally {
+            routesLock.unlock();
+        }
+
+        sendNext(route);
+    }
+
+    private void onSent(Route route, AnnouncementOutbox.Entry entry) {
+        sendLatency.record(Math.max(0, clock.getAsLong() - entry.queuedAt), TimeUnit.MILLISECONDS);
+        route.failures = 0;
+        complete(route, entry);
+
+        final Runnable callback = sentCallbacks.remove(entry);
+        if (callback != null)
+            callback.run();
+    }
+
+    private void onFailed(Route route, AnnouncementOutbox.Entry entry, Throwable e) {
+        if (!isRetryable.test(e) || clock.getAsLong() - entry.queuedAt > MAX_ANNOUNCEMENT_AGE_MILLIS) {
+            droppedAnnouncements.increment();
+            LOG.error("Dropping announcement for discord channel {}: {}", entry.discordChannelId, entry.message);
+            sentCallbacks.remove(entry);
+            complete(route, entry);
+            return;
+        }
+
+        // Keep the order: the whole route waits for the retry
+        final int failures = ++route.failures;
+        final long delay = Math.min(MAX_RETRY_DELAY_MILLIS, MIN_RETRY_DELAY_MILLIS << Math.min(failures - 1, 16));
+        LOG.warn("Retrying announcements for discord channel {} in {} ms", entry.discordChannelId, delay);
+        scheduler.schedule(() -> resume(route), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the entry from the route and outbox, and sends the next one
+     */
+    private void complete(Route route, AnnouncementOutbox.Entry entry) {
+        if (outbox != null && entry.id > 0) {
+            try {
+                outbox.acknowledge(entry);
+            } catch (IOException ex) {
+                // Sent again after a restart, at worst
+                failedOutboxWrites.increment();
+                LOG.error("Failed to acknowledge announcement in the outbox", ex);
+            }
+        }
+
+        try {
+            routesLock.lock();
+            route.queue.poll();
+            route.busy = false;
+            if (queuedAnnouncements.decrementAndGet() == 0)
+                drained.signalAll();
+        } finally {
+            routesLock.unlock();
+        }
+
+        sendNext(route);
+    }
+
+
+    /**
+     * Announcements of one discord channel. Guarded by routesLock, except for failures, which only the
+     * send in progress changes.
+     */
+    private static class Route {
+        final long discordChannelId;
+        final Deque<AnnouncementOutbox.Entry> queue = new ArrayDeque<>();
+
+        /** Sending the head, or waiting for a retry or a token */
+        boolean busy;
+        volatile int failures;
+
+        double tokens = ROUTE_BUCKET_SIZE;
+        long refilledAt;
+
+        Route(long discordChannelId, long now) {
+            this.discordChannelId = discordChannelId;
+            refilledAt = now;
+        }
+
+        /**
+         * @return 0 if a token was taken, else millis until the next one
+         */
+        long takeToken(long now) {
+            tokens = Math.min(ROUTE_BUCKET_SIZE,
+                    tokens + (now - refilledAt) * (double) ROUTE_BUCKET_SIZE / ROUTE_BUCKET_REFILL_MILLIS);
+            refilledAt = now;
+
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * ROUTE_BUCKET_REFILL_MILLIS / ROUTE_BUCKET_SIZE);
+        }
+    }
+}
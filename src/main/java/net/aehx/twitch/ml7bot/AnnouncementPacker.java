@@ -0,0 +1,88 @@
+package net.aehx.twitch.ml7bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs announcements into as few Discord messages as possible, so a sync with many changes costs few REST calls.
+ *
+ * <p>
+ *     {@link #pack} joins whole announcements in order, an announcement is never split. {@link #packDigest} lists
+ *     short items under section labels, continued over at most a given number of messages. Items that don't fit
+ *     anymore are only counted.
+ * </p>
+ */
+public final class AnnouncementPacker {
+
+    private static final String SEPARATOR = "\n\n";
+
+    /** Room kept in every digest message for the line counting the items left out */
+    private static final int MORE_LINE_RESERVE = 32;
+
+    private AnnouncementPacker() {
+    }
+
+    /**
+     * @return the announcements in order, joined into messages of at most <code>maxLength</code> chars. Longer
+     *         announcements are a message of their own.
+     */
+    public static List<String> pack(List<String> announcements, int maxLength) {
+        final List<String> messages = new ArrayList<>();
+        final StringBuilder msg = new StringBuilder();
+        for (String announcement : announcements) {
+            if (msg.length() > 0 && msg.length() + SEPARATOR.length() + announcement.length() > maxLength) {
+                messages.add(msg.toString());
+                msg.setLength(0);
+            }
+
+            if (msg.length() > 0)
+                msg.append(SEPARATOR);
+            msg.append(announcement);
+        }
+
+        if (msg.length() > 0)
+            messages.add(msg.toString());
+        return messages;
+    }
+
+    /**
+     * @param sections label -> items, in order. Sections without items are left out.
+     * @return the header and the items of every section, in at most <code>maxMessages</code> messages of at most
+     *         <code>maxLength</code> chars
+     */
+    public static List<String> packDigest(String header, Map<String, List<String>> sections, int maxLength,
+                                          int maxMessages) {
+        int remaining = 0;
+        for (List<String> items : sections.values())
+            remaining += items.size();
+
+        final List<String> messages = new ArrayList<>(maxMessages);
+        final StringBuilder msg = new StringBuilder(header);
+        for (Map.Entry<String, List<String>> section : sections.entrySet()) {
+            boolean sectionStarted = false;
+            for (String item : section.getValue()) {
+                String prefix = sectionStarted ? ", " : "\n" + section.getKey() + " ";
+                if (msg.length() + prefix.length() + item.length() > maxLength - MORE_LINE_RESERVE) {
+                    if (messages.size() + 1 >= maxMessages) {
+                        msg.append("\n\u2026 and ").append(remaining).append(" more");
+                        messages.add(msg.toString());
+                        return messages;
+                    }
+
+                    // Continue the section in the next message
+                    messages.add(msg.toString());
+                    msg.setLength(0);
+                    prefix = section.getKey() + " ";
+                }
+
+                msg.append(prefix).append(item);
+                sectionStarted = true;
+                --remaining;
+            }
+        }
+
+        messages.add(msg.toString());
+        return messages;
+    }
+}
@@ -0,0 +1,166 @@
+package net.aehx.twitch.ml7bot;
+
+import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Bounded stage between the twitch4j event dispatch thread and the command changelog logic.
+ *
+ * <p>
+ *     {@link #submit(ChannelMessageEvent)} only puts the message into a fixed-size ring buffer, so twitch chat
+ *     ingestion never waits on nightbot or discord. A single worker thread drains the buffer in batches and passes
+ *     each message to the handler. If the buffer is full, the {@link OverflowPolicy} decides whether the
+ *     submitting thread waits or a message is dropped.
+ * </p>
+ */
+public class ChatMessagePipeline {
+
+    public enum OverflowPolicy {
+        /** Block the submitting thread until there is space again (backpressure) */
+        BLOCK,
+
+        /** Drop the message that is submitted */
+        DROP_NEWEST,
+
+        /** Drop the oldest buffered message to make room for the submitted one */
+        DROP_OLDEST
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChatMessagePipeline.class);
+
+    private final BlockingQueue<ChannelMessageEvent> queue;
+    private final int maxBatchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Consumer<ChannelMessageEvent> handler;
+    private final Thread worker;
+    private volatile boolean running;
+
+    // Metrics
+    private final Counter droppedMessages;
+    private final DistributionSummary batchSize;
+
+
+    public ChatMessagePipeline(int capacity,
+                               int maxBatchSize,
+                               OverflowPolicy overflowPolicy,
+                               Consumer<ChannelMessageEvent> handler,
+                               MetricsService metricsService) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.handler = handler;
+
+        worker = new Thread(this::drainLoop, "chat-message-pipeline");
+        worker.setDaemon(true);
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        registry.gauge("chat_pipeline_queue_depth", queue, BlockingQueue::size);
+        droppedMessages = registry.counter("chat_pipeline_dropped_messages", "policy", overflowPolicy.name());
+        batchSize = DistributionSummary.builder("chat_pipeline_batch_size")
+                .description("Number of chat messages handled per drained batch")
+                .register(registry);
+    }
+
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    /**
+     * Stops accepting messages, handles the already buffered ones and waits for the worker to exit
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Puts the message into the buffer. Never waits for the handler, except with {@link OverflowPolicy#BLOCK} on a
+     * full buffer. Messages submitted after {@link #stop()} are dropped.
+     */
+    public void submit(ChannelMessageEvent event) {
+        if (!running) {
+            droppedMessages.increment();
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(event);
+                } catch (InterruptedException e) {
+                    droppedMessages.increment();
+                    Thread.currentThread().interrupt();
+                }
+                break;
+
+            case DROP_NEWEST:
+                if (!queue.offer(event))
+                    droppedMessages.increment();
+                break;
+
+            case DROP_OLDEST:
+                while (!queue.offer(event)) {
+                    if (queue.poll() != null)
+                        droppedMessages.increment();
+                }
+                break;
+        }
+
+        // Stopped while enqueueing: the worker's last drain may have missed the message. Whoever removes it first,
+        // the worker or we, decides whether it is handled or dropped.
+        if (!running && queue.remove(event))
+            droppedMessages.increment();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void drainLoop() {
+        final List<ChannelMessageEvent> batch = new ArrayList<>(maxBatchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                if (running) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, maxBatchSize - 1);
+                } else {
+                    queue.drainTo(batch, maxBatchSize);
+                }
+            } catch (InterruptedException e) {
+                // Stopped. Loop once more to drain what is left.
+                continue;
+            }
+
+            batchSize.record(batch.size());
+
+            for (ChannelMessageEvent event : batch) {
+                try {
+                    handler.accept(event);
+                } catch (Exception e) {
+                    LOG.error("Failed to handle chat message", e);
+                }
+            }
+
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package net.aehx.twitch.ml7bot;
+
+import com.github.philippheuer.events4j.core.EventManager;
+import com.github.twitch4j.chat.TwitchChatConnectionPool;
+import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
+import net.aehx.twitch.ml7bot.config.CommandChangelogChannelConfig;
+import net.aehx.twitch.ml7bot.config.Config;
+import net.aehx.twitch.ml7bot.config.InvalidConfigException;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.CachingNightbotAPI;
+import net.aehx.twitch.ml7bot.nightbot.NightbotAPI;
+import net.aehx.twitch.ml7bot.nightbot.NightbotTransport;
+import net.aehx.twitch.ml7bot.nightbot.PooledTransport;
+import net.aehx.twitch.ml7bot.nightbot.UrlConnectionTransport;
+import net.aehx.twitch.ml7bot.store.AnnouncementOutbox;
+import net.aehx.twitch.ml7bot.store.CommandHistoryStore;
+import net.aehx.twitch.ml7bot.store.CommandSnapshotStore;
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link CommandChangelogService} for every configured twitch channel.
+ *
+ * <p>
+ *     All channels share one twitch chat connection pool, one {@link AnnouncementDispatcher}, one nightbot api client,
+ *     one {@link TimingWheelScheduler} for the update timers and one {@link AdaptivePollScheduler} with the nightbot
+ *     request budget. Each channel only keeps its own commands, editors and ignore list. The first command updates
+ *     of the channels are spread evenly over the update interval, so they don't all hit the nightbot api at the
+ *     same time.
+ * </p>
+ */
+public class CommandChangelogManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommandChangelogManager.class);
+
+    private final Config config;
+    private final GatewayDiscordClient discord;
+    private final DiscordMessageSender messageSender;
+    private final MetricsService metricsService;
+    private final NightbotAPI nightbot;
+    private final AdaptivePollScheduler pollScheduler;
+
+    /** twitch channel name -> service */
+    private final Map<String, CommandChangelogService> services;
+
+    private TimingWheelScheduler scheduler;
+    private AnnouncementDispatcher announcementDispatcher;
+    private CommandHistoryStore historyStore;
+    private ChatMessagePipeline chatPipeline;
+    private TwitchChatConnectionPool twitchChat;
+
+
+    public CommandChangelogManager(Config config, GatewayDiscordClient discord, DiscordMessageSender messageSender,
+                                   MetricsService metricsService) {
+        this.config = config;
+        this.discord = discord;
+        this.messageSender = messageSender;
+        this.metricsService = metricsService;
+
+        nightbot = new CachingNightbotAPI(
+                createNightbotTransport(config),
+                config.getNightbotApiUrl(),
+                config.getNightbotCacheChannelTtlMillis(),
+                config.getNightbotCacheCommandsFreshMillis(),
+                config.getNightbotCacheStaleIfErrorMillis(),
+                metricsService);
+        pollScheduler = new AdaptivePollScheduler(config, nightbot::getRateLimit, metricsService);
+        services = new HashMap<>();
+    }
+
+    public void start() throws InvalidConfigException {
+        final List<CommandChangelogChannelConfig> channels = config.getCommandChangelogChannels();
+        final long updateInterval = config.getCommandChangelogUpdateIntervalMillis();
+
+        final CommandSnapshotStore snapshotStore = createSnapshotStore();
+        historyStore = createHistoryStore();
+        scheduler = new TimingWheelScheduler("commandchangelog", config.getCommandChangelogSchedulerTickMillis(),
+                config.getCommandChangelogSchedulerThreads(), metricsService);
+        scheduler.start();
+
+        announcementDispatcher = new AnnouncementDispatcher(messageSender, createOutbox(), scheduler,
+                this::sendToDiscordChannel, metricsService);
+        announcementDispatcher.start();
+
+        for (int i = 0; i < channels.size(); ++i) {
+            final CommandChangelogChannelConfig channelConfig = channels.get(i);
+            final CommandChangelogService service = new CommandChangelogService(
+                    config, channelConfig, discord, announcementDispatcher, nightbot, scheduler, pollScheduler,
+                    snapshotStore, historyStore, metricsService);
+
+            // Spread the first (and thereby all following) periodic updates over the update interval
+            final long initialDelay = updateInterval + updateInterval * i / channels.size();
+
+            try {
+                service.start(initialDelay);
+            } catch (RuntimeException e) {
+                // A single broken channel (e.g. renamed or nightbot removed) should not take down all the others
+                LOG.error("Failed to start command changelog for channel '{}'. Skipping it...",
+                        channelConfig.getTwitchChannel(), e);
+                continue;
+            }
+
+            services.put(channelConfig.getTwitchChannel(), service);
+        }
+
+        if (services.isEmpty()) {
+            // Announcements recovered from the outbox may be in flight. Whatever is left is sent after the next start.
+            drainAnnouncements();
+            scheduler.shutdownNow();
+            nightbot.close();
+            if (historyStore != null)
+                historyStore.close();
+            throw new RuntimeException("Could not start command changelog for any of the configured channels");
+        }
+
+
+        if (historyStore != null)
+            scheduler.scheduleWithFixedDelay(this::compactHistory, 1, 24, TimeUnit.HOURS);
+
+
+        chatPipeline = new ChatMessagePipeline(
+                config.getCommandChangelogPipelineCapacity(),
+                config.getCommandChangelogPipelineBatchSize(),
+                config.getCommandChangelogPipelineOverflowPolicy(),
+                this::onChatMessage,
+                metricsService);
+        chatPipeline.start();
+
+        twitchChat = TwitchChatConnectionPool.builder()
+                .maxSubscriptionsPerConnection(config.getCommandChangelogTwitchChannelsPerConnection())
+                .build();
+
+        EventManager eventManager = twitchChat.getEventManager();
+        eventManager.onEvent(ChannelMessageEvent.class, chatPipeline::submit);
+
+        for (String twitchChannel : services.keySet())
+            twitchChat.joinChannel(twitchChannel);
+
+        LOG.info("Watching {} of {} configured twitch channels", services.size(), channels.size());
+    }
+
+    public void stop() {
+        services.values().forEach(CommandChangelogService::stop);
+
+        LOG.info("Stopping twitch chat bot...");
+
+        try {
+            twitchChat.close();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed waiting for twitch chat client to exit", e);
+        }
+
+        chatPipeline.stop();
+
+        // Needs the scheduler for retries. Whatever is left is sent after the next start.
+        drainAnnouncements();
+
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(10, TimeUnit.SECONDS))
+                LOG.warn("Running command updates did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        nightbot.close();
+        if (historyStore != null)
+            historyStore.close();
+    }
+
+    private void drainAnnouncements() {
+        LOG.info("Sending queued announcements...");
+        try {
+            announcementDispatcher.drain(Duration.ofSeconds(20));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CommandSnapshotStore createSnapshotStore() {
+        if (config.getCommandChangelogSnapshotDir().isEmpty())
+            return null;
+
+        try {
+            return new CommandSnapshotStore(Paths.get(config.getCommandChangelogSnapshotDir()), metricsService);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create command snapshot directory " +
+                    "'" + config.getCommandChangelogSnapshotDir() + "'", e);
+        }
+    }
+
+    private AnnouncementOutbox createOutbox() {
+        if (config.getCommandChangelogOutboxDir().isEmpty())
+            return null;
+
+        try {
+            return new AnnouncementOutbox(Paths.get(config.getCommandChangelogOutboxDir()), metricsService);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open announcement outbox in " +
+                    "'" + config.getCommandChangelogOutboxDir() + "'", e);
+        }
+    }
+
+    /**
+     * Posts directly over REST, so sending doesn't depend on the channel being in the gateway's entity cache
+     */
+    private Mono<?> sendToDiscordChannel(long discordChannelId, String message) {
+        return discord.rest().getChannelById(Snowflake.of(discordChannelId)).createMessage(message);
+    }
+
+    private CommandHistoryStore createHistoryStore() {
+        if (config.getCommandChangelogHistoryDir().isEmpty())
+            return null;
+
+        try {
+            return new CommandHistoryStore(Paths.get(config.getCommandChangelogHistoryDir()), metricsService);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create command history directory " +
+                    "'" + config.getCommandChangelogHistoryDir() + "'", e);
+        }
+    }
+
+    private void compactHistory() {
+        try {
+            historyStore.compact();
+        } catch (Exception e) {
+            // Retried with the next compaction, the history stays readable either way
+            LOG.error("Failed to compact command history", e);
+        }
+    }
+
+    private static NightbotTransport createNightbotTransport(Config config) {
+        if (config.getNightbotTransport().equals("urlconnection")) {
+            return new UrlConnectionTransport(config.getNightbotMaxConcurrentRequests(),
+                    config.getNightbotConnectTimeoutMillis(), config.getNightbotReadTimeoutMillis());
+        }
+
+        return new PooledTransport(config.getNightbotMaxConcurrentRequests(),
+                config.getNightbotConnectTimeoutMillis(), config.getNightbotReadTimeoutMillis());
+    }
+
+    private void onChatMessage(ChannelMessageEvent event) {
+        final CommandChangelogService service = services.get(event.getChannel().getName().toLowerCase(Locale.ROOT));
+        if (service != null)
+            service.onChatMessage(event);
+    }
+}
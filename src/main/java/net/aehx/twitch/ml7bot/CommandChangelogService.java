@@ -1,171 +1,351 @@
 package net.aehx.twitch.ml7bot;
 
-import com.github.philippheuer.events4j.core.EventManager;
-import com.github.twitch4j.chat.TwitchChat;
-import com.github.twitch4j.chat.TwitchChatBuilder;
 import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
 import com.github.twitch4j.common.enums.CommandPermission;
 import com.github.twitch4j.common.events.domain.EventUser;
 import com.google.common.annotations.VisibleForTesting;
+import net.aehx.twitch.ml7bot.config.CommandChangelogChannelConfig;
 import net.aehx.twitch.ml7bot.config.Config;
 import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.ConditionalFetchState;
 import net.aehx.twitch.ml7bot.nightbot.NightbotAPI;
 import net.aehx.twitch.ml7bot.nightbot.NightbotChannel;
 import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import net.aehx.twitch.ml7bot.store.CommandHistoryStore;
+import net.aehx.twitch.ml7bot.store.CommandRevision;
+import net.aehx.twitch.ml7bot.store.CommandSnapshotStore;
 import discord4j.common.util.Snowflake;
 import discord4j.core.GatewayDiscordClient;
 import discord4j.core.object.entity.channel.GuildMessageChannel;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Duration;
+import java.io.IOException;
+import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class CommandChangelogService {
 
     /**
-     * In case we detect more changes than this, we will not announce changes, cause it's likely a bug and would
-     * only spam the discord channel.
+     * Changes of one update announced one by one. Bursts of more changes (e.g. bulk edits) are announced as a digest
+     * of the changed commands, so they don't spam the discord channel.
      */
     public static final int MAX_CHANGES_TO_ANNOUNCE = 5;
 
+    /** Discord rejects longer messages */
+    public static final int MAX_ANNOUNCEMENT_LENGTH = 2000;
+
     /**
-     * Patterns to use to find moderator messages that modify (add/edit/delete) chat commands
+     * Edit announcements only repeat the full new command if at least this much room is left for the changes
      */
-    public static final List<Pattern> COMMAND_MODIFICATION_PATTERNS = Arrays.asList(
-            // Legacy commands
-            Pattern.compile("^!(add|edit|del)com\\s+(?<command>[^\\s]+)", Pattern.CASE_INSENSITIVE),
-
-            // https://docs.nightbot.tv/commands/commands
-            Pattern.compile("^!commands\\s+(add|edit|delete)\\s+(?<command>[^\\s]+)", Pattern.CASE_INSENSITIVE)
-    );
+    private static final int MIN_EDIT_DIFF_LENGTH = 500;
 
     /**
-     * Name of the regex capture group in the {@link CommandChangelogService#COMMAND_MODIFICATION_PATTERNS} patterns
-     * that contains the actual modified chat command
+     * Finds moderator messages that modify (add/edit/delete) chat commands
      */
-    public static final String MODIFIED_COMMAND_GROUP_NAME = "command";
+    public static final CommandModificationMatcher COMMAND_MODIFICATION_MATCHER =
+            CommandModificationMatcher.createDefault();
 
     private static final Logger LOG = LoggerFactory.getLogger(CommandChangelogService.class);
 
     private final Config config;
+    private final CommandChangelogChannelConfig channelConfig;
     private final GatewayDiscordClient discord;
+    private final AnnouncementDispatcher announcementDispatcher;
+    private final TimingWheelScheduler scheduler;
+    private final AdaptivePollScheduler pollScheduler;
+    private final AdaptivePollScheduler.ChannelPollState pollState;
+    private final CommandSnapshotStore snapshotStore;
+    private final CommandHistoryStore historyStore;
+    private final int maxAnnouncementMessages;
 
     @VisibleForTesting
-    protected NightbotAPI nightbot;
+    protected final NightbotAPI nightbot;
 
-    private TwitchChat twitchChat;
     private GuildMessageChannel changelogChannel;
     private String nightbotChannelId;
 
     @VisibleForTesting
-    protected Map<String, String> lastTwitchCommandEditors; // command name -> username
+    protected final CommandEditors commandEditors;
 
+    /** Replaced as a whole by updates, so readers never wait for an update and never see a partial list */
     @VisibleForTesting
-    protected Map<String, NightbotCommand> commands;
+    protected final AtomicReference<CommandSnapshot> commands;
+
+    private final ConditionalFetchState commandsFetchState;
 
-    private Set<String> ignoredCommands;
-    private CommandsUpdater commandsUpdater;
-    private AnnouncementFormatter announcementFormatter;
-    private Lock commandUpdateLock;
-    private ScheduledExecutorService scheduler;
-    private ScheduledFuture<?> scheduledSync;
+    private final Set<String> ignoredCommands;
+    private final CommandsUpdater commandsUpdater;
+    private final AnnouncementFormatter announcementFormatter;
+
+    /** Requested but not yet completed updates. Only the thread raising it from zero runs them. */
+    private final AtomicInteger pendingUpdates;
+
+    /** Guards the scheduled sync. Never held during nightbot or discord I/O, so chat handling never waits on it. */
+    private final Lock scheduleLock;
+    private TimingWheelScheduler.Timeout scheduledSync;
+    private long scheduleSequence;
 
     // Metrics
     private final Counter processedMessages;
     private final Counter failedCommandFetches;
     private final Counter successfulPings;
+    private final Counter skippedCommandPolls;
+    private final Timer commandDiffDuration;
+    private final Timer chatAnnouncementLatency;
+    private final Timer dashboardAnnouncementLatency;
 
 
-    public CommandChangelogService(Config config, GatewayDiscordClient discord, MetricsService metricsService) {
+    /**
+     * Watches a single twitch channel. The announcement dispatcher, nightbot api client, scheduler, poll scheduler and
+     * stores are shared between all channels, see {@link CommandChangelogManager}.
+     *
+     * @param snapshotStore <code>null</code> to not keep command lists across restarts
+     * @param historyStore <code>null</code> to not keep a command history
+     */
+    public CommandChangelogService(Config config,
+                                   CommandChangelogChannelConfig channelConfig,
+                                   GatewayDiscordClient discord,
+                                   AnnouncementDispatcher announcementDispatcher,
+                                   NightbotAPI nightbot,
+                                   TimingWheelScheduler scheduler,
+                                   AdaptivePollScheduler pollScheduler,
+                                   CommandSnapshotStore snapshotStore,
+                                   CommandHistoryStore historyStore,
+                                   MetricsService metricsService) {
         this.config = config;
+        this.channelConfig = channelConfig;
         this.discord = discord;
-
-        nightbot = new NightbotAPI();
-
-        lastTwitchCommandEditors = new HashMap<>();
-        ignoredCommands = config.getCommandChangelogIgnoredCommands();
+        this.announcementDispatcher = announcementDispatcher;
+        this.nightbot = nightbot;
+        this.scheduler = scheduler;
+        this.pollScheduler = pollScheduler;
+        this.snapshotStore = snapshotStore;
+        this.historyStore = historyStore;
+
+        commandEditors = new CommandEditors();
+        commands = new AtomicReference<>();
+        ignoredCommands = channelConfig.getIgnoredCommands();
+        maxAnnouncementMessages = config.getCommandChangelogAnnouncementsMaxMessages();
+
+        pollState = pollScheduler.createChannelState();
+        commandsFetchState = new ConditionalFetchState();
+        commandsUpdater = new CommandsUpdater();
+        pendingUpdates = new AtomicInteger();
+        scheduleLock = new ReentrantLock();
+        announcementFormatter = new AnnouncementFormatter();
 
         final MeterRegistry registry = metricsService.getRegistry();
         processedMessages = registry.counter("processed_messages");
         failedCommandFetches = registry.counter("failed_command_fetches");
         successfulPings = registry.counter("successful_pings");
+        skippedCommandPolls = registry.counter("skipped_command_polls");
+        commandDiffDuration = registry.timer("command_diff_duration");
+        chatAnnouncementLatency = Timer.builder("command_announcement_latency")
+                .tag("source", "chat")
+                .publishPercentileHistogram()
+                .register(registry);
+        dashboardAnnouncementLatency = Timer.builder("command_announcement_latency")
+                .tag("source", "dashboard")
+                .publishPercentileHistogram()
+                .register(registry);
     }
 
-    public void start() {
+    /**
+     * Starts from the stored command list if there is one, without any nightbot request. The first update then
+     * announces everything changed while the bot was down, and is scheduled one update interval earlier. Otherwise
+     * fetches the current list to diff against.
+     *
+     * @param initialDelayMillis delay of the first scheduled commands update. Used to spread the updates of many
+     *                           channels over the update interval.
+     */
+    public void start(long initialDelayMillis) {
+        final String twitchChannel = channelConfig.getTwitchChannel();
+
+        if (loadStoredSnapshot()) {
+            connectChangelogChannel();
+            scheduleNextCommandsUpdate(Math.max(0, initialDelayMillis - config.getCommandChangelogUpdateIntervalMillis()));
+            return;
+        }
+
         // Figure out nightbot channel id from twitch channel name
         try {
-            NightbotChannel channel = nightbot.fetchChannelByName(config.getCommandChangelogTwitchChannel());
+            NightbotChannel channel = nightbot.fetchChannelByName(twitchChannel);
             nightbotChannelId = channel.id;
         } catch (Exception e) {
             throw new RuntimeException("Could not fetch nightbot channel id from channel name " +
-                    "'" + config.getCommandChangelogTwitchChannel() + "'", e);
+                    "'" + twitchChannel + "'", e);
         }
 
-        LOG.info("Determined Nightbot channel id for name '{}': {}",
-                config.getCommandChangelogTwitchChannel(), nightbotChannelId);
-
+        LOG.info("Determined Nightbot channel id for name '{}': {}", twitchChannel, nightbotChannelId);
 
-        scheduler = Executors.newScheduledThreadPool(1);
-        commandsUpdater = new CommandsUpdater();
-        commandUpdateLock = new ReentrantLock();
-        announcementFormatter = new AnnouncementFormatter();
 
-        LOG.info("Fetching nightbot commands to diff against...");
+        LOG.info("Fetching nightbot commands of {} to diff against...", twitchChannel);
         try {
-            commands = nightbot.fetchChannelCommands(nightbotChannelId);
+            commands.set(new CommandSnapshot(
+                    nightbot.fetchChannelCommandsIfChanged(nightbotChannelId, commandsFetchState)));
+            commandsFetchState.commit();
         } catch (Exception e) {
-            throw new RuntimeException("Initial nightbot commands fetch failed!", e);
+            throw new RuntimeException("Initial nightbot commands fetch for channel '" + twitchChannel + "' failed!", e);
         }
 
-        LOG.info("Got {} initial nightbot commands", commands.size());
+        LOG.info("Got {} initial nightbot commands for {}", commands.get().size(), twitchChannel);
+        saveSnapshot();
+        recordHistoryBaseline();
 
 
-        changelogChannel = (GuildMessageChannel)discord
-                .getChannelById(Snowflake.of(config.getCommandChangelogDiscordChannelId()))
-                .block();
-        if (changelogChannel == null)
-            throw new RuntimeException("Could not access configured changelog channel");
+        connectChangelogChannel();
 
-        LOG.info("Found command changelog channel #{}", changelogChannel.getName());
 
+        scheduleNextCommandsUpdate(initialDelayMillis);
+    }
 
-        twitchChat = TwitchChatBuilder.builder()
-                .build();
+    public void stop() {
+        try {
+            scheduleLock.lock();
+            if (scheduledSync != null)
+                scheduledSync.cancel();
+        } finally {
+            scheduleLock.unlock();
+        }
+    }
 
-        twitchChat.joinChannel(config.getCommandChangelogTwitchChannel());
+    /**
+     * Starts a commands update now, instead of waiting for the scheduled one. If an update is running already, that
+     * one updates once more instead. Completes on the calling thread if nightbot is served in-process.
+     */
+    public void updateNow() {
+        commandsUpdater.run();
+    }
 
-        EventManager eventManager = twitchChat.getEventManager();
-        eventManager.onEvent(ChannelMessageEvent.class, this::onChatMessage);
+    /**
+     * @return true if the channel id and commands were restored from the snapshot store
+     */
+    private boolean loadStoredSnapshot() {
+        if (snapshotStore == null)
+            return false;
 
+        final CommandSnapshotStore.StoredSnapshot stored;
+        try {
+            stored = snapshotStore.load(channelConfig.getTwitchChannel());
+        } catch (IOException e) {
+            LOG.warn("Could not load stored commands of {}. Fetching them instead...",
+                    channelConfig.getTwitchChannel(), e);
+            return false;
+        }
+
+        if (stored == null || stored.nightbotChannelId == null)
+            return false;
 
-        scheduleNextCommandsUpdate(config.getCommandChangelogUpdateIntervalMillis());
+        nightbotChannelId = stored.nightbotChannelId;
+        commands.set(stored.commands);
+
+        LOG.info("Loaded {} stored nightbot commands of {} from {}. Changes since then will be announced with the " +
+                        "first update", stored.commands.size(), channelConfig.getTwitchChannel(),
+                Instant.ofEpochMilli(stored.savedAt));
+        return true;
     }
 
-    public void stop() {
-        scheduledSync.cancel(false);
+    private void saveSnapshot() {
+        if (snapshotStore == null)
+            return;
+
+        try {
+            snapshotStore.save(channelConfig.getTwitchChannel(), nightbotChannelId, commands.get());
+        } catch (IOException e) {
+            // Only costs the catch-up after the next restart
+            LOG.warn("Could not store nightbot commands of {}", channelConfig.getTwitchChannel(), e);
+        }
+    }
+
+    /**
+     * Adds the commands that changed while nothing was recording to the history
+     */
+    private void recordHistoryBaseline() {
+        if (historyStore == null)
+            return;
+
+        try {
+            historyStore.recordBaseline(channelConfig.getTwitchChannel(), commands.get().getCommands());
+        } catch (IOException e) {
+            LOG.warn("Could not record command history baseline of {}", channelConfig.getTwitchChannel(), e);
+        }
+    }
+
+    /**
+     * Needs the editors of this update, so has to run before they are removed
+     */
+    private void recordHistory(List<CommandListDiff.Change> changes) {
+        if (historyStore == null || changes.isEmpty())
+            return;
+
+        final long now = System.currentTimeMillis();
+        final List<CommandRevision> revisions = new ArrayList<>(changes.size());
+        for (CommandListDiff.Change change : changes) {
+            if (change.isDeleted()) {
+                revisions.add(new CommandRevision(CommandRevision.Type.DELETED, now, now,
+                        announcementFormatter.getLikelyEditor(change.oldCommand), null, change.oldCommand));
+                continue;
+            }
 
-        LOG.info("Stopping twitch chat bot...");
+            final CommandRevision.Type type;
+            if (change.isNew())
+                type = CommandRevision.Type.NEW;
+            else if (change.isRenamed())
+                type = CommandRevision.Type.RENAMED;
+            else
+                type = CommandRevision.Type.EDITED;
+
+            revisions.add(new CommandRevision(type, change.newCommand.updatedAt, now,
+                    announcementFormatter.getLikelyEditor(change.newCommand),
+                    change.isRenamed() ? change.oldCommand.name : null, change.newCommand));
+        }
 
         try {
-            twitchChat.disconnect();
-            twitchChat.close();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed waiting for twitch chat client to exit", e);
+            historyStore.record(channelConfig.getTwitchChannel(), revisions);
+        } catch (IOException e) {
+            LOG.error("Could not record {} command changes of {} in the history",
+                    revisions.size(), channelConfig.getTwitchChannel(), e);
         }
     }
 
-    private void onChatMessage(ChannelMessageEvent event) {
+    public String getTwitchChannel() {
+        return channelConfig.getTwitchChannel();
+    }
+
+    /**
+     * @return the commands as of the last completed update. Never blocks.
+     */
+    public CommandSnapshot getCommands() {
+        return commands.get();
+    }
+
+    protected void connectChangelogChannel() {
+        changelogChannel = (GuildMessageChannel)discord
+                .getChannelById(Snowflake.of(channelConfig.getDiscordChannelId()))
+                .block();
+        if (changelogChannel == null)
+            throw new RuntimeException("Could not access configured changelog channel for " +
+                    "'" + channelConfig.getTwitchChannel() + "'");
+
+        LOG.info("Found command changelog channel #{} for {}",
+                changelogChannel.getName(), channelConfig.getTwitchChannel());
+    }
+
+    /**
+     * Handles a chat message of this service's twitch channel. Must not block.
+     */
+    public void onChatMessage(ChannelMessageEvent event) {
         processedMessages.increment();
 
         final EventUser user = event.getUser();
@@ -183,38 +363,79 @@ public class CommandChangelogService {
         if (modifiedCommand == null)
             return;
 
-        LOG.info("Found a command change in twitch chat: {} (User: {})", event.getMessage(), username);
+        LOG.info("Found a command change in twitch chat of {}: {} (User: {})",
+                channelConfig.getTwitchChannel(), event.getMessage(), username);
 
         if (ignoredCommands.contains(modifiedCommand)) {
             LOG.info("Command {} was configured to be ignored. Skipping announcement...", modifiedCommand);
             return;
         }
 
+        // Save username as editor. Remember that it is unlikely that another user changes the same command in
+        // the dashboard until the next scheduled command update completes
+        commandEditors.record(modifiedCommand, username);
+
+        // Here, we don't want to wait for the next periodic sync. But we also don't want to fetch nightbot
+        // immediately, since the nightbot api takes a while to update / is cached. So instead we force the next
+        // sync once nightbot likely shows the edit, as learned from previous edits (unless nightbot asked us to
+        // back off). Further edits in the meantime push it back a bit, so a burst of edits is one sync.
+        scheduleNextCommandsUpdate(pollScheduler.chatTriggeredPollDelay(pollState));
+    }
+
+    /**
+     * Replaces any previous scheduled commands update with the given one
+     */
+    private void scheduleNextCommandsUpdate(long delayMillis) {
         try {
-            commandUpdateLock.lock();
+            scheduleLock.lock();
 
-            // Save username as editor. Remember that it is unlikely that another user changes the same command in
-            // the dashboard until the next scheduled command update completes
-            lastTwitchCommandEditors.put(modifiedCommand, username);
+            if (scheduledSync != null)
+                scheduledSync.cancel();
 
-            // Here, we don't want to wait for the next periodic sync. But we also don't want to fetch nightbot
-            // immediately, since we don't know how long the nightbot api takes to update / is cached. So instead
-            // we force the next sync in a few seconds from now.
-            scheduleNextCommandsUpdate(Duration.ofSeconds(5).toMillis());
+            scheduledSync = scheduler.schedule(commandsUpdater, delayMillis, TimeUnit.MILLISECONDS);
+            ++scheduleSequence;
         } finally {
-            commandUpdateLock.unlock();
+            scheduleLock.unlock();
         }
+
+        LOG.debug("Scheduled next command list update for {}", channelConfig.getTwitchChannel());
     }
 
     /**
-     * Replaces any previous scheduled commands update with the given one
+     * Schedules the next periodic commands update as decided by the poll scheduler, unless another update was
+     * requested (e.g. by a chat edit) since <code>sequence</code> was read.
      */
-    private void scheduleNextCommandsUpdate(long delayMillis) {
-        if (scheduledSync != null)
-            scheduledSync.cancel(false);
+    private void schedulePeriodicCommandsUpdate(long sequence) {
+        try {
+            scheduleLock.lock();
+            if (scheduleSequence == sequence)
+                scheduleNextCommandsUpdate(pollScheduler.nextPollDelay(pollState));
+        } finally {
+            scheduleLock.unlock();
+        }
+    }
+
+    /**
+     * Retries a commands update that could not run yet or did not find a chat edit yet, unless another update was
+     * requested since <code>sequence</code> was read.
+     */
+    private void deferCommandsUpdate(long sequence, long delayMillis) {
+        try {
+            scheduleLock.lock();
+            if (scheduleSequence == sequence)
+                scheduleNextCommandsUpdate(delayMillis);
+        } finally {
+            scheduleLock.unlock();
+        }
+    }
 
-        scheduledSync = scheduler.schedule(commandsUpdater, delayMillis, TimeUnit.MILLISECONDS);
-        LOG.info("Scheduled next command list update");
+    private long getScheduleSequence() {
+        try {
+            scheduleLock.lock();
+            return scheduleSequence;
+        } finally {
+            scheduleLock.unlock();
+        }
     }
 
 
@@ -230,13 +451,12 @@ public class CommandChangelogService {
      */
     @VisibleForTesting
     static String getModifiedCommand(String message) {
-        for (Pattern pattern : COMMAND_MODIFICATION_PATTERNS) {
-            Matcher matcher = pattern.matcher(message);
-            if (matcher.find())
-                return matcher.group(MODIFIED_COMMAND_GROUP_NAME);
-        }
+        return COMMAND_MODIFICATION_MATCHER.match(message);
+    }
+
 
-        return null;
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 
 
@@ -255,132 +475,254 @@ public class CommandChangelogService {
     @VisibleForTesting
     class CommandsUpdater implements Runnable {
 
+        // Announcements of the running update
+        private final List<String> pendingAnnouncements = new ArrayList<>();
+
+        /**
+         * Never waits for a running update, nor for nightbot: an update finishes in a completion stage of its fetch.
+         * A request arriving meanwhile makes the running update run once more afterwards, so no change is missed and
+         * updates never overlap.
+         */
         @Override
         public void run() {
-            try {
-                commandUpdateLock.lock();
-                runIntrnl();
-                scheduleNextCommandsUpdate(config.getCommandChangelogUpdateIntervalMillis());
-            } finally {
-                commandUpdateLock.unlock();
+            if (pendingUpdates.getAndIncrement() > 0)
+                return;
+
+            runPending();
+        }
+
+        private void runPending() {
+            do {
+                pendingUpdates.set(1);
+                final CompletableFuture<Void> update = runOnce();
+                if (!update.isDone()) {
+                    update.whenComplete((ignored, e) -> {
+                        logFailedUpdate(e);
+                        if (!pendingUpdates.compareAndSet(1, 0))
+                            runPending();
+                    });
+                    return;
+                }
+
+                // Completed in-process, loop instead of recursing
+                logFailedUpdate(update.handle((ignored, e) -> e).join());
+            } while (!pendingUpdates.compareAndSet(1, 0));
+        }
+
+        private void logFailedUpdate(Throwable e) {
+            if (e != null)
+                LOG.error("Commands update of {} failed", channelConfig.getTwitchChannel(), unwrap(e));
+        }
+
+        private CompletableFuture<Void> runOnce() {
+            final long sequence = getScheduleSequence();
+
+            final long budgetWait = pollScheduler.tryAcquire();
+            if (budgetWait > 0) {
+                LOG.debug("Nightbot request budget used up. Deferring command list update of {} by {}ms",
+                        channelConfig.getTwitchChannel(), budgetWait);
+                deferCommandsUpdate(sequence, budgetWait);
+                return CompletableFuture.completedFuture(null);
             }
+
+            pollScheduler.onPollStarted(pollState);
+            return runIntrnl().thenAccept(oldestPendingEditAt -> {
+                // Nightbot may not show a chat edit yet, so check again soon instead of at the regular interval
+                final long repollDelay = oldestPendingEditAt >= 0
+                        ? pollScheduler.repollDelay(pollState, oldestPendingEditAt)
+                        : -1;
+                if (repollDelay >= 0) {
+                    LOG.debug("Chat edit of {} not found yet. Polling again in {}ms",
+                            channelConfig.getTwitchChannel(), repollDelay);
+                    deferCommandsUpdate(sequence, repollDelay);
+                } else {
+                    schedulePeriodicCommandsUpdate(sequence);
+                }
+            });
         }
 
+        /**
+         * @return completes with the time of the oldest chat edit this update did not find, -1 if there is none
+         */
         @VisibleForTesting
-        protected void runIntrnl() {
-            Map<String, NightbotCommand> fetchedCommands;
-            try {
-                fetchedCommands = nightbot.fetchChannelCommands(nightbotChannelId);
-            } catch (Exception e) {
-                failedCommandFetches.increment();
-                LOG.error("Failed fetch current nightbot channel commands from API. Will ignore changes...", e);
-                return;
+        protected CompletableFuture<Long> runIntrnl() {
+            // Editors recorded while this update runs belong to the next update. All are kept if it fails.
+            final long editsMark = commandEditors.beginUpdate();
+            return nightbot.fetchChannelCommandsIfChangedAsync(nightbotChannelId, commandsFetchState)
+                    .handle((fetchedCommands, e) -> {
+                        if (e != null) {
+                            onFetchFailed(unwrap(e));
+                            return commandEditors.endUpdate(editsMark, null);
+                        }
+                        return commandEditors.endUpdate(editsMark, updateCommands(fetchedCommands, editsMark));
+                    });
+        }
+
+        private void onFetchFailed(Throwable e) {
+            failedCommandFetches.increment();
+            pollScheduler.onPollFailed(pollState, e instanceof Exception ? (Exception) e : new Exception(e));
+            LOG.error("Failed fetch current nightbot channel commands of {} from API. Will ignore changes...",
+                    channelConfig.getTwitchChannel(), e);
+        }
+
+        /**
+         * @param fetchedCommands <code>null</code> if unchanged
+         * @return names of the changed commands
+         */
+        private Collection<String> updateCommands(Map<String, NightbotCommand> fetchedCommands, long editsMark) {
+            if (fetchedCommands == null) {
+                // Nothing changed, no need to parse and diff
+                skippedCommandPolls.increment();
+                pollScheduler.onPollSucceeded(pollState, false);
+                LOG.debug("Commands of {} did not change", channelConfig.getTwitchChannel());
+                return Collections.emptyList();
             }
 
-            LOG.info("Fetched {} commands from Nightbot API", fetchedCommands.size());
+            LOG.info("Fetched {} commands of {} from Nightbot API",
+                    fetchedCommands.size(), channelConfig.getTwitchChannel());
 
             // Determine command changes
-            List<NightbotCommandChange> changes = new ArrayList<>();
-
-            for (String k : fetchedCommands.keySet()) {
-                if (!commands.containsKey(k))
-                    changes.add(new NightbotCommandChange(null, fetchedCommands.get(k)));
+            final long diffStart = System.nanoTime();
+            final CommandSnapshot fetchedSnapshot = new CommandSnapshot(fetchedCommands);
+            final List<CommandListDiff.Change> changes = CommandListDiff.diff(commands.get(), fetchedSnapshot);
+            commandDiffDuration.record(System.nanoTime() - diffStart, TimeUnit.NANOSECONDS);
+
+            // Every change goes into the history, even those too many to announce
+            recordHistory(changes);
+
+            // Learn how long nightbot took to show the chat edits
+            final long foundAt = System.currentTimeMillis();
+            final CommandEditors.Edit[] chatEdits = new CommandEditors.Edit[changes.size()];
+            for (int i = 0; i < chatEdits.length; ++i) {
+                chatEdits[i] = getChatEdit(changes.get(i), editsMark);
+                if (chatEdits[i] != null) {
+                    pollScheduler.onChatEditPropagated(foundAt - chatEdits[i].recordedAt,
+                            chatEdits[i].missedUpdates > 0);
+                }
             }
 
-            for (String k : commands.keySet()) {
-                if (!fetchedCommands.containsKey(k)) {
-                    // Deleted command
-                    changes.add(new NightbotCommandChange(commands.get(k), null));
-                } else {
-                    final NightbotCommand oldCmd = commands.get(k);
-                    final NightbotCommand newCmd = fetchedCommands.get(k);
-
-                    // Check change times
-                    if (newCmd.updatedAt <= oldCmd.updatedAt)
-                        continue;
-
-                    // Check that the command actually changed, not just the count
-                    if (newCmd.message.equals(oldCmd.message)
-                            && newCmd.alias.equals(oldCmd.alias)
-                            && newCmd.userLevel.equals(oldCmd.userLevel)
-                            && newCmd.coolDown == oldCmd.coolDown) {
-                        continue;
-                    }
-
-                    // Changed command
-                    changes.add(new NightbotCommandChange(oldCmd, newCmd));
+            // Announce changes, a few one by one, bursts as digest
+            final List<CommandListDiff.Change> announcedChanges = new ArrayList<>(changes.size());
+            final List<CommandEditors.Edit> announcedChatEdits = new ArrayList<>(changes.size());
+            for (int i = 0; i < changes.size(); ++i) {
+                if (!isIgnored(changes.get(i))) {
+                    announcedChanges.add(changes.get(i));
+                    announcedChatEdits.add(chatEdits[i]);
                 }
             }
 
-            // Announce changes
-            if (changes.size() <= MAX_CHANGES_TO_ANNOUNCE) {
-                for (NightbotCommandChange change : changes) {
+            if (announcedChanges.size() <= MAX_CHANGES_TO_ANNOUNCE) {
+                for (CommandListDiff.Change change : announcedChanges) {
                     if (change.isNew())
                         onNewCommand(change.newCommand);
                     else if (change.isDeleted())
                         onDeletedCommand(change.oldCommand);
                     else if (change.isEdited())
                         onEditedCommand(change.oldCommand, change.newCommand);
+                    else if (change.isRenamed())
+                        onRenamedCommand(change.oldCommand, change.newCommand);
                 }
             } else {
-                LOG.warn("Found {} changed (new, deleted or edited) commands, which is more than the announcement " +
-                                "limit of {} changes. This is likely an error. Skipping discord announcements to prevent spam.",
-                        changes.size(), MAX_CHANGES_TO_ANNOUNCE);
+                LOG.info("Found {} changed commands of {}, announcing them as digest",
+                        announcedChanges.size(), channelConfig.getTwitchChannel());
+                onChangeDigest(announcedChanges);
+            }
+            submitAnnouncements(announcedChanges, announcedChatEdits);
+
+            commands.set(fetchedSnapshot);
+            commandsFetchState.commit();
+            saveSnapshot();
+            pollScheduler.onPollSucceeded(pollState, !changes.isEmpty());
+
+            final List<String> changedCommands = new ArrayList<>(changes.size() * 2);
+            for (CommandListDiff.Change change : changes) {
+                if (change.oldCommand != null)
+                    changedCommands.add(change.oldCommand.name);
+                if (change.newCommand != null)
+                    changedCommands.add(change.newCommand.name);
             }
+            return changedCommands;
+        }
 
-            commands = fetchedCommands;
+        /**
+         * @return the chat edit the change was made by, <code>null</code> if it was made in the dashboard
+         */
+        private CommandEditors.Edit getChatEdit(CommandListDiff.Change change, long editsMark) {
+            CommandEditors.Edit edit = null;
+            if (change.newCommand != null)
+                edit = commandEditors.getEdit(change.newCommand.name, editsMark);
+            if (edit == null && change.oldCommand != null)
+                edit = commandEditors.getEdit(change.oldCommand.name, editsMark);
+            return edit;
+        }
 
-            lastTwitchCommandEditors.clear();
+        private boolean isIgnored(CommandListDiff.Change change) {
+            if (change.isRenamed())
+                return ignoredCommands.contains(change.oldCommand.name)
+                        && ignoredCommands.contains(change.newCommand.name);
+            return ignoredCommands.contains(change.isDeleted() ? change.oldCommand.name : change.newCommand.name);
         }
 
-        protected void onNewCommand(NightbotCommand cmd) {
-            if (ignoredCommands.contains(cmd.name))
+        /**
+         * Sends the announcements of this update packed into as few messages as possible, in order and without
+         * waiting for discord. Falls back to a digest if they need more than the allowed messages per update.
+         */
+        private void submitAnnouncements(List<CommandListDiff.Change> changes, List<CommandEditors.Edit> chatEdits) {
+            List<String> messages = AnnouncementPacker.pack(pendingAnnouncements, MAX_ANNOUNCEMENT_LENGTH);
+            if (messages.size() > maxAnnouncementMessages) {
+                pendingAnnouncements.clear();
+                onChangeDigest(changes);
+                messages = AnnouncementPacker.pack(pendingAnnouncements, MAX_ANNOUNCEMENT_LENGTH);
+            }
+            pendingAnnouncements.clear();
+
+            if (messages.isEmpty())
                 return;
 
+            announcementDispatcher.dispatch(channelConfig.getDiscordChannelId(), messages, () -> {
+                for (int i = 0; i < changes.size(); ++i)
+                    recordAnnouncementLatency(changes.get(i), chatEdits.get(i));
+            });
+        }
+
+        /**
+         * Time from the chat message, or the dashboard edit as far as nightbot tells, until the change was announced
+         */
+        private void recordAnnouncementLatency(CommandListDiff.Change change, CommandEditors.Edit chatEdit) {
+            final NightbotCommand cmd = change.isDeleted() ? change.oldCommand : change.newCommand;
+            final long now = System.currentTimeMillis();
+            if (chatEdit != null)
+                chatAnnouncementLatency.record(now - chatEdit.recordedAt, TimeUnit.MILLISECONDS);
+            else if (!change.isDeleted() && cmd.updatedAt > 0)
+                dashboardAnnouncementLatency.record(Math.max(0, now - cmd.updatedAt), TimeUnit.MILLISECONDS);
+        }
+
+        protected void onNewCommand(NightbotCommand cmd) {
             String msg = announcementFormatter.formatNewCommandAnnouncement(cmd);
-            changelogChannel.createMessage(msg).block();
+            announce(msg);
         }
 
         protected void onDeletedCommand(NightbotCommand cmd) {
-            if (ignoredCommands.contains(cmd.name))
-                return;
-
             String msg = announcementFormatter.formatDeletedCommandAnnouncement(cmd);
-            changelogChannel.createMessage(msg).block();
+            announce(msg);
         }
 
         protected void onEditedCommand(NightbotCommand oldCmd, NightbotCommand newCmd) {
-            if (ignoredCommands.contains(newCmd.name))
-                return;
-
             String msg = announcementFormatter.formatEditedCommandAnnouncement(oldCmd, newCmd);
-            changelogChannel.createMessage(msg).block();
+            announce(msg);
         }
 
+        protected void onRenamedCommand(NightbotCommand oldCmd, NightbotCommand newCmd) {
+            String msg = announcementFormatter.formatRenamedCommandAnnouncement(oldCmd, newCmd);
+            announce(msg);
+        }
 
+        protected void onChangeDigest(List<CommandListDiff.Change> changes) {
+            pendingAnnouncements.addAll(announcementFormatter.formatChangeDigest(changes, maxAnnouncementMessages));
+        }
 
-
-
-        private class NightbotCommandChange {
-            NightbotCommand oldCommand;
-            NightbotCommand newCommand;
-
-            public NightbotCommandChange(NightbotCommand oldCommand, NightbotCommand newCommand) {
-                this.oldCommand = oldCommand;
-                this.newCommand = newCommand;
-            }
-
-            boolean isNew() {
-                return oldCommand == null && newCommand != null;
-            }
-
-            boolean isDeleted() {
-                return oldCommand != null && newCommand == null;
-            }
-
-            boolean isEdited() {
-                return oldCommand != null && newCommand != null;
-            }
+        private void announce(String msg) {
+            pendingAnnouncements.add(msg);
         }
     }
 
@@ -401,18 +743,97 @@ public class CommandChangelogService {
 
         String formatEditedCommandAnnouncement(NightbotCommand oldCmd, NightbotCommand newCmd) {
             String source = formatChangeSource(newCmd);
-            return "\u270F **Edited** command `" + newCmd.name + "` " + source +
-                    " to:\n" + formatCommandInfo(newCmd) + "\n" +
-                    " was before:\n" + formatCommandInfo(oldCmd);
+            String msg = "\u270F **Edited** command `" + newCmd.name + "` " + source;
+            return msg + formatEdit(oldCmd, newCmd, MAX_ANNOUNCEMENT_LENGTH - msg.length());
+        }
+
+        String formatRenamedCommandAnnouncement(NightbotCommand oldCmd, NightbotCommand newCmd) {
+            String source = formatChangeSource(newCmd);
+            String msg = "\uD83D\uDD24 **Renamed** command `" + oldCmd.name + "` to `" + newCmd.name + "` " + source;
+            if (newCmd.hasSameContentAs(oldCmd))
+                return msg + ":\n" + formatCommandInfo(newCmd);
+
+            msg += " and edited it";
+            return msg + formatEdit(oldCmd, newCmd, MAX_ANNOUNCEMENT_LENGTH - msg.length());
+        }
+
+        /**
+         * Names of the changed commands and who changed them, in at most <code>maxMessages</code> messages
+         */
+        List<String> formatChangeDigest(List<CommandListDiff.Change> changes, int maxMessages) {
+            final Map<String, List<String>> sections = new LinkedHashMap<>();
+            final List<String> added = new ArrayList<>();
+            final List<String> deleted = new ArrayList<>();
+            final List<String> edited = new ArrayList<>();
+            final List<String> renamed = new ArrayList<>();
+            sections.put("\u2728 **New:**", added);
+            sections.put("\u274C **Deleted:**", deleted);
+            sections.put("\u270F **Edited:**", edited);
+            sections.put("\uD83D\uDD24 **Renamed:**", renamed);
+
+            final List<CommandListDiff.Change> sortedChanges = new ArrayList<>(changes);
+            sortedChanges.sort(Comparator.comparing(change ->
+                    change.isDeleted() ? change.oldCommand.name : change.newCommand.name));
+
+            for (CommandListDiff.Change change : sortedChanges) {
+                if (change.isNew())
+                    added.add(formatDigestItem("`" + change.newCommand.name + "`", change.newCommand));
+                else if (change.isDeleted())
+                    deleted.add(formatDigestItem("`" + change.oldCommand.name + "`", change.oldCommand));
+                else if (change.isEdited())
+                    edited.add(formatDigestItem("`" + change.newCommand.name + "`", change.newCommand));
+                else if (change.isRenamed())
+                    renamed.add(formatDigestItem("`" + change.oldCommand.name + "` \u2192 `" +
+                            change.newCommand.name + "`", change.newCommand));
+            }
+
+            String header = "\uD83D\uDCE6 **" + changes.size() + " commands changed** at once:";
+            return AnnouncementPacker.packDigest(header, sections, MAX_ANNOUNCEMENT_LENGTH, maxMessages);
+        }
+
+        String formatDigestItem(String item, NightbotCommand cmd) {
+            String editor = getLikelyEditor(cmd);
+            return editor != null ? item + " by **" + escapeDiscordMarkdown(editor) + "**" : item;
+        }
+
+        /**
+         * The new command and what changed, as word diff of the message. Long messages only get the diff.
+         */
+        String formatEdit(NightbotCommand oldCmd, NightbotCommand newCmd, int maxLength) {
+            String settingChanges = formatSettingChanges(oldCmd, newCmd);
+
+            String msg = " to:\n" + formatCommandInfo(newCmd) + "\nChanges:\n" + settingChanges;
+            if (maxLength - msg.length() < MIN_EDIT_DIFF_LENGTH)
+                msg = ", changes:\n" + settingChanges;
+
+            return msg + MessageDiff.render(oldCmd.message, newCmd.message, maxLength - msg.length());
+        }
+
+        String formatSettingChanges(NightbotCommand oldCmd, NightbotCommand newCmd) {
+            StringBuilder changes = new StringBuilder();
+            if (!Objects.equals(oldCmd.getUserLevelName(), newCmd.getUserLevelName()))
+                changes.append("> User-Level: ~~").append(oldCmd.getUserLevelName()).append("~~ **")
+                        .append(newCmd.getUserLevelName()).append("**\n");
+            if (!Objects.equals(oldCmd.alias, newCmd.alias))
+                changes.append("> Alias: ").append(formatAlias(oldCmd.alias)).append(" \u2192 ")
+                        .append(formatAlias(newCmd.alias)).append("\n");
+            if (oldCmd.coolDown != newCmd.coolDown)
+                changes.append("> Cooldown: ~~").append(oldCmd.coolDown).append("s~~ **")
+                        .append(newCmd.coolDown).append("s**\n");
+            return changes.toString();
         }
 
         String formatCommandInfo(NightbotCommand cmd) {
-            return "> User-Level: " + cmd.userLevel + " | " +
-                    "Alias: " + (!cmd.alias.isEmpty() ? "`" + cmd.alias + "`" : "-") + " | " +
+            return "> User-Level: " + cmd.getUserLevelName() + " | " +
+                    "Alias: " + formatAlias(cmd.alias) + " | " +
                     "Cooldown: " + cmd.coolDown + "s\n" +
                     "> ```\n> " + cmd.message + "\n> ```";
         }
 
+        String formatAlias(String alias) {
+            return alias != null && !alias.isEmpty() ? "`" + alias + "`" : "-";
+        }
+
         String formatChangeSource(NightbotCommand cmd) {
             String editor = getLikelyEditor(cmd);
             if (editor != null) {
@@ -426,7 +847,16 @@ public class CommandChangelogService {
          * Returns the editor's nickname in twitch chat, or null if the command was probably edited in dashboard
          */
         String getLikelyEditor(NightbotCommand cmd) {
-            return lastTwitchCommandEditors.get(cmd.name);
+            String editor = commandEditors.get(cmd.name);
+            final CommandSnapshot previousCommands = commands.get();
+            if (editor != null || cmd.id == null || previousCommands == null)
+                return editor;
+
+            // Renamed commands may have been edited in chat under their previous name
+            final NightbotCommand previous = previousCommands.getById(cmd.id);
+            if (previous != null && !previous.name.equals(cmd.name))
+                editor = commandEditors.get(previous.name);
+            return editor;
         }
     }
 }
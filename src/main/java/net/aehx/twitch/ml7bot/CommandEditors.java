@@ -0,0 +1,127 @@
+package net.aehx.twitch.ml7bot;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Twitch chat users who recently modified a command, until a commands update has attributed the change to them.
+ *
+ * <p>
+ *     Lock-free: chat handling only puts, and never waits for an update in progress. Every edit gets a sequence
+ *     number, and an update only forgets the edits recorded before it started. An edit made in chat while an update
+ *     runs is kept for the next update, even if it is for a command the running update attributes. Only one update
+ *     may run at a time.
+ * </p>
+ * <p>
+ *     The nightbot api may not show a chat edit yet when the next update runs, so an edit of a command that did not
+ *     change is kept for a while instead of being forgotten after the first update.
+ * </p>
+ */
+class CommandEditors {
+
+    /** Edits that no update found a change for are dropped after this, e.g. if nightbot rejected them */
+    static final long MAX_UNATTRIBUTED_EDIT_AGE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final ConcurrentHashMap<String, Edit> edits = new ConcurrentHashMap<>(4);
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongSupplier clock;
+
+
+    CommandEditors() {
+        this(System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    CommandEditors(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    void record(String command, String username) {
+        edits.put(command, new Edit(username, sequence.incrementAndGet(), clock.getAsLong()));
+    }
+
+    /**
+     * @return the user who last modified the command in chat, <code>null</code> if none did
+     */
+    String get(String command) {
+        final Edit edit = edits.get(command);
+        return edit != null ? edit.username : null;
+    }
+
+    /**
+     * @return the last chat edit of the command, if it was recorded before the update with the given mark started
+     */
+    Edit getEdit(String command, long mark) {
+        final Edit edit = edits.get(command);
+        return edit != null && edit.sequence <= mark ? edit : null;
+    }
+
+    /**
+     * @return mark to pass to {@link #endUpdate}
+     */
+    long beginUpdate() {
+        return sequence.get();
+    }
+
+    /**
+     * Forgets the edits until <code>mark</code> of the changed commands, and those too old to still show up
+     *
+     * @param changedCommands names of the commands the update found changed (both names of renamed commands), or
+     *                        <code>null</code> if it could not get the commands
+     * @return time of the oldest edit until <code>mark</code> the update did not find, -1 if there is none
+     */
+    long endUpdate(long mark, Collection<String> changedCommands) {
+        if (changedCommands == null || edits.isEmpty())
+            return -1;
+
+        for (String command : changedCommands) {
+            // Conditional removal, never drops a newer edit of the same command
+            final Edit edit = edits.get(command);
+            if (edit != null && edit.sequence <= mark)
+                edits.remove(command, edit);
+        }
+
+        final long expiredBefore = clock.getAsLong() - MAX_UNATTRIBUTED_EDIT_AGE_MILLIS;
+        edits.values().removeIf(edit -> edit.sequence <= mark && edit.recordedAt < expiredBefore);
+
+        long oldestPendingAt = -1;
+        for (Edit edit : edits.values()) {
+            if (edit.sequence > mark)
+                continue;
+
+            ++edit.missedUpdates;
+            if (oldestPendingAt < 0 || edit.recordedAt < oldestPendingAt)
+                oldestPendingAt = edit.recordedAt;
+        }
+        return oldestPendingAt;
+    }
+
+    @VisibleForTesting
+    boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    void clear() {
+        edits.clear();
+    }
+
+    static class Edit {
+        final String username;
+        final long sequence;
+        final long recordedAt;
+
+        /** Updates that did not find this edit yet. Only changed by the running update. */
+        volatile int missedUpdates;
+
+        Edit(String username, long sequence, long recordedAt) {
+            this.username = username;
+            this.sequence = sequence;
+            this.recordedAt = recordedAt;
+        }
+    }
+}
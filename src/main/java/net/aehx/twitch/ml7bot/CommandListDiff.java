@@ -0,0 +1,98 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds new, deleted, edited and renamed commands between two {@link CommandSnapshot}s, matched by command id.
+ *
+ * <p>
+ *     One lookup per new command. A changed name is a rename. Otherwise only commands with a newer
+ *     <code>updatedAt</code> are compared. A different {@link NightbotCommand#getContentFingerprint() content
+ *     fingerprint} is an edit right away; equal ones are confirmed field by field, so count-only updates cost one
+ *     string comparison each and a hash collision can't hide an edit. Deleted commands are only searched for if not
+ *     every old command was found. Nothing is allocated unless something changed.
+ * </p>
+ */
+public final class CommandListDiff {
+
+    private CommandListDiff() {
+    }
+
+    /**
+     * @return changes, deleted commands last
+     */
+    public static List<Change> diff(CommandSnapshot oldSnapshot, CommandSnapshot newSnapshot) {
+        final Map<String, NightbotCommand> oldCommands = oldSnapshot.getCommandsById();
+        final Map<String, NightbotCommand> newCommands = newSnapshot.getCommandsById();
+        List<Change> changes = null;
+
+        int found = 0;
+        for (Map.Entry<String, NightbotCommand> entry : newCommands.entrySet()) {
+            final NightbotCommand newCmd = entry.getValue();
+            final NightbotCommand oldCmd = oldCommands.get(entry.getKey());
+
+            if (oldCmd == null) {
+                changes = add(changes, new Change(null, newCmd));
+                continue;
+            }
+
+            ++found;
+            if (!newCmd.name.equals(oldCmd.name)) {
+                changes = add(changes, new Change(oldCmd, newCmd));
+            } else if (newCmd.updatedAt > oldCmd.updatedAt && !newCmd.hasSameContentAs(oldCmd)) {
+                changes = add(changes, new Change(oldCmd, newCmd));
+            }
+        }
+
+        if (found < oldCommands.size()) {
+            for (Map.Entry<String, NightbotCommand> entry : oldCommands.entrySet()) {
+                if (!newCommands.containsKey(entry.getKey()))
+                    changes = add(changes, new Change(entry.getValue(), null));
+            }
+        }
+
+        return changes != null ? changes : Collections.emptyList();
+    }
+
+    private static List<Change> add(List<Change> changes, Change change) {
+        if (changes == null)
+            changes = new ArrayList<>(4);
+        changes.add(change);
+        return changes;
+    }
+
+
+    public static class Change {
+        public final NightbotCommand oldCommand;
+        public final NightbotCommand newCommand;
+
+        public Change(NightbotCommand oldCommand, NightbotCommand newCommand) {
+            this.oldCommand = oldCommand;
+            this.newCommand = newCommand;
+        }
+
+        public boolean isNew() {
+            return oldCommand == null && newCommand != null;
+        }
+
+        public boolean isDeleted() {
+            return oldCommand != null && newCommand == null;
+        }
+
+        public boolean isEdited() {
+            return oldCommand != null && newCommand != null && oldCommand.name.equals(newCommand.name);
+        }
+
+        /**
+         * Renamed, and maybe edited as well
+         */
+        public boolean isRenamed() {
+            return oldCommand != null && newCommand != null && !oldCommand.name.equals(newCommand.name);
+        }
+    }
+}
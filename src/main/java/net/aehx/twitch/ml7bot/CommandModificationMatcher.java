@@ -0,0 +1,188 @@
+package net.aehx.twitch.ml7bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds moderator messages that modify (add/edit/delete) chat commands and extracts the modified command.
+ *
+ * <p>
+ *     This is a hand-rolled replacement for running a list of regular expressions against every chat message.
+ *     Almost no chat message starts with one of the registered keywords, so most messages are rejected after
+ *     looking at their first character. Candidates are matched in a single left-to-right scan without creating
+ *     a {@link java.util.regex.Matcher}; the only allocation is the returned command token.
+ * </p>
+ *
+ * <p>
+ *     A syntax is a sequence of words, each with one or more (ASCII, case-insensitive) alternatives. The words
+ *     must be separated by whitespace and followed by whitespace and the modified command, e.g.
+ *     <pre>builder().register("!addcom|!editcom|!delcom").build()</pre>
+ *     matches the same messages as <code>^!(add|edit|del)com\s+(?&lt;command&gt;[^\s]+)</code>.
+ * </p>
+ *
+ * <p>Syntaxes are registered with a {@link Builder}. The built matcher is immutable and can be shared by threads.</p>
+ */
+public final class CommandModificationMatcher {
+
+    private static final int ASCII_RANGE = 128;
+
+    private final char[][][][] syntaxes;
+
+    /** Lower-case ASCII characters any registered syntax may start with */
+    private final boolean[] leadingChars = new boolean[ASCII_RANGE];
+
+
+    private CommandModificationMatcher(List<char[][][]> syntaxes) {
+        this.syntaxes = syntaxes.toArray(new char[0][][][]);
+        for (char[][][] syntax : this.syntaxes) {
+            for (char[] alternative : syntax[0])
+                leadingChars[alternative[0]] = true;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder with the legacy <code>!addcom/!editcom/!delcom</code> and the current
+     * <code>!commands add/edit/delete</code> syntax (https://docs.nightbot.tv/commands/commands).
+     */
+    public static Builder defaultBuilder() {
+        return builder()
+                .register("!addcom|!editcom|!delcom")
+                .register("!commands", "add|edit|delete");
+    }
+
+    /**
+     * Matcher for the syntaxes of {@link #defaultBuilder()}
+     */
+    public static CommandModificationMatcher createDefault() {
+        return defaultBuilder().build();
+    }
+
+    /**
+     * Returns the modified command if the message matches one of the registered syntaxes, otherwise
+     * <code>null</code>.
+     */
+    public String match(String message) {
+        if (message.isEmpty())
+            return null;
+
+        char first = toLowerAscii(message.charAt(0));
+        if (first >= ASCII_RANGE || !leadingChars[first])
+            return null;
+
+        for (char[][][] syntax : syntaxes) {
+            int pos = matchWords(syntax, message);
+            if (pos < 0)
+                continue;
+
+            int end = pos;
+            while (end < message.length() && !isWhitespace(message.charAt(end)))
+                ++end;
+
+            return message.substring(pos, end);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return start index of the modified command, or -1 if the words of the syntax do not match
+     */
+    private static int matchWords(char[][][] syntax, String message) {
+        int pos = 0;
+        for (char[][] alternatives : syntax) {
+            pos = matchAlternative(alternatives, message, pos);
+            if (pos < 0)
+                return -1;
+
+            while (pos < message.length() && isWhitespace(message.charAt(pos)))
+                ++pos;
+        }
+
+        // Command must not be empty
+        return pos < message.length() ? pos : -1;
+    }
+
+    /**
+     * @return end index of the first alternative that matches at <code>offset</code> and is followed by whitespace,
+     *         or -1
+     */
+    private static int matchAlternative(char[][] alternatives, String message, int offset) {
+        outer:
+        for (char[] alternative : alternatives) {
+            // At least one whitespace must follow every word
+            if (offset + alternative.length >= message.length()
+                    || !isWhitespace(message.charAt(offset + alternative.length)))
+                continue;
+
+            for (int i = 0; i < alternative.length; ++i) {
+                if (toLowerAscii(message.charAt(offset + i)) != alternative[i])
+                    continue outer;
+            }
+
+            return offset + alternative.length;
+        }
+
+        return -1;
+    }
+
+    private static char toLowerAscii(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Same set of characters as <code>\s</code> in {@link java.util.regex.Pattern}
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+
+    public static class Builder {
+
+        private final List<char[][][]> syntaxes = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Registers a new syntax
+         *
+         * @param words the words preceding the modified command. Alternatives of a word are separated by '|'.
+         */
+        public Builder register(String... words) {
+            if (words == null || words.length == 0)
+                throw new IllegalArgumentException("At least one word is required");
+
+            char[][][] syntax = new char[words.length][][];
+            for (int i = 0; i < words.length; ++i) {
+                String[] alternatives = words[i].split("\\|");
+                syntax[i] = new char[alternatives.length][];
+                for (int j = 0; j < alternatives.length; ++j) {
+                    String alternative = alternatives[j];
+                    if (alternative.isEmpty())
+                        throw new IllegalArgumentException("Empty alternative in word '" + words[i] + "'");
+
+                    for (int k = 0; k < alternative.length(); ++k) {
+                        char c = alternative.charAt(k);
+                        if (c >= ASCII_RANGE || isWhitespace(c))
+                            throw new IllegalArgumentException("Invalid character in word '" + words[i] + "'");
+                    }
+
+                    syntax[i][j] = alternative.toLowerCase(Locale.ROOT).toCharArray();
+                }
+            }
+
+            syntaxes.add(syntax);
+            return this;
+        }
+
+        public CommandModificationMatcher build() {
+            return new CommandModificationMatcher(syntaxes);
+        }
+    }
+}
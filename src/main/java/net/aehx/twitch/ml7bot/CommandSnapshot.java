@@ -0,0 +1,67 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command list of a channel at one sync, keyed by the nightbot command id, with a secondary name index. The id stays
+ * the same when a command is renamed, so renames can be told apart from a delete plus an add.
+ *
+ * <p>Must not be modified after creation, also not through the name map it was created from.</p>
+ */
+public final class CommandSnapshot {
+
+    public static final CommandSnapshot EMPTY = new CommandSnapshot(Collections.emptyMap());
+
+    private final Map<String, NightbotCommand> byId;
+    private final Map<String, NightbotCommand> byName;
+
+
+    /**
+     * @param commandsByName name -> command, as returned by the nightbot api. Used as the name index as is.
+     */
+    public CommandSnapshot(Map<String, NightbotCommand> commandsByName) {
+        byName = commandsByName;
+        byId = new HashMap<>((int) (commandsByName.size() / 0.75f) + 1);
+        for (NightbotCommand cmd : commandsByName.values())
+            byId.put(key(cmd), cmd);
+    }
+
+    /**
+     * Id of the command, or its name for commands without one
+     */
+    static String key(NightbotCommand cmd) {
+        return cmd.id != null ? cmd.id : cmd.name;
+    }
+
+    public NightbotCommand getById(String id) {
+        return byId.get(id);
+    }
+
+    public NightbotCommand getByName(String name) {
+        return byName.get(name);
+    }
+
+    public boolean containsId(String id) {
+        return byId.containsKey(id);
+    }
+
+    /**
+     * @return id -> command
+     */
+    Map<String, NightbotCommand> getCommandsById() {
+        return byId;
+    }
+
+    public Collection<NightbotCommand> getCommands() {
+        return byId.values();
+    }
+
+    public int size() {
+        return byId.size();
+    }
+}
@@ -0,0 +1,75 @@
+package net.aehx.twitch.ml7bot;
+
+import discord4j.common.store.Store;
+import discord4j.common.store.impl.LocalStoreLayout;
+import discord4j.common.store.impl.StorageBackend;
+import discord4j.common.store.impl.StorageConfig;
+import discord4j.core.shard.GatewayBootstrap;
+import discord4j.core.shard.MemberRequestFilter;
+import discord4j.gateway.GatewayOptions;
+import discord4j.gateway.intent.Intent;
+import discord4j.gateway.intent.IntentSet;
+
+/**
+ * Which gateway events the bot receives from discord and which entities it caches.
+ *
+ * <p>
+ *     The bot only reads messages in guild channels and DMs, and looks up channels and users. With the
+ *     {@link #DEFAULT} profile, discord sends every non-privileged event (voice states, reactions, typing, emojis,
+ *     invites, ...) of every guild the bot is in, and every one of them ends up in the entity store, including each
+ *     message. In large guilds, that is most of the heap. {@link #LEAN} only subscribes to the intents the bot needs,
+ *     never requests guild members and keeps at most a configured number of messages and users. Members, presences,
+ *     voice states, roles and emojis are not stored at all. Everything else is fetched over REST when needed.
+ * </p>
+ */
+public enum DiscordGatewayProfile {
+
+    /** Discord4J's defaults: all non-privileged intents, everything cached */
+    DEFAULT,
+
+    /** Only guilds and messages, bounded message and user cache, no member requests */
+    LEAN;
+
+    public IntentSet getIntents() {
+        if (this == LEAN)
+            return IntentSet.of(Intent.GUILDS, Intent.GUILD_MESSAGES, Intent.DIRECT_MESSAGES);
+        return IntentSet.nonPrivileged();
+    }
+
+    /**
+     * @param cachedMessages messages and users kept by the {@link #LEAN} store
+     */
+    public Store createStore(int cachedMessages) {
+        if (this == LEAN) {
+            // Guilds and channels stay cached for the lookups, users as many as the authors of the cached messages.
+            // Caffeine evicts immediately at size 0, so the rest is never kept.
+            return Store.fromLayout(LocalStoreLayout.create(StorageConfig.builder()
+                    .setMessageBackend(bounded(cachedMessages))
+                    .setUserBackend(bounded(cachedMessages))
+                    .setMemberBackend(bounded(0))
+                    .setPresenceBackend(bounded(0))
+                    .setVoiceStateBackend(bounded(0))
+                    .setRoleBackend(bounded(0))
+                    .setEmojiBackend(bounded(0))
+                    .build()));
+        }
+        return Store.fromLayout(LocalStoreLayout.create());
+    }
+
+    private static StorageBackend bounded(long maximumSize) {
+        return StorageBackend.caffeine(caffeine -> caffeine.maximumSize(maximumSize));
+    }
+
+    /**
+     * @param cachedMessages messages kept by the {@link #LEAN} store
+     */
+    public GatewayBootstrap<GatewayOptions> configure(GatewayBootstrap<GatewayOptions> gateway, int cachedMessages) {
+        if (this != LEAN)
+            return gateway;
+
+        return gateway
+                .setEnabledIntents(getIntents())
+                .setMemberRequestFilter(MemberRequestFilter.none())
+                .setStore(createStore(cachedMessages));
+    }
+}
@@ -0,0 +1,163 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import discord4j.core.object.entity.channel.MessageChannel;
+import discord4j.rest.http.client.ClientException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Sends discord messages without parking any thread on the REST calls. Shared by the modmail and all command
+ * changelog channels.
+ *
+ * <p>
+ *     Every message times out after the configured time and is retried with backoff, unless discord rejected it
+ *     (4xx other than 429). Discord4J itself already waits for rate limits. Sends submitted together are run one
+ *     after another in order, batches are run concurrently up to the configured limit. Failures are logged and
+ *     counted, but never reach the submitter.
+ * </p>
+ */
+public class DiscordMessageSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiscordMessageSender.class);
+
+    private static final Duration MIN_RETRY_BACKOFF = Duration.ofSeconds(1);
+
+    private final Duration timeout;
+    private final int maxRetries;
+
+    private final Sinks.Many<List<Mono<Void>>> batches;
+    private final Mono<Void> completion;
+    private final AtomicInteger queuedMessages;
+
+    // Metrics
+    private final Counter sentMessages;
+    private final Counter failedMessages;
+    private final Counter failedAttempts;
+    private final Timer sendDuration;
+
+
+    public DiscordMessageSender(int maxConcurrency, Duration timeout, int maxRetries, MetricsService metricsService) {
+        this.timeout = timeout;
+        this.maxRetries = maxRetries;
+
+        queuedMessages = new AtomicInteger();
+        batches = Sinks.many().unicast().onBackpressureBuffer();
+        completion = batches.asFlux()
+                .flatMap(this::sendBatch, maxConcurrency)
+                .then()
+                .cache();
+        completion.subscribe();
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        registry.gauge("discord_messages_queued", queuedMessages, AtomicInteger::get);
+        sentMessages = registry.counter("discord_messages_sent");
+        failedMessages = registry.counter("discord_messages_failed");
+        failedAttempts = registry.counter("discord_message_failed_attempts");
+        sendDuration = Timer.builder("discord_message_send_duration")
+                .description("Time from the first attempt to send a message until discord accepted it")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+    }
+
+    /**
+     * Queues the sends (usually of {@link #send}) to be run in order. Never blocks.
+     */
+    public void submit(List<Mono<Void>> sends) {
+        if (sends.isEmpty())
+            return;
+
+        queuedMessages.addAndGet(sends.size());
+
+        final Sinks.EmitResult result;
+        synchronized (batches) {
+            // Emissions have to be serialized, submitters run on many threads
+            result = batches.tryEmitNext(sends);
+        }
+
+        if (result.isFailure()) {
+            queuedMessages.addAndGet(-sends.size());
+            failedMessages.increment(sends.size());
+            LOG.warn("Dropped {} discord messages: {}", sends.size(), result);
+        }
+    }
+
+    /**
+     * @return sends the message when subscribed. Completes when discord accepted it, or errors once it timed out or
+     *         failed for good.
+     */
+    public Mono<Void> send(MessageChannel channel, String message) {
+        return send(channel::createMessage, message);
+    }
+
+    Mono<Void> send(Function<String, Mono<?>> target, String message) {
+        return Mono.defer(() -> {
+            final long start = System.nanoTime();
+            return Mono.defer(() -> target.apply(message))
+                    .timeout(timeout)
+                    .doOnError(e -> failedAttempts.increment())
+                    .retryWhen(Retry.backoff(maxRetries, MIN_RETRY_BACKOFF)
+                            .filter(DiscordMessageSender::isRetryable))
+                    .doOnSuccess(sent -> {
+                        sentMessages.increment();
+                        sendDuration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    })
+                    .doOnError(e -> {
+                        failedMessages.increment();
+                        LOG.error("Failed to send discord message: {}", message, e);
+                    })
+                    .then();
+        });
+    }
+
+    /**
+     * Stops accepting messages and waits until the queued ones were sent
+     */
+    public void stop(Duration maxWait) {
+        synchronized (batches) {
+            batches.tryEmitComplete();
+        }
+
+        try {
+            completion.block(maxWait);
+        } catch (RuntimeException e) {
+            LOG.warn("{} discord messages were not sent before shutdown", queuedMessages.get());
+        }
+    }
+
+    public int getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    private Mono<Void> sendBatch(List<Mono<Void>> batch) {
+        return Flux.fromIterable(batch)
+                .concatMap(send -> send
+                        .onErrorResume(e -> Mono.empty())
+                        .doFinally(signal -> queuedMessages.decrementAndGet()))
+                .then();
+    }
+
+    /**
+     * Rejected requests won't succeed on a retry. Rate limits are usually already waited for by Discord4J.
+     */
+    static boolean isRetryable(Throwable e) {
+        if (!(e instanceof ClientException))
+            return true;
+
+        final int status = ((ClientException) e).getStatus().code();
+        return status >= 500 || status == 429;
+    }
+}
@@ -9,6 +9,7 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.Locale;
 
 public class ML7Bot {
 
@@ -17,8 +18,9 @@ public class ML7Bot {
     private static MetricsService metricsService;
     private static DiscordClient discordClient;
     private static GatewayDiscordClient discordGateway;
+    private static DiscordMessageSender discordMessageSender;
     private static ModMailService modMailService;
-    private static CommandChangelogService commandChangelogService;
+    private static CommandChangelogManager commandChangelogManager;
 
     public static void main(final String[] args) throws Exception {
         if (args.length == 0) {
@@ -36,14 +38,21 @@ public class ML7Bot {
 
         connectDiscord(config);
 
+        discordMessageSender = new DiscordMessageSender(
+                config.getDiscordMessagesConcurrency(),
+                Duration.ofMillis(config.getDiscordMessagesTimeoutMillis()),
+                config.getDiscordMessagesRetries(),
+                metricsService);
+
         if (config.getModMailEnabled()) {
-            modMailService = new ModMailService(config, discordGateway);
+            modMailService = new ModMailService(config, discordGateway, discordMessageSender, metricsService);
             modMailService.start();
         }
 
         if (config.getCommandChangelogEnabled()) {
-            commandChangelogService = new CommandChangelogService(config, discordGateway, metricsService);
-            commandChangelogService.start();
+            commandChangelogManager = new CommandChangelogManager(config, discordGateway, discordMessageSender,
+                    metricsService);
+            commandChangelogManager.start();
 
             LOG.info("Command changelog log service started.");
         }
@@ -51,7 +60,10 @@ public class ML7Bot {
         final Thread mainThread = Thread.currentThread();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Stopping command changelog service...");
-            commandChangelogService.stop();
+            commandChangelogManager.stop();
+
+            System.out.println("Sending queued discord messages...");
+            discordMessageSender.stop(Duration.ofSeconds(30));
 
             System.out.println("Stopping discord client...");
             discordGateway.logout().block();
@@ -74,11 +86,15 @@ public class ML7Bot {
 
         discordClient = DiscordClient.builder(config.getDiscordToken())
             .build();
-        discordGateway = discordClient.login().block(Duration.ofMinutes(1));
+
+        final DiscordGatewayProfile profile = config.getDiscordGatewayProfile();
+        discordGateway = profile.configure(discordClient.gateway(), config.getDiscordGatewayCachedMessages())
+                .login()
+                .block(Duration.ofMinutes(1));
 
         if (discordGateway == null)
             throw new RuntimeException("Could not create discord gateway");
 
-        LOG.info("Connected to discord.");
+        LOG.info("Connected to discord with {} gateway profile.", profile.name().toLowerCase(Locale.ROOT));
     }
 }
@@ -0,0 +1,303 @@
+package net.aehx.twitch.ml7bot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Word-level diff of two command messages, rendered as Discord markdown: one quoted line per group of nearby changes,
+ * removed words <code>~~struck~~</code>, added words <code>**bold**</code>, with a few words of context.
+ *
+ * <p>
+ *     Words are compared by id after stripping the common prefix and suffix. The remaining middle is diffed with
+ *     Myers' algorithm, which costs O((N+M)·D) for D edits. D is capped at {@link #MAX_EDIT_DISTANCE}, beyond that
+ *     the whole middle is shown as replaced. Single spans are abbreviated to {@link #MAX_SPAN_CHARS} and lines that
+ *     don't fit the length limit are summarized, so the output never exceeds it.
+ * </p>
+ */
+public final class MessageDiff {
+
+    /** Most edits diffed word by word. Messages differing more are shown as one replacement. */
+    static final int MAX_EDIT_DISTANCE = 200;
+
+    /** Unchanged words shown before and after changes */
+    static final int CONTEXT_WORDS = 3;
+
+    /** Longest context, removed or added span, before escaping */
+    static final int MAX_SPAN_CHARS = 120;
+
+    private static final String[] NO_WORDS = new String[0];
+
+    private MessageDiff() {
+    }
+
+    /**
+     * @return changed spans, one quoted line each, at most <code>maxLength</code> chars. Empty if the messages are
+     *         equal.
+     */
+    public static String render(String oldMessage, String newMessage, int maxLength) {
+        if (Objects.equals(oldMessage, newMessage))
+            return "";
+
+        final String[] oldWords = split(oldMessage);
+        final String[] newWords = split(newMessage);
+        final List<Change> changes = diff(oldWords, newWords);
+
+        if (changes.isEmpty())
+            return fit("> _whitespace only_", maxLength);
+
+        final int longestNote = formatMoreChanges(changes.size()).length();
+
+        final StringBuilder out = new StringBuilder(Math.min(maxLength, 1024));
+        int first = 0;
+        while (first < changes.size()) {
+            // Changes with little unchanged text in between share a line
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1).oldStart - changes.get(last).oldEnd <= 2 * CONTEXT_WORDS)
+                ++last;
+
+            final String line = renderLine(oldWords, newWords, changes, first, last);
+            final int separator = out.length() > 0 ? 1 : 0;
+            final int reserve = last + 1 < changes.size() ? 1 + longestNote : 0;
+            if (out.length() + separator + line.length() + reserve > maxLength)
+                break;
+
+            if (separator > 0)
+                out.append('\n');
+            out.append(line);
+            first = last + 1;
+        }
+
+        if (first < changes.size()) {
+            final String more = formatMoreChanges(changes.size() - first);
+            if (out.length() > 0 && out.length() + 1 + more.length() <= maxLength)
+                out.append('\n').append(more);
+            else if (out.length() == 0)
+                out.append(fit(more, maxLength));
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * @return changed spans in order, as word indices
+     */
+    static List<Change> diff(String[] oldWords, String[] newWords) {
+        // Compare ints instead of strings
+        final Map<String, Integer> ids = new HashMap<>((oldWords.length + newWords.length) * 2);
+        final int[] a = toIds(oldWords, ids);
+        final int[] b = toIds(newWords, ids);
+
+        final boolean[] deleted = new boolean[a.length];
+        final boolean[] inserted = new boolean[b.length];
+
+        int prefix = 0;
+        while (prefix < a.length && prefix < b.length && a[prefix] == b[prefix])
+            ++prefix;
+
+        int suffix = 0;
+        while (suffix < a.length - prefix && suffix < b.length - prefix
+                && a[a.length - 1 - suffix] == b[b.length - 1 - suffix])
+            ++suffix;
+
+        if (!markEdits(a, prefix, a.length - suffix, b, prefix, b.length - suffix, deleted, inserted)) {
+            // Too different, show the whole middle as replaced
+            Arrays.fill(deleted, prefix, a.length - suffix, true);
+            Arrays.fill(inserted, prefix, b.length - suffix, true);
+        }
+
+        final List<Change> changes = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !deleted[i] && !inserted[j]) {
+                ++i;
+                ++j;
+                continue;
+            }
+
+            final int oldStart = i, newStart = j;
+            while (i < a.length && deleted[i])
+                ++i;
+            while (j < b.length && inserted[j])
+                ++j;
+            changes.add(new Change(oldStart, i, newStart, j));
+        }
+
+        return changes;
+    }
+
+    /**
+     * Myers' greedy diff of <code>a[aStart, aEnd)</code> and <code>b[bStart, bEnd)</code>
+     *
+     * @return false if they differ in more than {@link #MAX_EDIT_DISTANCE} words, nothing is marked then
+     */
+    private static boolean markEdits(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd,
+                                     boolean[] deleted, boolean[] inserted) {
+        final int n = aEnd - aStart;
+        final int m = bEnd - bStart;
+        final int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+        final int offset = max + 1;
+
+        // v[offset + k]: furthest x on diagonal k = x - y. trace.get(d) is v before step d.
+        int[] v = new int[2 * max + 3];
+        final List<int[]> trace = new ArrayList<>();
+
+        for (int d = 0; d <= max; ++d) {
+            trace.add(v.clone());
+
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]))
+                    x = v[offset + k + 1];
+                else
+                    x = v[offset + k - 1] + 1;
+
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    ++x;
+                    ++y;
+                }
+                v[offset + k] = x;
+
+                if (x >= n && y >= m) {
+                    backtrack(trace, offset, d, n, m, aStart, bStart, deleted, inserted);
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static void backtrack(List<int[]> trace, int offset, int edits, int x, int y, int aStart, int bStart,
+                                  boolean[] deleted, boolean[] inserted) {
+        for (int d = edits; d > 0; --d) {
+            final int[] v = trace.get(d);
+            final int k = x - y;
+
+            final int prevK;
+            if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]))
+                prevK = k + 1;
+            else
+                prevK = k - 1;
+
+            final int prevX = v[offset + prevK];
+            final int prevY = prevX - prevK;
+
+            // Skip the equal words of the snake, then the edit that led to it
+            while (x > prevX && y > prevY) {
+                --x;
+                --y;
+            }
+
+            if (x == prevX)
+                inserted[bStart + prevY] = true;
+            else
+                deleted[aStart + prevX] = true;
+
+            x = prevX;
+            y = prevY;
+        }
+    }
+
+    private static String renderLine(String[] oldWords, String[] newWords, List<Change> changes, int first, int last) {
+        final List<String> parts = new ArrayList<>();
+
+        final int contextStart = Math.max(0, changes.get(first).oldStart - CONTEXT_WORDS);
+        if (contextStart > 0)
+            parts.add("…");
+        addText(parts, oldWords, contextStart, changes.get(first).oldStart, "");
+
+        for (int i = first; i <= last; ++i) {
+            final Change change = changes.get(i);
+            if (i > first)
+                addText(parts, oldWords, changes.get(i - 1).oldEnd, change.oldStart, "");
+
+            addText(parts, oldWords, change.oldStart, change.oldEnd, "~~");
+            addText(parts, newWords, change.newStart, change.newEnd, "**");
+        }
+
+        final int contextEnd = Math.min(oldWords.length, changes.get(last).oldEnd + CONTEXT_WORDS);
+        addText(parts, oldWords, changes.get(last).oldEnd, contextEnd, "");
+        if (contextEnd < oldWords.length)
+            parts.add("…");
+
+        return "> " + String.join(" ", parts);
+    }
+
+    private static void addText(List<String> parts, String[] words, int start, int end, String markup) {
+        if (start >= end)
+            return;
+
+        final String text = abbreviate(String.join(" ", Arrays.asList(words).subList(start, end)));
+        parts.add(markup + CommandChangelogService.escapeDiscordMarkdown(text) + markup);
+    }
+
+    /**
+     * Keeps both ends of long spans
+     */
+    private static String abbreviate(String text) {
+        if (text.length() <= MAX_SPAN_CHARS)
+            return text;
+
+        int headEnd = MAX_SPAN_CHARS / 2;
+        int tailStart = text.length() - MAX_SPAN_CHARS / 2;
+        if (Character.isHighSurrogate(text.charAt(headEnd - 1)))
+            --headEnd;
+        if (Character.isLowSurrogate(text.charAt(tailStart)))
+            ++tailStart;
+
+        return text.substring(0, headEnd) + " … " + text.substring(tailStart);
+    }
+
+    private static String formatMoreChanges(int count) {
+        return "> … " + count + (count == 1 ? " more change" : " more changes");
+    }
+
+    private static String fit(String line, int maxLength) {
+        return line.length() <= maxLength ? line : "";
+    }
+
+    private static String[] split(String message) {
+        if (message == null)
+            return NO_WORDS;
+
+        final String trimmed = message.trim();
+        return trimmed.isEmpty() ? NO_WORDS : trimmed.split("\\s+");
+    }
+
+    private static int[] toIds(String[] words, Map<String, Integer> ids) {
+        final int[] result = new int[words.length];
+        for (int i = 0; i < words.length; ++i) {
+            Integer id = ids.get(words[i]);
+            if (id == null) {
+                id = ids.size();
+                ids.put(words[i], id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Words <code>[oldStart, oldEnd)</code> of the old message were replaced by <code>[newStart, newEnd)</code> of
+     * the new one. Either may be empty.
+     */
+    static class Change {
+        final int oldStart;
+        final int oldEnd;
+        final int newStart;
+        final int newEnd;
+
+        Change(int oldStart, int oldEnd, int newStart, int newEnd) {
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package net.aehx.twitch.ml7bot;
 
 import net.aehx.twitch.ml7bot.config.Config;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.store.ModMailThreadStore;
 import discord4j.common.util.Snowflake;
 import discord4j.core.GatewayDiscordClient;
 import discord4j.core.event.domain.message.MessageCreateEvent;
 import discord4j.core.object.entity.Message;
 import discord4j.core.object.entity.User;
-import discord4j.core.object.entity.channel.Channel;
 import discord4j.core.object.entity.channel.GuildMessageChannel;
-import discord4j.core.object.entity.channel.MessageChannel;
-import discord4j.core.object.entity.channel.PrivateChannel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,14 +29,67 @@ public class ModMailService {
 
     private final static Logger LOG = LoggerFactory.getLogger(ModMailService.class);
 
+    private static final Pattern USER_ID_PATTERN =
+            Pattern.compile("\\*\\*User [^ ]+ \\(Id: (\\d+)\\) sent message:.*", Pattern.DOTALL);
+
     private final Config config;
     private final GatewayDiscordClient discord;
+    private final DiscordMessageSender messageSender;
     private GuildMessageChannel modMailChannel;
 
+    /** Relayed DMs, null to only find users by the id in the relayed message */
+    private final ModMailThreadStore threadStore;
+    /** user id -> DM channel id, least recently used first */
+    private final Map<Long, Long> privateChannelIds;
+
+    // Metrics
+    private final Counter ignoredMessages;
+    private final Counter privateChannelLookups;
+    private final Timer privateMessageLatency;
+    private final Timer replyLatency;
+
 
-    public ModMailService(Config config, GatewayDiscordClient discord) {
+    public ModMailService(Config config, GatewayDiscordClient discord, DiscordMessageSender messageSender,
+                          MetricsService metricsService) {
         this.config = config;
         this.discord = discord;
+        this.messageSender = messageSender;
+
+        threadStore = createThreadStore(metricsService);
+
+        final int privateChannelCacheSize = config.getModMailPrivateChannelCacheSize();
+        privateChannelIds = Collections.synchronizedMap(new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > privateChannelCacheSize;
+            }
+        });
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        ignoredMessages = registry.counter("modmail_ignored_messages");
+        privateChannelLookups = registry.counter("modmail_private_channel_lookups");
+        privateMessageLatency = createLatencyTimer(registry, "private_message");
+        replyLatency = createLatencyTimer(registry, "reply");
+    }
+
+    private ModMailThreadStore createThreadStore(MetricsService metricsService) {
+        if (config.getModMailThreadsDir().isEmpty())
+            return null;
+
+        try {
+            return new ModMailThreadStore(Paths.get(config.getModMailThreadsDir()), metricsService);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open mod mail thread store in " +
+                    "'" + config.getModMailThreadsDir() + "'", e);
+        }
+    }
+
+    private static Timer createLatencyTimer(MeterRegistry registry, String path) {
+        return Timer.builder("modmail_handle_latency")
+                .description("Time from receiving a message until it was relayed")
+                .tag("path", path)
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
     }
 
     public void start() {
@@ -41,83 +103,160 @@ public class ModMailService {
         LOG.info("Found mod mail channel");
 
 
-        discord.on(MessageCreateEvent.class).subscribe(event -> {
-            final Message message = event.getMessage();
-            final MessageChannel channel = message.getChannel().block();
-            if (channel == null)
-                return;
-
-            LOG.info("Channel: {}", channel.getId().asLong());
-
-            if (channel.getType() == Channel.Type.DM) {
-                if (!message.getAuthor().isPresent()) {
-                    LOG.info("Ignored private message from unknown author: {}", message.getContent());
-                    return; // ignore
-                }
+        // Handlers only queue, so a slow discord api can't hold up the gateway event threads
+        discord.on(MessageCreateEvent.class)
+                .filter(this::isModMailMessage)
+                .subscribe(this::handleMessage);
 
-                final User author = message.getAuthor().get();
-
-                if (author.isBot())
-                    return;
-
-                // Pass the message straight on to modmail channel
-                long authorId = author.getId().asLong();
-                String msg = "**User " + author.getMention() + " (Id: " + authorId + ") sent message:**\n" +
-                        quoteMessage(message.getContent());
-
-                sendMessageToModmailChannel(msg);
+        LOG.info("Mod mail set up successfully");
+    }
 
-                LOG.info("Handled private DM by user {}, sent to modmail channel.", author.getTag());
-            } else if (channel.getId().equals(modMailChannel.getId())) {
-                // Check for replies on original messages; send as replies via DM to original author
-                if (message.getType() == Message.Type.DEFAULT && message.getReferencedMessage().isPresent()) {
-                    LOG.info("Found mod-mail reply");
+    /**
+     * Decides from the event payload alone, so the messages of all other guild channels cost no lookup
+     *
+     * @return true for DMs and messages in the mod mail channel
+     */
+    private boolean isModMailMessage(MessageCreateEvent event) {
+        // Bots only get DMs outside of guilds
+        if (!event.getGuildId().isPresent() || event.getMessage().getChannelId().equals(modMailChannel.getId()))
+            return true;
+
+        ignoredMessages.increment();
+        return false;
+    }
 
-                    final Message refMsg = message.getReferencedMessage().get();
+    /**
+     * Queues the handling on the message sender like a batch of announcements, so mod mail shares its concurrency
+     * limit instead of sending next to it. Lookups, the relayed message and the confirmation of a message are sent
+     * one after another in that batch.
+     */
+    private void handleMessage(MessageCreateEvent event) {
+        final long start = System.nanoTime();
+        final Message message = event.getMessage();
+        final boolean privateMessage = !event.getGuildId().isPresent();
+        final Timer latency = privateMessage ? privateMessageLatency : replyLatency;
+
+        final Mono<Void> handling = Mono.defer(() -> privateMessage
+                        ? handlePrivateMessage(message)
+                        : handleModMailMessage(message))
+                .onErrorResume(e -> {
+                    LOG.error("Failed to handle message", e);
+                    return Mono.empty();
+                })
+                .doFinally(signal -> latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+
+        messageSender.submit(Collections.singletonList(handling));
+    }
 
-                    LOG.info("RefMsg: {}", refMsg.getContent());
+    private Mono<Void> handlePrivateMessage(Message message) {
+        if (!message.getAuthor().isPresent()) {
+            LOG.info("Ignored private message from unknown author: {}", message.getContent());
+            return Mono.empty(); // ignore
+        }
 
-                    Matcher userIdMatcher = Pattern
-                            .compile("\\*\\*User [^ ]+ \\(Id: (\\d+)\\) sent message:.*", Pattern.DOTALL)
-                            .matcher(refMsg.getContent());
+        final User author = message.getAuthor().get();
 
-                    if (!userIdMatcher.find()) {
-                        sendMessageToModmailChannel("Error: Referenced message does not contain a proper User ID to " +
-                                "respond to");
-                        return;
-                    }
+        if (author.isBot())
+            return Mono.empty();
 
-                    String refUserId = userIdMatcher.group(1);
+        // Pass the message straight on to modmail channel
+        long authorId = author.getId().asLong();
+        privateChannelIds.put(authorId, message.getChannelId().asLong());
+        String msg = "**User " + author.getMention() + " (Id: " + authorId + ") sent message:**\n" +
+                quoteMessage(message.getContent());
 
-                    User refUser = discord.getUserById(Snowflake.of(refUserId)).block();
-                    if (refUser == null) {
-                        sendMessageToModmailChannel("Error: Could not send reply to user " + refUserId + ": " +
-                                "Not found");
-                        return;
-                    }
+        return messageSender.send(text -> modMailChannel.createMessage(text)
+                        .doOnNext(relayed -> rememberThread(relayed.getId().asLong(), authorId)), msg)
+                .doOnSuccess(sent -> LOG.info("Handled private DM by user {}, sent to modmail channel.",
+                        author.getTag()));
+    }
 
-                    PrivateChannel privateChannel = refUser.getPrivateChannel().block();
-                    if (privateChannel == null) {
-                        sendMessageToModmailChannel("Error: Could not send reply to user: Could not send DM");
-                        return;
-                    }
+    private void rememberThread(long relayMessageId, long userId) {
+        if (threadStore == null)
+            return;
 
-                    privateChannel
-                            .createMessage("**Response by the moderators:**\n" + quoteMessage(message.getContent()))
-                            .block();
+        try {
+            threadStore.add(relayMessageId, userId);
+        } catch (IOException e) {
+            // Replies fall back to the user id in the relayed message
+            LOG.error("Failed to store mod mail thread of user {}", userId, e);
+        }
+    }
 
-                    sendMessageToModmailChannel("Reply sent to user via DM.");
+    private Mono<Void> handleModMailMessage(Message message) {
+        // Check for replies on original messages; send as replies via DM to original author
+        if (message.getType() != Message.Type.DEFAULT || !message.getReferencedMessage().isPresent())
+            return Mono.empty();
+
+        final Message refMsg = message.getReferencedMessage().get();
+
+        LOG.debug("Found mod-mail reply to: {}", refMsg.getContent());
+
+        final long refUserId = findThreadUser(refMsg);
+        if (refUserId <= 0) {
+            return sendMessageToModmailChannel("Error: Referenced message does not contain a proper User ID to " +
+                    "respond to");
+        }
+
+        String reply = "**Response by the moderators:**\n" + quoteMessage(message.getContent());
+
+        return getPrivateChannelId(refUserId)
+                .onErrorResume(e -> Mono.empty())
+                .switchIfEmpty(Mono.defer(() -> sendMessageToModmailChannel("Error: Could not send reply to user " +
+                        refUserId + ": Not found").then(Mono.empty())))
+                .flatMap(privateChannelId -> messageSender.send(text -> discord.rest()
+                                .getChannelById(Snowflake.of(privateChannelId))
+                                .createMessage(text), reply)
+                        .thenReturn(true)
+                        .onErrorResume(e -> {
+                            // The channel may be gone, look it up again next time
+                            privateChannelIds.remove(refUserId);
+                            return Mono.just(false);
+                        }))
+                .flatMap(sent -> {
+                    if (!sent)
+                        return sendMessageToModmailChannel("Error: Could not send reply to user: Could not send DM");
 
                     LOG.info("Relayed modmail response to User via DM");
-                }
-            }
-        });
+                    return sendMessageToModmailChannel("Reply sent to user via DM.");
+                });
+    }
 
-        LOG.info("Mod mail set up successfully");
+    /**
+     * @return the user whose DM was relayed as the given message, or -1
+     */
+    private long findThreadUser(Message relayMessage) {
+        if (threadStore != null) {
+            final long userId = threadStore.getUserId(relayMessage.getId().asLong());
+            if (userId > 0)
+                return userId;
+        }
+
+        // Relayed without (or before) the thread store
+        final Matcher userIdMatcher = USER_ID_PATTERN.matcher(relayMessage.getContent());
+        return userIdMatcher.find() ? Long.parseLong(userIdMatcher.group(1)) : -1;
+    }
+
+    /**
+     * @return id of the DM channel with the user, from the cache if possible
+     */
+    private Mono<Long> getPrivateChannelId(long userId) {
+        final Long cached = privateChannelIds.get(userId);
+        if (cached != null)
+            return Mono.just(cached);
+
+        privateChannelLookups.increment();
+        return discord.getUserById(Snowflake.of(userId))
+                .flatMap(User::getPrivateChannel)
+                .map(channel -> {
+                    final long channelId = channel.getId().asLong();
+                    privateChannelIds.put(userId, channelId);
+                    return channelId;
+                });
     }
 
-    private void sendMessageToModmailChannel(String msg) {
-        modMailChannel.createMessage(msg).block();
+    private Mono<Void> sendMessageToModmailChannel(String msg) {
+        return messageSender.send(modMailChannel, msg);
     }
 
     private static String quoteMessage(String message) {
@@ -0,0 +1,334 @@
+package net.aehx.twitch.ml7bot;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Timers of the command updates of all channels, as a hashed timing wheel.
+ *
+ * <p>
+ *     Scheduling and cancelling only put the timer into a queue, so both are O(1) and never wait, no matter how many
+ *     channels have timers. A single tick thread moves new timers into the wheel bucket of their deadline, removes
+ *     cancelled ones, and hands the due ones of each tick to a fixed pool of worker threads, which run the nightbot
+ *     fetches and diffs. Timers fire at most one tick late (plus time waiting for a free worker), never early.
+ * </p>
+ * <p>
+ *     The timers themselves are not jittered: the poll scheduler already spreads the poll intervals of the channels.
+ * </p>
+ */
+public class TimingWheelScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelScheduler.class);
+
+    /** Enough for all update intervals within a few rounds at the default tick */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickMillis;
+    private final Bucket[] wheel;
+    private final int wheelMask;
+    private final ExecutorService workers;
+    private final LongSupplier clock;
+    private final long startedAt;
+    private final Thread tickThread;
+    private volatile boolean running;
+
+    private final Queue<Timeout> newTimeouts;
+    private final Queue<Timeout> cancelledTimeouts;
+    private final AtomicInteger pendingTimeouts;
+
+    /** Next tick to process. Only used by the tick thread. */
+    private long tick;
+
+    // Metrics
+    private final Timer timerLag;
+
+
+    /**
+     * @param workerThreads number of threads that run the due tasks
+     */
+    public TimingWheelScheduler(String name, long tickMillis, int workerThreads, MetricsService metricsService) {
+        this(tickMillis, DEFAULT_WHEEL_SIZE, createWorkers(name, workerThreads), System::currentTimeMillis,
+                metricsService, name);
+    }
+
+    @VisibleForTesting
+    TimingWheelScheduler(long tickMillis, int wheelSize, ExecutorService workers, LongSupplier clock,
+                         MetricsService metricsService, String name) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("tickMillis must be positive");
+        if (Integer.bitCount(wheelSize) != 1)
+            throw new IllegalArgumentException("wheelSize must be a power of two");
+
+        this.tickMillis = tickMillis;
+        this.workers = workers;
+        this.clock = clock;
+
+        wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; ++i)
+            wheel[i] = new Bucket();
+        wheelMask = wheelSize - 1;
+
+        startedAt = clock.getAsLong();
+        newTimeouts = new ConcurrentLinkedQueue<>();
+        cancelledTimeouts = new ConcurrentLinkedQueue<>();
+        pendingTimeouts = new AtomicInteger();
+
+        tickThread = new Thread(this::tickLoop, name + "-timer");
+        tickThread.setDaemon(true);
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        registry.gauge("scheduler_pending_timers", pendingTimeouts, AtomicInteger::get);
+        if (workers instanceof ThreadPoolExecutor)
+            registry.gauge("scheduler_worker_queue_size", ((ThreadPoolExecutor) workers).getQueue(), Queue::size);
+        timerLag = Timer.builder("scheduler_timer_lag")
+                .description("Time from the deadline of a timer until a worker runs it")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+    }
+
+    private static ExecutorService createWorkers(String name, int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, name + "-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        running = true;
+        tickThread.start();
+    }
+
+    /**
+     * Runs the task on a worker thread after the delay
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        final Timeout timeout = new Timeout(task, clock.getAsLong() - startedAt + unit.toMillis(Math.max(0, delay)));
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs the task on a worker thread after the initial delay, and then again the delay after every run completed
+     */
+    public void scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    if (!workers.isShutdown())
+                        schedule(this, delay, unit);
+                }
+            }
+        }, initialDelay, unit);
+    }
+
+    /**
+     * Stops firing timers. Tasks already handed to the workers still run.
+     */
+    public void shutdown() {
+        running = false;
+        tickThread.interrupt();
+        workers.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Stops firing timers and interrupts running tasks
+     */
+    public void shutdownNow() {
+        running = false;
+        tickThread.interrupt();
+        workers.shutdownNow();
+    }
+
+    private void tickLoop() {
+        while (running) {
+            advance(clock.getAsLong());
+
+            final long sleepMillis = startedAt + tick * tickMillis - clock.getAsLong();
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    // Shut down
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes all ticks until <code>now</code>
+     */
+    @VisibleForTesting
+    void advance(long now) {
+        final long lastTick = (now - startedAt) / tickMillis;
+        while (tick <= lastTick) {
+            removeCancelled();
+            transferNew();
+            expire(wheel[(int) (tick & wheelMask)]);
+            ++tick;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            // Not in a bucket if cancelled before it was transferred, it is dropped there instead
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                pendingTimeouts.decrementAndGet();
+            }
+        }
+    }
+
+    private void transferNew() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                pendingTimeouts.decrementAndGet();
+                continue;
+            }
+
+            // Rounded up, so a timer never fires before its deadline. Overdue ones fire with the current tick.
+            final long deadlineTick = Math.max(tick, (timeout.deadline + tickMillis - 1) / tickMillis);
+            timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+            wheel[(int) (deadlineTick & wheelMask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                pendingTimeouts.decrementAndGet();
+                if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+                    dispatch(timeout);
+            } else {
+                --timeout.remainingRounds;
+            }
+            timeout = next;
+        }
+    }
+
+    private void dispatch(Timeout timeout) {
+        try {
+            workers.execute(() -> {
+                timerLag.record(Math.max(0, clock.getAsLong() - startedAt - timeout.deadline), TimeUnit.MILLISECONDS);
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    LOG.error("Scheduled task failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Dropped due timer after shutdown");
+        }
+    }
+
+    @VisibleForTesting
+    int getPendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+
+    /**
+     * Handle of a scheduled task
+     */
+    public final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        /** Millis since the start of the scheduler */
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        // Only used by the tick thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task was already handed to a worker, or cancelled before
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED))
+                return false;
+
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /**
+     * Doubly linked, so cancelled timers are removed in O(1)
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package net.aehx.twitch.ml7bot.config;
+
+import java.util.Set;
+
+/**
+ * Maps a twitch channel to the discord channel its command changes are announced in
+ */
+public class CommandChangelogChannelConfig {
+
+    private final String twitchChannel;
+    private final long discordChannelId;
+    private final Set<String> ignoredCommands;
+
+    public CommandChangelogChannelConfig(String twitchChannel, long discordChannelId, Set<String> ignoredCommands) {
+        this.twitchChannel = twitchChannel;
+        this.discordChannelId = discordChannelId;
+        this.ignoredCommands = ignoredCommands;
+    }
+
+    /** Lower-case name of the twitch channel */
+    public String getTwitchChannel() {
+        return twitchChannel;
+    }
+
+    public long getDiscordChannelId() {
+        return discordChannelId;
+    }
+
+    /**
+     * Commands that are not announced. Channels without own ignore list share the same instance, so do not modify.
+     */
+    public Set<String> getIgnoredCommands() {
+        return ignoredCommands;
+    }
+}
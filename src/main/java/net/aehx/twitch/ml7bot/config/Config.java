@@ -1,10 +1,17 @@
 package net.aehx.twitch.ml7bot.config;
 
+import net.aehx.twitch.ml7bot.ChatMessagePipeline;
+import net.aehx.twitch.ml7bot.DiscordGatewayProfile;
+import net.aehx.twitch.ml7bot.nightbot.NightbotAPI;
+
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
 
@@ -17,6 +24,32 @@ public class Config {
         return props.getProperty("discord.token", "").trim();
     }
 
+    /** Number of discord message batches (e.g. the announcements of one command update) sent at the same time */
+    public int getDiscordMessagesConcurrency() {
+        return Integer.parseInt(props.getProperty("discord.messages.concurrency", "4"));
+    }
+
+    /** Time until a single attempt to send a discord message is given up */
+    public long getDiscordMessagesTimeoutMillis() {
+        return Long.parseLong(props.getProperty("discord.messages.timeout.millis",
+                String.valueOf(Duration.ofSeconds(10).toMillis())));
+    }
+
+    public int getDiscordMessagesRetries() {
+        return Integer.parseInt(props.getProperty("discord.messages.retries", "3"));
+    }
+
+    /** Gateway events and cached entities (lean, default), see {@link DiscordGatewayProfile} */
+    public DiscordGatewayProfile getDiscordGatewayProfile() {
+        return DiscordGatewayProfile.valueOf(
+                props.getProperty("discord.gateway.profile", "lean").trim().toUpperCase(Locale.ROOT));
+    }
+
+    /** Messages kept in the entity cache with the lean gateway profile */
+    public int getDiscordGatewayCachedMessages() {
+        return Integer.parseInt(props.getProperty("discord.gateway.cachedmessages", "100"));
+    }
+
 
     public boolean getModMailEnabled() {
         return Boolean.parseBoolean(props.getProperty("modmail.enabled", "false"));
@@ -26,6 +59,16 @@ public class Config {
         return Long.parseLong(props.getProperty("modmail.discord.channelid", "-1"));
     }
 
+    /** Directory of the relayed DM index, empty to find users only by the id in the relayed message */
+    public String getModMailThreadsDir() {
+        return props.getProperty("modmail.threads.dir", "").trim();
+    }
+
+    /** Number of users whose DM channel is kept, so replies need no lookup */
+    public int getModMailPrivateChannelCacheSize() {
+        return Integer.parseInt(props.getProperty("modmail.privatechannels.cachesize", "1000"));
+    }
+
 
     public boolean getCommandChangelogEnabled() {
         return Boolean.parseBoolean(props.getProperty("commandchangelog.enabled", "false"));
@@ -45,13 +88,227 @@ public class Config {
     }
 
     public Set<String> getCommandChangelogIgnoredCommands() {
-        String prop = props.getProperty("commandchangelog.ignoredcommands", "").trim();
+        return parseIgnoredCommands(props.getProperty("commandchangelog.ignoredcommands", ""));
+    }
+
+    /**
+     * All twitch channels to watch. If <code>commandchangelog.channels</code> is set, it is a comma-separated list of
+     * <code>twitchchannel:discordchannelid</code> mappings. Otherwise, the single channel configured with
+     * <code>commandchangelog.twitch.channel</code> and <code>commandchangelog.discord.channelid</code> is used.
+     *
+     * <p>
+     *     A channel may override the global ignore list with
+     *     <code>commandchangelog.channel.&lt;twitchchannel&gt;.ignoredcommands</code>.
+     * </p>
+     */
+    public List<CommandChangelogChannelConfig> getCommandChangelogChannels() throws InvalidConfigException {
+        final Set<String> globalIgnoredCommands = getCommandChangelogIgnoredCommands();
+        final String prop = props.getProperty("commandchangelog.channels", "").trim();
+
+        List<CommandChangelogChannelConfig> channels = new ArrayList<>();
+        if (prop.isEmpty()) {
+            channels.add(new CommandChangelogChannelConfig(
+                    getCommandChangelogTwitchChannel().toLowerCase(Locale.ROOT),
+                    getCommandChangelogDiscordChannelId(),
+                    globalIgnoredCommands));
+            return channels;
+        }
+
+        Set<String> twitchChannels = new HashSet<>();
+        for (String mapping : prop.split("\\s*,\\s*")) {
+            String[] parts = mapping.split("\\s*:\\s*");
+            if (parts.length != 2 || parts[0].isEmpty())
+                throw new InvalidConfigException("Invalid command changelog channel mapping: '" + mapping + "'");
+
+            final String twitchChannel = parts[0].toLowerCase(Locale.ROOT);
+            if (!twitchChannels.add(twitchChannel))
+                throw new InvalidConfigException("Duplicate command changelog channel: '" + twitchChannel + "'");
+
+            final long discordChannelId;
+            try {
+                discordChannelId = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new InvalidConfigException("Invalid discord channel id for command changelog channel " +
+                        "'" + twitchChannel + "'", e);
+            }
+
+            String ignoredProp = props.getProperty("commandchangelog.channel." + twitchChannel + ".ignoredcommands");
+            Set<String> ignoredCommands = ignoredProp != null ? parseIgnoredCommands(ignoredProp) : globalIgnoredCommands;
+
+            channels.add(new CommandChangelogChannelConfig(twitchChannel, discordChannelId, ignoredCommands));
+        }
+
+        return channels;
+    }
+
+    /** Number of threads that run the command updates of all channels */
+    public int getCommandChangelogSchedulerThreads() {
+        return Integer.parseInt(props.getProperty("commandchangelog.scheduler.threads", "1"));
+    }
+
+    /** Resolution of the command update timers. They fire up to this late. */
+    public long getCommandChangelogSchedulerTickMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.scheduler.tick.millis", "100"));
+    }
+
+    /** Most discord messages one command update announces its changes in. Bursts that need more get a digest. */
+    public int getCommandChangelogAnnouncementsMaxMessages() {
+        return Integer.parseInt(props.getProperty("commandchangelog.announcements.maxmessages", "3"));
+    }
+
+    /** Number of twitch channels joined per twitch chat connection */
+    public int getCommandChangelogTwitchChannelsPerConnection() {
+        return Integer.parseInt(props.getProperty("commandchangelog.twitch.channelsperconnection", "50"));
+    }
+
+    /** Maximum number of chat messages buffered between twitch chat and the command changelog */
+    public int getCommandChangelogPipelineCapacity() {
+        return Integer.parseInt(props.getProperty("commandchangelog.pipeline.capacity", "10000"));
+    }
+
+    /** Maximum number of buffered chat messages handled at once */
+    public int getCommandChangelogPipelineBatchSize() {
+        return Integer.parseInt(props.getProperty("commandchangelog.pipeline.batchsize", "256"));
+    }
+
+    /** What to do with incoming chat messages if the buffer is full (block, drop_newest, drop_oldest) */
+    public ChatMessagePipeline.OverflowPolicy getCommandChangelogPipelineOverflowPolicy() {
+        return ChatMessagePipeline.OverflowPolicy.valueOf(
+                props.getProperty("commandchangelog.pipeline.overflow", "drop_newest").trim().toUpperCase(Locale.ROOT));
+    }
+
+    /** Poll interval for channels with recent command edits */
+    public long getCommandChangelogPollActiveIntervalMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.poll.activeinterval.millis",
+                String.valueOf(Duration.ofMinutes(1).toMillis())));
+    }
+
+    /** Poll interval for channels without command edits for a long time */
+    public long getCommandChangelogPollQuietIntervalMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.poll.quietinterval.millis",
+                String.valueOf(Duration.ofMinutes(15).toMillis())));
+    }
+
+    /** How long a channel counts as active after a command edit */
+    public long getCommandChangelogPollActivityWindowMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.poll.activitywindow.millis",
+                String.valueOf(Duration.ofMinutes(30).toMillis())));
+    }
+
+    /** After how long without command edits a channel counts as quiet */
+    public long getCommandChangelogPollQuietAfterMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.poll.quietafter.millis",
+                String.valueOf(Duration.ofHours(6).toMillis())));
+    }
+
+    /** Backoff after the first failed poll, doubled with every further failure */
+    public long getCommandChangelogPollMinBackoffMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.poll.minbackoff.millis",
+                String.valueOf(Duration.ofSeconds(10).toMillis())));
+    }
+
+    public long getCommandChangelogPollMaxBackoffMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.poll.maxbackoff.millis",
+                String.valueOf(Duration.ofMinutes(10).toMillis())));
+    }
+
+    /** Expected delay until nightbot shows a chat edit, before any was observed */
+    public long getCommandChangelogChatSyncInitialDelayMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.chatsync.initialdelay.millis",
+                String.valueOf(Duration.ofSeconds(5).toMillis())));
+    }
+
+    public long getCommandChangelogChatSyncMinDelayMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.chatsync.mindelay.millis",
+                String.valueOf(Duration.ofSeconds(1).toMillis())));
+    }
+
+    /** Longest expected delay until nightbot shows a chat edit. Edits not found by then are no longer re-polled. */
+    public long getCommandChangelogChatSyncMaxDelayMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.chatsync.maxdelay.millis",
+                String.valueOf(Duration.ofSeconds(30).toMillis())));
+    }
+
+    /** Longest a burst of chat edits may push back the sync after the first edit */
+    public long getCommandChangelogChatSyncMaxWaitMillis() {
+        return Long.parseLong(props.getProperty("commandchangelog.chatsync.maxwait.millis",
+                String.valueOf(Duration.ofSeconds(15).toMillis())));
+    }
+
+    /**
+     * Directory for the last synced command list of every channel, empty to not keep them across restarts
+     */
+    public String getCommandChangelogSnapshotDir() {
+        return props.getProperty("commandchangelog.snapshot.dir", "").trim();
+    }
+
+    /**
+     * Directory for the history of all command versions, empty to not keep one
+     */
+    public String getCommandChangelogHistoryDir() {
+        return props.getProperty("commandchangelog.history.dir", "").trim();
+    }
+
+    /**
+     * Directory for announcements not sent yet, empty to only queue them in memory
+     */
+    public String getCommandChangelogOutboxDir() {
+        return props.getProperty("commandchangelog.outbox.dir", "").trim();
+    }
+
+    /** Request budget for command polls of all channels together */
+    public int getNightbotRequestsPerMinute() {
+        return Integer.parseInt(props.getProperty("nightbot.requestsperminute", "30"));
+    }
+
+    /** How long twitch channel name -> nightbot channel id lookups are cached */
+    public long getNightbotCacheChannelTtlMillis() {
+        return Long.parseLong(props.getProperty("nightbot.cache.channelttl.millis",
+                String.valueOf(Duration.ofHours(1).toMillis())));
+    }
+
+    /** How long a fetched command list is reused without a request. 0 only shares concurrent fetches. */
+    public long getNightbotCacheCommandsFreshMillis() {
+        return Long.parseLong(props.getProperty("nightbot.cache.fresh.millis", "0"));
+    }
+
+    /** Up to which age the last good command list is served while nightbot fails */
+    public long getNightbotCacheStaleIfErrorMillis() {
+        return Long.parseLong(props.getProperty("nightbot.cache.staleiferror.millis",
+                String.valueOf(Duration.ofMinutes(10).toMillis())));
+    }
+
+    /** Base url of the nightbot api. Can point to a local stand-in for testing. */
+    public String getNightbotApiUrl() {
+        return props.getProperty("nightbot.api.url", NightbotAPI.NIGHTBOT_API_URL).trim();
+    }
+
+    /** HTTP client used for the nightbot api (pooled, urlconnection) */
+    public String getNightbotTransport() {
+        return props.getProperty("nightbot.transport", "pooled").trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** Maximum number of nightbot api requests in flight at once */
+    public int getNightbotMaxConcurrentRequests() {
+        return Integer.parseInt(props.getProperty("nightbot.http.maxconcurrency", "8"));
+    }
+
+    public int getNightbotConnectTimeoutMillis() {
+        return Integer.parseInt(props.getProperty("nightbot.http.connecttimeout.millis", "10000"));
+    }
+
+    public int getNightbotReadTimeoutMillis() {
+        return Integer.parseInt(props.getProperty("nightbot.http.readtimeout.millis", "10000"));
+    }
+
+    private static Set<String> parseIgnoredCommands(String prop) {
+        prop = prop.trim();
 
         Set<String> ignoredCommands = new HashSet<>();
         if (!prop.isEmpty()) {
             String[] splits = prop.split("\\s*,\\s*");
             for (String split : splits)
-                ignoredCommands.add(split.toLowerCase());
+                ignoredCommands.add(split.toLowerCase(Locale.ROOT));
         }
 
         return ignoredCommands;
@@ -87,17 +344,75 @@ public class Config {
         if (config.getDiscordToken().isEmpty())
             throw new InvalidConfigException("Missing discord token");
 
+        if (config.getDiscordMessagesConcurrency() <= 0 || config.getDiscordMessagesTimeoutMillis() <= 0 ||
+                config.getDiscordMessagesRetries() < 0)
+            throw new InvalidConfigException("Invalid discord message concurrency, timeout or retries");
+
+        try {
+            config.getDiscordGatewayProfile();
+        } catch (IllegalArgumentException e) {
+            throw new InvalidConfigException("Invalid discord gateway profile", e);
+        }
+
+        if (config.getDiscordGatewayCachedMessages() < 0)
+            throw new InvalidConfigException("Invalid number of cached discord messages");
+
         if (config.getModMailEnabled()) {
             if (config.getModMailDiscordChannelId() <= 0)
                 throw new InvalidConfigException("Missing or invalid discord mod mail channel id");
+
+            if (config.getModMailPrivateChannelCacheSize() <= 0)
+                throw new InvalidConfigException("Invalid mod mail private channel cache size");
         }
 
         if (config.getCommandChangelogEnabled()) {
-            if (config.getCommandChangelogDiscordChannelId() <= 0)
-                throw new InvalidConfigException("Missing or invalid command changelog discord chhannel id");
+            for (CommandChangelogChannelConfig channel : config.getCommandChangelogChannels()) {
+                if (channel.getDiscordChannelId() <= 0)
+                    throw new InvalidConfigException("Missing or invalid command changelog discord chhannel id");
+
+                if (channel.getTwitchChannel().isEmpty())
+                    throw new InvalidConfigException("Missing command changelog twitch channel");
+            }
+
+            if (config.getCommandChangelogSchedulerThreads() <= 0)
+                throw new InvalidConfigException("Command changelog scheduler needs at least one thread");
+
+            if (config.getCommandChangelogSchedulerTickMillis() <= 0)
+                throw new InvalidConfigException("Command changelog scheduler tick must be positive");
+
+            if (config.getCommandChangelogAnnouncementsMaxMessages() <= 0)
+                throw new InvalidConfigException("Command changelog announcements need at least one message");
+
+            if (config.getCommandChangelogPipelineCapacity() <= 0 || config.getCommandChangelogPipelineBatchSize() <= 0)
+                throw new InvalidConfigException("Command changelog pipeline capacity and batch size must be positive");
+
+            try {
+                config.getCommandChangelogPipelineOverflowPolicy();
+            } catch (IllegalArgumentException e) {
+                throw new InvalidConfigException("Invalid command changelog pipeline overflow policy", e);
+            }
+
+            if (config.getCommandChangelogPollActiveIntervalMillis() <= 0
+                    || config.getCommandChangelogPollQuietIntervalMillis() <= 0
+                    || config.getCommandChangelogPollMinBackoffMillis() <= 0
+                    || config.getCommandChangelogPollMaxBackoffMillis() < config.getCommandChangelogPollMinBackoffMillis())
+                throw new InvalidConfigException("Invalid command changelog poll intervals or backoff");
+
+            if (config.getNightbotRequestsPerMinute() <= 0)
+                throw new InvalidConfigException("Nightbot request budget must be positive");
+
+            if (!config.getNightbotTransport().equals("pooled") && !config.getNightbotTransport().equals("urlconnection"))
+                throw new InvalidConfigException("Invalid nightbot transport: '" + config.getNightbotTransport() + "'");
+
+            if (config.getNightbotCacheChannelTtlMillis() < 0 || config.getNightbotCacheCommandsFreshMillis() < 0
+                    || config.getNightbotCacheStaleIfErrorMillis() < 0)
+                throw new InvalidConfigException("Nightbot cache times must not be negative");
+
+            if (config.getNightbotMaxConcurrentRequests() <= 0)
+                throw new InvalidConfigException("Nightbot api needs to allow at least one request at once");
 
-            if (config.getCommandChangelogTwitchChannel().isEmpty())
-                throw new InvalidConfigException("Missing command changelog twitch channel");
+            if (config.getNightbotConnectTimeoutMillis() < 0 || config.getNightbotReadTimeoutMillis() < 0)
+                throw new InvalidConfigException("Nightbot api timeouts must not be negative");
         }
 
         return config;
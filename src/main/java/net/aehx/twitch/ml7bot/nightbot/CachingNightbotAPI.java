@@ -0,0 +1,252 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link NightbotAPI} that avoids duplicate requests.
+ *
+ * <ul>
+ *     <li>Channel name -> id lookups are cached for a fixed time.</li>
+ *     <li>Concurrent command fetches for the same channel share one request (single-flight). A list fetched less
+ *     than <code>commandsFreshMillis</code> ago is returned without any request.</li>
+ *     <li>If a command fetch fails, callers that don't have the last good list yet get that one instead, as long as
+ *     it is not older than <code>staleIfErrorMillis</code>. Callers that already have it get the error, so they
+ *     neither see an empty (all deleted) list nor skip their backoff.</li>
+ * </ul>
+ *
+ * <p>Returned command maps are shared between callers and must not be modified.</p>
+ */
+public class CachingNightbotAPI extends NightbotAPI {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingNightbotAPI.class);
+
+    private final long channelTtlMillis;
+    private final long commandsFreshMillis;
+    private final long staleIfErrorMillis;
+    private final LongSupplier clock;
+
+    /** lower-case twitch channel name -> cached nightbot channel */
+    private final Map<String, CachedChannel> channels;
+    private final Map<String, CompletableFuture<NightbotChannel>> channelLoads;
+
+    /** nightbot channel id -> cached commands */
+    private final Map<String, CommandsEntry> commandEntries;
+
+    // Metrics
+    private final Counter channelHits;
+    private final Counter channelMisses;
+    private final Counter channelCoalesced;
+    private final Counter commandsHits;
+    private final Counter commandsMisses;
+    private final Counter commandsCoalesced;
+    private final Counter commandsStaleServed;
+
+
+    public CachingNightbotAPI(NightbotTransport transport,
+                              String apiUrl,
+                              long channelTtlMillis,
+                              long commandsFreshMillis,
+                              long staleIfErrorMillis,
+                              MetricsService metricsService) {
+        this(transport, apiUrl, channelTtlMillis, commandsFreshMillis, staleIfErrorMillis, metricsService,
+                System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    CachingNightbotAPI(NightbotTransport transport,
+                       String apiUrl,
+                       long channelTtlMillis,
+                       long commandsFreshMillis,
+                       long staleIfErrorMillis,
+                       MetricsService metricsService,
+                       LongSupplier clock) {
+        super(transport, apiUrl);
+        this.channelTtlMillis = channelTtlMillis;
+        this.commandsFreshMillis = commandsFreshMillis;
+        this.staleIfErrorMillis = staleIfErrorMillis;
+        this.clock = clock;
+
+        channels = new ConcurrentHashMap<>();
+        channelLoads = new ConcurrentHashMap<>();
+        commandEntries = new ConcurrentHashMap<>();
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        channelHits = registry.counter("nightbot_cache_hits", "cache", "channels");
+        channelMisses = registry.counter("nightbot_cache_misses", "cache", "channels");
+        channelCoalesced = registry.counter("nightbot_cache_coalesced", "cache", "channels");
+        commandsHits = registry.counter("nightbot_cache_hits", "cache", "commands");
+        commandsMisses = registry.counter("nightbot_cache_misses", "cache", "commands");
+        commandsCoalesced = registry.counter("nightbot_cache_coalesced", "cache", "commands");
+        commandsStaleServed = registry.counter("nightbot_cache_stale_served", "cache", "commands");
+    }
+
+    @Override
+    public NightbotChannel fetchChannelByName(String name) throws Exception {
+        final String key = name.toLowerCase(Locale.ROOT);
+        final long now = clock.getAsLong();
+
+        final CachedChannel cached = channels.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            channelHits.increment();
+            return cached.channel;
+        }
+
+        final CompletableFuture<NightbotChannel> load = new CompletableFuture<>();
+        final CompletableFuture<NightbotChannel> runningLoad = channelLoads.putIfAbsent(key, load);
+        if (runningLoad != null) {
+            channelCoalesced.increment();
+            return await(runningLoad);
+        }
+
+        channelMisses.increment();
+        try {
+            final NightbotChannel channel = super.fetchChannelByName(name);
+
+            channels.values().removeIf(c -> c.expiresAt <= now);
+            channels.put(key, new CachedChannel(channel, clock.getAsLong() + channelTtlMillis));
+
+            load.complete(channel);
+            return channel;
+        } catch (Exception e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            channelLoads.remove(key, load);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, NightbotCommand>> fetchChannelCommandsIfChangedAsync(
+            String channelId, ConditionalFetchState state) {
+        final CommandsEntry entry = commandEntries.computeIfAbsent(channelId, id -> new CommandsEntry());
+
+        return entry.get(channelId).handle((fetched, e) -> {
+            CommandsSnapshot snapshot = fetched;
+            if (e != null) {
+                final CommandsSnapshot lastGood = entry.getLastGood();
+                if (lastGood == null || clock.getAsLong() - lastGood.fetchedAt > staleIfErrorMillis
+                        || !state.hasChanged(lastGood.bodyHash))
+                    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+
+                commandsStaleServed.increment();
+                LOG.warn("Failed fetch nightbot commands of channel {}. Serving last good list instead...",
+                        channelId, e);
+                snapshot = lastGood;
+            }
+
+            if (!state.hasChanged(snapshot.bodyHash))
+                return null;
+
+            state.stage(null, null, snapshot.bodyHash);
+            return snapshot.commands;
+        });
+    }
+
+    /**
+     * Forgets everything cached, e.g. to force a full refetch
+     */
+    public void invalidate() {
+        channels.clear();
+        commandEntries.clear();
+    }
+
+
+    private static class CachedChannel {
+        final NightbotChannel channel;
+        final long expiresAt;
+
+        CachedChannel(NightbotChannel channel, long expiresAt) {
+            this.channel = channel;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class CommandsSnapshot {
+        final Map<String, NightbotCommand> commands;
+        final byte[] bodyHash;
+        final long fetchedAt;
+
+        CommandsSnapshot(Map<String, NightbotCommand> commands, byte[] bodyHash, long fetchedAt) {
+            this.commands = commands;
+            this.bodyHash = bodyHash;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    /**
+     * Latest command list of a single channel, and the request currently refreshing it
+     */
+    private class CommandsEntry {
+        /** Validators of the cached list, independent of the callers' states */
+        private final ConditionalFetchState fetchState = new ConditionalFetchState();
+
+        private CommandsSnapshot lastGood;
+        private CompletableFuture<CommandsSnapshot> refresh;
+
+        synchronized CompletableFuture<CommandsSnapshot> get(String channelId) {
+            if (lastGood != null && clock.getAsLong() - lastGood.fetchedAt < commandsFreshMillis) {
+                commandsHits.increment();
+                return CompletableFuture.completedFuture(lastGood);
+            }
+
+            if (refresh != null) {
+                commandsCoalesced.increment();
+                return refresh;
+            }
+
+            commandsMisses.increment();
+            final CompletableFuture<CommandsSnapshot> newRefresh = CachingNightbotAPI.super
+                    .fetchChannelCommandsIfChangedAsync(channelId, fetchState)
+                    .thenApply(this::onFetched);
+
+            refresh = newRefresh;
+            newRefresh.whenComplete((snapshot, e) -> onRefreshDone(newRefresh));
+            return newRefresh;
+        }
+
+        synchronized CommandsSnapshot getLastGood() {
+            return lastGood;
+        }
+
+        /**
+         * @param commands <code>null</code> if unchanged
+         */
+        private synchronized CommandsSnapshot onFetched(Map<String, NightbotCommand> commands) {
+            final long now = clock.getAsLong();
+
+            if (commands != null) {
+                fetchState.commit();
+                final Map<String, NightbotCommand> deduplicated =
+                        NightbotCommand.reuseUnchanged(commands, lastGood != null ? lastGood.commands : null);
+                lastGood = new CommandsSnapshot(Collections.unmodifiableMap(deduplicated), fetchState.getBodyHash(),
+                        now);
+            } else if (lastGood != null) {
+                lastGood = new CommandsSnapshot(lastGood.commands, lastGood.bodyHash, now);
+            } else {
+                // Can't happen, the first fetch of an entry always returns the list
+                fetchState.reset();
+                throw new IllegalStateException("Got unchanged nightbot commands without a cached list");
+            }
+
+            return lastGood;
+        }
+
+        private synchronized void onRefreshDone(CompletableFuture<CommandsSnapshot> doneRefresh) {
+            if (refresh == doneRefresh)
+                refresh = null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import java.util.Arrays;
+
+/**
+ * Remembers what a channel's command list looked like at the last successful sync, so unchanged lists can be
+ * detected without parsing them: the <code>ETag</code> / <code>Last-Modified</code> validators for conditional
+ * requests, and a hash of the raw response body for servers that don't support those.
+ *
+ * <p>
+ *     Fetches only stage new values. They are applied with {@link #commit()} once the caller has successfully
+ *     processed the changed list, so a failed sync is retried on the next poll instead of being skipped.
+ * </p>
+ */
+public class ConditionalFetchState {
+
+    private String etag;
+    private String lastModified;
+    private byte[] bodyHash;
+
+    private String stagedEtag;
+    private String stagedLastModified;
+    private byte[] stagedBodyHash;
+
+
+    public synchronized String getEtag() {
+        return etag;
+    }
+
+    public synchronized String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return hash of the last committed body, or <code>null</code>
+     */
+    synchronized byte[] getBodyHash() {
+        return bodyHash;
+    }
+
+    /**
+     * @return true if the hash differs from the last committed one
+     */
+    public synchronized boolean hasChanged(byte[] newBodyHash) {
+        return bodyHash == null || !Arrays.equals(bodyHash, newBodyHash);
+    }
+
+    /**
+     * Updates the validators of an unchanged body, e.g. if the server sent a new <code>ETag</code> for the same
+     * content
+     */
+    synchronized void updateValidators(String newEtag, String newLastModified) {
+        etag = newEtag;
+        lastModified = newLastModified;
+    }
+
+    synchronized void stage(String newEtag, String newLastModified, byte[] newBodyHash) {
+        stagedEtag = newEtag;
+        stagedLastModified = newLastModified;
+        stagedBodyHash = newBodyHash;
+    }
+
+    /**
+     * Applies the values of the last fetch that returned a changed list
+     */
+    public synchronized void commit() {
+        if (stagedBodyHash == null)
+            return;
+
+        etag = stagedEtag;
+        lastModified = stagedLastModified;
+        bodyHash = stagedBodyHash;
+
+        stagedEtag = null;
+        stagedLastModified = null;
+        stagedBodyHash = null;
+    }
+
+    /**
+     * Forgets everything, so the next fetch returns the full list
+     */
+    public synchronized void reset() {
+        etag = null;
+        lastModified = null;
+        bodyHash = null;
+        stagedEtag = null;
+        stagedLastModified = null;
+        stagedBodyHash = null;
+    }
+}
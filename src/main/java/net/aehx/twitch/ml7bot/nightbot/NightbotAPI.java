@@ -2,28 +2,215 @@ package net.aehx.twitch.ml7bot.nightbot;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-public class NightbotAPI {
+public class NightbotAPI implements Closeable {
 
-    private static final String NIGHTBOT_API_URL = "https://api.nightbot.tv/1";
+    public static final String NIGHTBOT_API_URL = "https://api.nightbot.tv/1";
+
+    private static final String BODY_HASH_ALGORITHM = "SHA-256";
+
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final NightbotTransport transport;
+    private final String apiUrl;
+
+    /** Rate limit reported with the latest response, shared by all channels */
+    private volatile NightbotRateLimit rateLimit;
+
+
+    /**
+     * @param apiUrl base url of the api, e.g. to use a local stand-in instead of {@link #NIGHTBOT_API_URL}
+     */
+    public NightbotAPI(NightbotTransport transport, String apiUrl) {
+        this.transport = transport;
+        this.apiUrl = apiUrl.endsWith("/") ? apiUrl.substring(0, apiUrl.length() - 1) : apiUrl;
+    }
+
+    public NightbotAPI(NightbotTransport transport) {
+        this(transport, NIGHTBOT_API_URL);
+    }
+
+    public NightbotAPI() {
+        this(new UrlConnectionTransport(DEFAULT_MAX_CONCURRENT_REQUESTS,
+                DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS));
+    }
 
     /**
      * @return Map of name -> {@link NightbotCommand}
      */
     public Map<String, NightbotCommand> fetchChannelCommands(String channelId) throws Exception {
-        JSONObject response = fetchChannelCommandsJson(channelId);
+        return fetchChannelCommandsIfChanged(channelId, new ConditionalFetchState());
+    }
+
+    /**
+     * Like {@link #fetchChannelCommands(String)}, but returns <code>null</code> if the command list did not change
+     * since the last {@link ConditionalFetchState#commit()} of the given state.
+     *
+     * <p>Call {@link ConditionalFetchState#commit()} once the returned commands were processed successfully.</p>
+     */
+    public Map<String, NightbotCommand> fetchChannelCommandsIfChanged(String channelId, ConditionalFetchState state)
+            throws Exception {
+        return await(fetchChannelCommandsIfChangedAsync(channelId, state));
+    }
+
+    /**
+     * Async version of {@link #fetchChannelCommandsIfChanged(String, ConditionalFetchState)}. Fetches with
+     * {@link #fetchChannelCommandsBody(String, ConditionalFetchState)}, or with
+     * {@link #fetchChannelCommandsJson(String)} if {@link #servesCommandsInProcess()}.
+     */
+    public CompletableFuture<Map<String, NightbotCommand>> fetchChannelCommandsIfChangedAsync(
+            String channelId, ConditionalFetchState state) {
+        if (!servesCommandsInProcess())
+            return fetchChannelCommandsBody(channelId, state);
+
+        try {
+            return CompletableFuture.completedFuture(
+                    parseChannelCommandsIfChanged(fetchChannelCommandsJson(channelId), state));
+        } catch (Exception e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Whether {@link #fetchChannelCommandsJson(String)} is served in-process, e.g. by a stand-in that overrides it,
+     * instead of fetching the command list over the transport
+     */
+    protected boolean servesCommandsInProcess() {
+        return false;
+    }
+
+    /**
+     * Fetches the command list over the transport.
+     *
+     * <p>
+     *     Sends a conditional request (<code>If-None-Match</code> / <code>If-Modified-Since</code>) and additionally
+     *     compares a hash of the raw body. Only a changed body is decoded, with the streaming
+     *     {@link NightbotCommandsDecoder}.
+     * </p>
+     */
+    protected CompletableFuture<Map<String, NightbotCommand>> fetchChannelCommandsBody(
+            String channelId, ConditionalFetchState state) {
+        final URL url;
+        try {
+            url = new URL(apiUrl + "/commands");
+        } catch (MalformedURLException e) {
+            return failedFuture(e);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("nightbot-channel", channelId);
+        if (state.getEtag() != null)
+            headers.put("If-None-Match", state.getEtag());
+        if (state.getLastModified() != null)
+            headers.put("If-Modified-Since", state.getLastModified());
+
+        return transport.get(url, headers, (response, body) -> {
+                    checkStatus(url, response);
+                    if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED)
+                        return null;
+
+                    return decodeIfChanged(body, response.getHeader("ETag"), response.getHeader("Last-Modified"),
+                            state);
+                })
+                .handle((commands, e) -> {
+                    if (e != null)
+                        throw new CompletionException(
+                                new Exception("Failed fetch nightbot api for channel commands", unwrap(e)));
+
+                    return commands;
+                });
+    }
 
+    /**
+     * Hashes a <code>200</code> body and only decodes it if the hash differs from the last committed one. New
+     * validators alone don't mean a new list; for an unchanged body they are kept for the next request.
+     *
+     * <p>
+     *     The body is read twice. Bodies that support {@link InputStream#mark(int)} (e.g. over received buffers)
+     *     are reset for decoding, others are buffered first.
+     * </p>
+     *
+     * @return <code>null</code> if the body did not change
+     */
+    static Map<String, NightbotCommand> decodeIfChanged(InputStream body, String etag, String lastModified,
+                                                       ConditionalFetchState state) throws Exception {
+        InputStream in = body.markSupported() ? body : new ByteArrayInputStream(readFully(body));
+        in.mark(Integer.MAX_VALUE);
+
+        MessageDigest digest = MessageDigest.getInstance(BODY_HASH_ALGORITHM);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            digest.update(buffer, 0, read);
+
+        byte[] bodyHash = digest.digest();
+        if (!state.hasChanged(bodyHash)) {
+            state.updateValidators(etag, lastModified);
+            return null;
+        }
+
+        in.reset();
+        Map<String, NightbotCommand> commands = NightbotCommandsDecoder.decode(in);
+        state.stage(etag, lastModified, bodyHash);
+        return commands;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    /**
+     * For responses of {@link #fetchChannelCommandsJson(String)} served in-process: parses the response, or returns
+     * <code>null</code> if its content did not change since the last commit of the given state.
+     */
+    protected static Map<String, NightbotCommand> parseChannelCommandsIfChanged(JSONObject response,
+                                                                               ConditionalFetchState state)
+            throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(BODY_HASH_ALGORITHM);
+        byte[] bodyHash = digest.digest(response.toString().getBytes(StandardCharsets.UTF_8));
+
+        if (!state.hasChanged(bodyHash))
+            return null;
+
+        Map<String, NightbotCommand> commands = parseChannelCommands(response);
+        state.stage(null, null, bodyHash);
+        return commands;
+    }
+
+    /**
+     * Parses a full org.json response tree. Only used for in-process responses, real responses are decoded with
+     * {@link NightbotCommandsDecoder}.
+     */
+    static Map<String, NightbotCommand> parseChannelCommands(JSONObject response) {
         Map<String, NightbotCommand> commands = new HashMap<>();
         JSONArray commandsArr = response.getJSONArray("commands");
         for (int i = 0; i < commandsArr.length(); ++i) {
@@ -35,7 +222,7 @@ public class NightbotAPI {
             command.name = commandObj.getString("name");
             command.alias = commandObj.optString("alias");
             command.message = commandObj.optString("message");
-            command.userLevel = commandObj.getString("userLevel");
+            command.setUserLevel(commandObj.getString("userLevel"));
             command.count = commandObj.getInt("count");
             command.coolDown = commandObj.getInt("coolDown");
             commands.put(command.name, command);
@@ -46,12 +233,10 @@ public class NightbotAPI {
 
     protected JSONObject fetchChannelCommandsJson(String channelId) throws Exception {
         try {
-            URL url = new URL(NIGHTBOT_API_URL + "/commands");
-            String str = getJSONHttp(url, new HashMap<String, String>() {{
+            URL url = new URL(apiUrl + "/commands");
+            return getJSONHttp(url, new HashMap<String, String>() {{
                 put("nightbot-channel", channelId);
             }});
-
-            return new JSONObject(str);
         } catch (Exception e) {
             throw new Exception("Failed fetch nightbot api for channel commands", e);
         }
@@ -71,47 +256,85 @@ public class NightbotAPI {
 
     protected JSONObject fetchChannelByNameJson(String name) throws Exception {
         try {
-            URL url = new URL(NIGHTBOT_API_URL + "/channels/t/" + name);
-            String str = getJSONHttp(url);
-            return new JSONObject(str);
+            URL url = new URL(apiUrl + "/channels/t/" + name);
+            return getJSONHttp(url);
         } catch (Exception e) {
             throw new Exception("Failed fetch channel by name from Nighbot api", e);
         }
     }
 
 
-    private static String getJSONHttp(URL url, Map<String, String> additionalHeaders) throws Exception {
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setConnectTimeout(10 * 1000);
-        con.setReadTimeout(10 * 1000);
-        con.setRequestMethod("GET");
-        con.setRequestProperty("Content-Type", "application/json");
+    private JSONObject getJSONHttp(URL url, Map<String, String> additionalHeaders) throws Exception {
+        return await(transport.get(url, additionalHeaders, (response, body) -> {
+            checkStatus(url, response);
+            return new JSONObject(new JSONTokener(new InputStreamReader(body, StandardCharsets.UTF_8)));
+        }));
+    }
+
+    private JSONObject getJSONHttp(URL url) throws Exception {
+        return getJSONHttp(url, null);
+    }
 
-        if (additionalHeaders != null)
-            additionalHeaders.forEach((key, value) -> con.setRequestProperty(key, value));
+    /**
+     * Remembers the reported rate limit and fails for unexpected status codes.
+     * <code>304 Not Modified</code> is accepted for conditional requests.
+     */
+    private void checkStatus(URL url, NightbotHttpResponse response) throws NightbotHttpException {
+        final long now = System.currentTimeMillis();
+        final NightbotRateLimit responseRateLimit = NightbotRateLimit.fromResponse(response, now);
+        if (responseRateLimit != null)
+            rateLimit = responseRateLimit;
 
-        int status = con.getResponseCode();
+        int status = response.getStatus();
         if (status == 404) {
-            throw new Exception("Not found (404)");
-        } else if (status != 200) {
-            throw new Exception("Got HTTP error for request to URL '" + url.toString() + "': " +
-                    "Code " + con.getResponseCode() + ", Message: " + con.getResponseMessage());
+            throw new NightbotHttpException("Not found (404)", status, -1);
+        } else if (status != 200 && status != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            long retryAfterMillis = NightbotRateLimit.parseRetryAfterMillis(response);
+            if (retryAfterMillis < 0 && status == 429 && responseRateLimit != null)
+                retryAfterMillis = Math.max(0, responseRateLimit.resetAtMillis - now);
+
+            throw new NightbotHttpException("Got HTTP error for request to URL '" + url.toString() + "': " +
+                    "Code " + status + ", Message: " + response.getStatusMessage(), status, retryAfterMillis);
         }
+    }
+
+    /**
+     * @return rate limit reported with the latest response, or <code>null</code> if none was reported yet
+     */
+    public NightbotRateLimit getRateLimit() {
+        return rateLimit;
+    }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-        String line;
-        StringBuilder response = new StringBuilder();
-        while ((line = in.readLine()) != null)
-            response.append(line);
+    /**
+     * Waits for the future, at most as long as a request of the transport may take, and rethrows its failure cause
+     */
+    protected <T> T await(CompletableFuture<T> future) throws Exception {
+        final long timeoutMillis = transport.getTimeoutMillis();
+        try {
+            return timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
 
-        in.close();
-        con.disconnect();
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+            e = e.getCause();
+        return e;
+    }
 
-        return response.toString();
+    protected static <T> CompletableFuture<T> failedFuture(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
     }
 
-    private static String getJSONHttp(URL url) throws Exception {
-        return getJSONHttp(url, null);
+    @Override
+    public void close() {
+        transport.close();
     }
 
     private static long isoToMillisEpoch(String iso) {
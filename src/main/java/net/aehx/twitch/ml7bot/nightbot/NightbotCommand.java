@@ -1,13 +1,140 @@
 package net.aehx.twitch.ml7bot.nightbot;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
 public class NightbotCommand {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     public String id;
     public long createdAt;
     public long updatedAt;
     public String name;
     public String alias;
     public String message;
-    public String userLevel;
+    public UserLevel userLevel;
+    /** The api name if {@link #userLevel} is {@link UserLevel#UNKNOWN}, else <code>null</code> */
+    public String otherLevel;
     public int count;
     public int coolDown;
+
+    /** 0 until computed */
+    private volatile long contentFingerprint;
+
+
+    /**
+     * 64 bit hash of everything that is announced when it changes (message, alias, user level and cooldown), but not
+     * the count. Computed once, so the command must not be modified afterwards.
+     */
+    public long getContentFingerprint() {
+        long fingerprint = contentFingerprint;
+        if (fingerprint == 0) {
+            fingerprint = FNV_OFFSET_BASIS;
+            fingerprint = hash(fingerprint, message);
+            fingerprint = hash(fingerprint, alias);
+            fingerprint = hash(fingerprint, getUserLevelName());
+            fingerprint = (fingerprint ^ coolDown) * FNV_PRIME;
+
+            if (fingerprint == 0)
+                fingerprint = 1;
+            contentFingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Sets {@link #userLevel}, and keeps the name in {@link #otherLevel} if it is not a known level
+     *
+     * @param apiName the <code>userLevel</code> field of the nightbot api, or <code>null</code>
+     */
+    public void setUserLevel(CharSequence apiName) {
+        userLevel = UserLevel.fromApiName(apiName);
+        otherLevel = userLevel == UserLevel.UNKNOWN ? apiName.toString() : null;
+    }
+
+    /**
+     * @return the api name of the user level, also for levels unknown to {@link UserLevel}
+     */
+    public String getUserLevelName() {
+        if (userLevel == UserLevel.UNKNOWN && otherLevel != null)
+            return otherLevel;
+        return userLevel != null ? userLevel.getApiName() : null;
+    }
+
+    /**
+     * @return true if everything that is announced when it changes is equal. Only commands with equal fingerprints
+     *         have their fields compared, which rules out hash collisions.
+     */
+    public boolean hasSameContentAs(NightbotCommand other) {
+        return getContentFingerprint() == other.getContentFingerprint()
+                && coolDown == other.coolDown && userLevel == other.userLevel
+                && Objects.equals(otherLevel, other.otherLevel)
+                && Objects.equals(message, other.message) && Objects.equals(alias, other.alias);
+    }
+
+    /**
+     * @return true if everything including count and timestamps is equal, so either object can be used
+     */
+    public boolean isIdenticalTo(NightbotCommand other) {
+        return updatedAt == other.updatedAt && createdAt == other.createdAt && count == other.count
+                && coolDown == other.coolDown && userLevel == other.userLevel
+                && Objects.equals(otherLevel, other.otherLevel)
+                && Objects.equals(id, other.id) && Objects.equals(name, other.name)
+                && Objects.equals(message, other.message) && Objects.equals(alias, other.alias);
+    }
+
+    /**
+     * Replaces the commands of a fresh list that did not change at all with the previous objects, and gives those
+     * that only changed e.g. their count the previous strings. So only one copy of a channel's
+     * commands stays in memory, and the fresh one dies young.
+     *
+     * @param fetched name -> command, its commands must not be shared with other threads yet
+     * @param previous name -> command of the last list, or <code>null</code>
+     * @return new name -> command map
+     */
+    public static Map<String, NightbotCommand> reuseUnchanged(Map<String, NightbotCommand> fetched,
+                                                              Map<String, NightbotCommand> previous) {
+        if (previous == null || previous.isEmpty())
+            return fetched;
+
+        final Map<String, NightbotCommand> commands = new HashMap<>((int) (fetched.size() / 0.75f) + 1);
+        for (Map.Entry<String, NightbotCommand> entry : fetched.entrySet()) {
+            final NightbotCommand cmd = entry.getValue();
+            final NightbotCommand previousCmd = previous.get(entry.getKey());
+
+            if (previousCmd == null) {
+                commands.put(entry.getKey(), cmd);
+            } else if (cmd.isIdenticalTo(previousCmd)) {
+                // The previous name as key too, or both strings stay alive
+                commands.put(previousCmd.name, previousCmd);
+            } else {
+                cmd.name = previousCmd.name;
+                if (Objects.equals(cmd.id, previousCmd.id))
+                    cmd.id = previousCmd.id;
+                if (Objects.equals(cmd.message, previousCmd.message))
+                    cmd.message = previousCmd.message;
+                if (Objects.equals(cmd.alias, previousCmd.alias))
+                    cmd.alias = previousCmd.alias;
+                if (Objects.equals(cmd.otherLevel, previousCmd.otherLevel))
+                    cmd.otherLevel = previousCmd.otherLevel;
+                commands.put(previousCmd.name, cmd);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * FNV-1a over the chars, terminated by the length so adjacent fields can't shift into each other
+     */
+    private static long hash(long hash, String str) {
+        if (str == null)
+            return (hash ^ 0xffff_ffffL) * FNV_PRIME;
+
+        for (int i = 0; i < str.length(); ++i)
+            hash = (hash ^ str.charAt(i)) * FNV_PRIME;
+        return (hash ^ str.length()) * FNV_PRIME;
+    }
 }
@@ -0,0 +1,469 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming decoder for the response of the nightbot <code>/commands</code> endpoint.
+ *
+ * <p>
+ *     Reads the response character by character straight into {@link NightbotCommand} objects, without building
+ *     the whole body as string or a JSON object tree. Fields we don't use are skipped, and the
+ *     <code>createdAt</code> / <code>updatedAt</code> timestamps are parsed by hand. Behaves like the org.json based
+ *     parsing in {@link NightbotAPI}: <code>alias</code> and <code>message</code> are optional, all other command
+ *     fields are required. Field names, timestamps, user levels and empty strings are read without allocating
+ *     strings.
+ * </p>
+ *
+ * <p>Not thread-safe, create one per response.</p>
+ */
+public class NightbotCommandsDecoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferPos;
+    private int bufferLen;
+
+    /** Reused for reading strings */
+    private final StringBuilder sb = new StringBuilder();
+
+    /** Command fields, returned instead of a new string for every key */
+    private static final String[] COMMAND_KEYS = {
+            "_id", "createdAt", "updatedAt", "name", "alias", "message", "userLevel", "count", "coolDown"
+    };
+
+
+    public NightbotCommandsDecoder(InputStream in) {
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Map of name -> {@link NightbotCommand}
+     */
+    public static Map<String, NightbotCommand> decode(InputStream in) throws IOException {
+        return new NightbotCommandsDecoder(in).decodeCommands();
+    }
+
+    public Map<String, NightbotCommand> decodeCommands() throws IOException {
+        Map<String, NightbotCommand> commands = null;
+
+        expect('{');
+        if (!tryConsume('}')) {
+            do {
+                String key = readString();
+                expect(':');
+
+                if (key.equals("commands"))
+                    commands = readCommandsArray();
+                else
+                    skipValue();
+            } while (tryConsume(','));
+
+            expect('}');
+        }
+
+        if (commands == null)
+            throw error("Missing 'commands' array");
+
+        return commands;
+    }
+
+    private Map<String, NightbotCommand> readCommandsArray() throws IOException {
+        Map<String, NightbotCommand> commands = new HashMap<>();
+
+        expect('[');
+        if (tryConsume(']'))
+            return commands;
+
+        do {
+            NightbotCommand command = readCommand();
+            commands.put(command.name, command);
+        } while (tryConsume(','));
+
+        expect(']');
+        return commands;
+    }
+
+    private NightbotCommand readCommand() throws IOException {
+        NightbotCommand command = new NightbotCommand();
+        boolean hasCreatedAt = false, hasUpdatedAt = false, hasCount = false, hasCoolDown = false;
+
+        expect('{');
+        if (!tryConsume('}')) {
+            do {
+                String key = readKey();
+                expect(':');
+
+                switch (key) {
+                    case "_id":
+                        command.id = readString();
+                        break;
+                    case "createdAt":
+                        readStringContent();
+                        command.createdAt = parseIsoMillis(sb);
+                        hasCreatedAt = true;
+                        break;
+                    case "updatedAt":
+                        readStringContent();
+                        command.updatedAt = parseIsoMillis(sb);
+                        hasUpdatedAt = true;
+                        break;
+                    case "name":
+                        command.name = readString();
+                        break;
+                    case "alias":
+                        command.alias = readOptionalString();
+                        break;
+                    case "message":
+                        command.message = readOptionalString();
+                        break;
+                    case "userLevel":
+                        readStringContent();
+                        command.setUserLevel(sb);
+                        break;
+                    case "count":
+                        command.count = readInt();
+                        hasCount = true;
+                        break;
+                    case "coolDown":
+                        command.coolDown = readInt();
+                        hasCoolDown = true;
+                        break;
+                    default:
+                        skipValue();
+                }
+            } while (tryConsume(','));
+
+            expect('}');
+        }
+
+        if (command.id == null || command.name == null || command.userLevel == null
+                || !hasCreatedAt || !hasUpdatedAt || !hasCount || !hasCoolDown)
+            throw error("Command is missing required fields");
+
+        if (command.alias == null)
+            command.alias = "";
+        if (command.message == null)
+            command.message = "";
+
+        return command;
+    }
+
+
+    // ---- Values ----
+
+    private String readString() throws IOException {
+        readStringContent();
+        return sb.length() == 0 ? "" : sb.toString();
+    }
+
+    /**
+     * Like {@link #readString()}, but only returns the constant for command field names
+     */
+    private String readKey() throws IOException {
+        readStringContent();
+        for (String key : COMMAND_KEYS) {
+            if (key.contentEquals(sb))
+                return key;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a string into {@link #sb}
+     */
+    private void readStringContent() throws IOException {
+        expect('"');
+        sb.setLength(0);
+
+        while (true) {
+            char c = next();
+            if (c == '"')
+                return;
+
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+
+            c = next();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(c);
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; ++i) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0)
+                            throw error("Invalid unicode escape");
+                        code = (code << 4) | digit;
+                    }
+                    sb.append((char) code);
+                    break;
+                default:
+                    throw error("Invalid escape '\\" + c + "'");
+            }
+        }
+    }
+
+    /**
+     * Like org.json's <code>optString</code>: <code>null</code> becomes an empty string, numbers and booleans are
+     * converted to their string representation
+     */
+    private String readOptionalString() throws IOException {
+        char c = peek();
+        if (c == '"')
+            return readString();
+
+        if (c == '{' || c == '[')
+            throw error("Expected string value");
+
+        String literal = readLiteral();
+        return literal.equals("null") ? "" : literal;
+    }
+
+    private int readInt() throws IOException {
+        String literal = readLiteral();
+        try {
+            return Integer.parseInt(literal);
+        } catch (NumberFormatException e) {
+            try {
+                return (int) Double.parseDouble(literal);
+            } catch (NumberFormatException e2) {
+                throw error("Expected number but got '" + literal + "'");
+            }
+        }
+    }
+
+    /**
+     * Reads a number, <code>true</code>, <code>false</code> or <code>null</code>
+     */
+    private String readLiteral() throws IOException {
+        skipWhitespace();
+        sb.setLength(0);
+
+        while (true) {
+            int c = peekOrEnd();
+            if (c < 0 || c == ',' || c == '}' || c == ']' || isWhitespace((char) c))
+                break;
+
+            sb.append(next());
+        }
+
+        if (sb.length() == 0)
+            throw error("Expected value");
+
+        return sb.toString();
+    }
+
+    private void skipValue() throws IOException {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            // Skip nested objects and arrays, only strings need special care
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+
+                next();
+                if (c == '{' || c == '[')
+                    ++depth;
+                else if (c == '}' || c == ']')
+                    --depth;
+            } while (depth > 0);
+        } else {
+            readLiteral();
+        }
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while (true) {
+            char c = next();
+            if (c == '"')
+                return;
+            if (c == '\\')
+                next();
+        }
+    }
+
+
+    // ---- Timestamps ----
+
+    /**
+     * Parses ISO-8601 instants like <code>2022-02-02T17:33:22.355Z</code> (also with <code>+hh:mm</code> offsets and
+     * any number of fraction digits) to millis since epoch, without going through
+     * {@link java.time.format.DateTimeFormatter}.
+     */
+    static long parseIsoMillis(CharSequence iso) throws IOException {
+        try {
+            if (iso.length() < 20 || iso.charAt(4) != '-' || iso.charAt(7) != '-' || iso.charAt(10) != 'T'
+                    || iso.charAt(13) != ':' || iso.charAt(16) != ':')
+                throw new NumberFormatException();
+
+            int year = parseDigits(iso, 0, 4);
+            int month = parseDigits(iso, 5, 7);
+            int day = parseDigits(iso, 8, 10);
+            int hour = parseDigits(iso, 11, 13);
+            int minute = parseDigits(iso, 14, 16);
+            int second = parseDigits(iso, 17, 19);
+
+            if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59)
+                throw new NumberFormatException();
+
+            int pos = 19;
+            int millis = 0;
+            if (iso.charAt(pos) == '.') {
+                ++pos;
+                int digits = 0;
+                while (pos < iso.length() && Character.isDigit(iso.charAt(pos))) {
+                    if (digits < 3)
+                        millis = millis * 10 + (iso.charAt(pos) - '0');
+                    ++digits;
+                    ++pos;
+                }
+
+                if (digits == 0)
+                    throw new NumberFormatException();
+
+                for (; digits < 3; ++digits)
+                    millis *= 10;
+            }
+
+            int offsetSeconds;
+            char zone = iso.charAt(pos);
+            if (zone == 'Z' && pos + 1 == iso.length()) {
+                offsetSeconds = 0;
+            } else if ((zone == '+' || zone == '-') && pos + 6 == iso.length() && iso.charAt(pos + 3) == ':') {
+                offsetSeconds = parseDigits(iso, pos + 1, pos + 3) * 3600 + parseDigits(iso, pos + 4, pos + 6) * 60;
+                if (zone == '-')
+                    offsetSeconds = -offsetSeconds;
+            } else {
+                throw new NumberFormatException();
+            }
+
+            long epochSeconds = daysFromCivil(year, month, day) * 86400L
+                    + hour * 3600L + minute * 60L + second - offsetSeconds;
+
+            return epochSeconds * 1000L + millis;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid ISO-8601 timestamp: '" + iso + "'");
+        }
+    }
+
+    private static int parseDigits(CharSequence str, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; ++i) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9')
+                throw new NumberFormatException();
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 of the given proleptic gregorian date (Howard Hinnant's days_from_civil)
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+
+    // ---- Tokenizer ----
+
+    private void expect(char expected) throws IOException {
+        skipWhitespace();
+        char c = next();
+        if (c != expected)
+            throw error("Expected '" + expected + "' but got '" + c + "'");
+    }
+
+    private boolean tryConsume(char expected) throws IOException {
+        skipWhitespace();
+        if (peekOrEnd() != expected)
+            return false;
+
+        ++bufferPos;
+        return true;
+    }
+
+    private char peek() throws IOException {
+        skipWhitespace();
+        int c = peekOrEnd();
+        if (c < 0)
+            throw error("Unexpected end of input");
+        return (char) c;
+    }
+
+    private void skipWhitespace() throws IOException {
+        int c;
+        while ((c = peekOrEnd()) >= 0 && isWhitespace((char) c))
+            ++bufferPos;
+    }
+
+    private int peekOrEnd() throws IOException {
+        if (bufferPos == bufferLen && !fill())
+            return -1;
+        return buffer[bufferPos];
+    }
+
+    private char next() throws IOException {
+        if (bufferPos == bufferLen && !fill())
+            throw error("Unexpected end of input");
+        return buffer[bufferPos++];
+    }
+
+    private boolean fill() throws IOException {
+        bufferLen = reader.read(buffer, 0, buffer.length);
+        bufferPos = 0;
+        if (bufferLen <= 0) {
+            bufferLen = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static IOException error(String message) {
+        return new IOException("Malformed nightbot commands response: " + message);
+    }
+}
@@ -0,0 +1,37 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+/**
+ * Unexpected HTTP status code in a response of the nightbot api
+ */
+public class NightbotHttpException extends Exception {
+
+    private final int status;
+    private final long retryAfterMillis;
+
+
+    public NightbotHttpException(String message, int status, long retryAfterMillis) {
+        super(message);
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return how long nightbot asked us to wait before the next request, or -1 if it didn't say
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /** 429 Too Many Requests */
+    public boolean isRateLimited() {
+        return status == 429;
+    }
+
+    public boolean isServerError() {
+        return status >= 500;
+    }
+}
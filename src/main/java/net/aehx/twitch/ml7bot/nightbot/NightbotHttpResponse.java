@@ -0,0 +1,43 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Status and headers of an HTTP response of the nightbot api. The body is streamed to a
+ * {@link NightbotTransport.ResponseReader}.
+ */
+public class NightbotHttpResponse {
+
+    private final int status;
+    private final String statusMessage;
+    private final Map<String, String> headers;
+
+    /**
+     * @param headers with lower-case names
+     */
+    public NightbotHttpResponse(int status, String statusMessage, Map<String, String> headers) {
+        this.status = status;
+        this.statusMessage = statusMessage;
+        this.headers = headers;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    /**
+     * @return value of the header (case-insensitive), or <code>null</code>
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+}
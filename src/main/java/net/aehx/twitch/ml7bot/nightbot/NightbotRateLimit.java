@@ -0,0 +1,71 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+/**
+ * Rate limit state reported by the nightbot api in the <code>X-RateLimit-*</code> response headers
+ */
+public class NightbotRateLimit {
+
+    public final int limit;
+    public final int remaining;
+
+    /** When the limit resets, in millis since epoch */
+    public final long resetAtMillis;
+
+
+    public NightbotRateLimit(int limit, int remaining, long resetAtMillis) {
+        this.limit = limit;
+        this.remaining = remaining;
+        this.resetAtMillis = resetAtMillis;
+    }
+
+    /**
+     * @return the rate limit of the response, or <code>null</code> if it has no (valid) rate limit headers
+     */
+    public static NightbotRateLimit fromResponse(NightbotHttpResponse response, long nowMillis) {
+        final String limit = response.getHeader("X-RateLimit-Limit");
+        final String remaining = response.getHeader("X-RateLimit-Remaining");
+        final String reset = response.getHeader("X-RateLimit-Reset");
+        if (limit == null || remaining == null || reset == null)
+            return null;
+
+        try {
+            return new NightbotRateLimit(Integer.parseInt(limit.trim()), Integer.parseInt(remaining.trim()),
+                    parseReset(reset.trim(), nowMillis));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Nightbot sends the reset time as unix timestamp in seconds. Also accept millis and (small) relative seconds,
+     * like other apis send them.
+     */
+    private static long parseReset(String reset, long nowMillis) {
+        final long value = (long) Double.parseDouble(reset);
+        if (value > 100_000_000_000L)
+            return value;
+        if (value > 1_000_000_000L)
+            return value * 1000;
+        return nowMillis + value * 1000;
+    }
+
+    /**
+     * @return value of a <code>Retry-After</code> header in millis, or -1 if missing or not in seconds
+     */
+    static long parseRetryAfterMillis(NightbotHttpResponse response) {
+        final String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter == null)
+            return -1;
+
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return remaining + "/" + limit + " (resets at " + resetAtMillis + ")";
+    }
+}
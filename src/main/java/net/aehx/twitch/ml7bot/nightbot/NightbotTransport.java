@@ -0,0 +1,40 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the HTTP requests of {@link NightbotAPI}. Implementations decide about connection reuse, compression and
+ * how many requests may be in flight at once.
+ */
+public interface NightbotTransport extends Closeable {
+
+    /**
+     * Sends a GET request and hands the response to the reader, on a thread that may block. The returned future
+     * completes with the result of the reader for any response status; it only fails on I/O errors, timeouts and
+     * exceptions of the reader.
+     */
+    <T> CompletableFuture<T> get(URL url, Map<String, String> headers, ResponseReader<T> reader);
+
+    /**
+     * @return how long a request may take at most, including the wait for a free connection. 0 if unlimited.
+     */
+    long getTimeoutMillis();
+
+    @Override
+    void close();
+
+
+    @FunctionalInterface
+    interface ResponseReader<T> {
+
+        /**
+         * @param body already decompressed body, never <code>null</code>. Closed by the transport afterwards, and
+         *             whatever the reader leaves unread is skipped.
+         */
+        T read(NightbotHttpResponse response, InputStream body) throws Exception;
+    }
+}
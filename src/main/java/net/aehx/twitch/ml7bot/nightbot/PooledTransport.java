@@ -0,0 +1,106 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.http.HttpHeaders;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Non-blocking {@link NightbotTransport} on top of reactor-netty, the HTTP client Discord4J uses as well.
+ *
+ * <p>
+ *     Keeps a pool of keep-alive connections, requests gzip/deflate compressed responses and limits the number of
+ *     requests in flight to the pool size; further requests wait for a free connection. No thread is blocked while
+ *     a request is in flight, so many channel fetches can run at once. Once received, the body is read straight
+ *     from netty's buffers on a worker thread.
+ * </p>
+ */
+public class PooledTransport implements NightbotTransport {
+
+    private final ConnectionProvider connectionProvider;
+    private final HttpClient client;
+    private final long timeoutMillis;
+
+
+    public PooledTransport(int maxConnections, int connectTimeoutMillis, int readTimeoutMillis) {
+        connectionProvider = ConnectionProvider.builder("nightbot")
+                .maxConnections(maxConnections)
+                // Polls are already limited by the nightbot request budget, queue them all instead of failing some
+                .pendingAcquireMaxCount(-1)
+                .pendingAcquireTimeout(Duration.ofMillis(connectTimeoutMillis + (long) readTimeoutMillis))
+                .maxIdleTime(Duration.ofSeconds(30))
+                .build();
+
+        client = HttpClient.create(connectionProvider)
+                .compress(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis)
+                .responseTimeout(Duration.ofMillis(readTimeoutMillis));
+
+        timeoutMillis = connectTimeoutMillis == 0 || readTimeoutMillis == 0
+                ? 0
+                : 2 * (connectTimeoutMillis + (long) readTimeoutMillis);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> get(URL url, Map<String, String> headers, ResponseReader<T> reader) {
+        return client
+                .headers(h -> {
+                    h.set("Content-Type", "application/json");
+                    if (headers != null)
+                        headers.forEach(h::set);
+                })
+                .get()
+                .uri(url.toString())
+                // An InputStream over the received (decompressed) buffers, without copying them into one array
+                .responseSingle((response, body) -> body.asInputStream()
+                        .defaultIfEmpty(new ByteArrayInputStream(new byte[0]))
+                        // Readers decode and may block, keep that off the netty event loop
+                        .publishOn(Schedulers.boundedElastic())
+                        .map(in -> read(reader, new NightbotHttpResponse(
+                                response.status().code(),
+                                response.status().reasonPhrase(),
+                                toMap(response.responseHeaders())), in)))
+                .toFuture();
+    }
+
+    /**
+     * Closing the stream releases the buffers
+     */
+    private static <T> T read(ResponseReader<T> reader, NightbotHttpResponse response, InputStream body) {
+        try (InputStream in = body) {
+            return reader.read(response, in);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * A request may first wait as long for a free connection
+     */
+    @Override
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    private static Map<String, String> toMap(HttpHeaders headers) {
+        Map<String, String> map = new HashMap<>();
+        headers.forEach(header -> map.putIfAbsent(header.getKey().toLowerCase(Locale.ROOT), header.getValue()));
+        return map;
+    }
+
+    @Override
+    public void close() {
+        connectionProvider.dispose();
+    }
+}
@@ -0,0 +1,141 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link NightbotTransport} based on {@link HttpURLConnection}.
+ *
+ * <p>
+ *     The reader gets the body straight from the connection. Afterwards, the rest is skipped and the stream closed
+ *     without disconnecting, so the JDK keeps the connection alive and reuses it for the next request to the same
+ *     host. Requests and their readers are run on a bounded pool of threads, which also limits how many are in
+ *     flight at once. Threads are only created when needed.
+ * </p>
+ */
+public class UrlConnectionTransport implements NightbotTransport {
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final ThreadPoolExecutor executor;
+
+
+    public UrlConnectionTransport(int maxConcurrentRequests, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+
+        executor = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "nightbot-http-" + THREAD_COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> get(URL url, Map<String, String> headers, ResponseReader<T> reader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return execute(url, headers, reader);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * A request may first wait as long for a free thread
+     */
+    @Override
+    public long getTimeoutMillis() {
+        if (connectTimeoutMillis == 0 || readTimeoutMillis == 0)
+            return 0;
+        return 2 * (connectTimeoutMillis + (long) readTimeoutMillis);
+    }
+
+    private <T> T execute(URL url, Map<String, String> headers, ResponseReader<T> reader) throws Exception {
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(connectTimeoutMillis);
+        con.setReadTimeout(readTimeoutMillis);
+        con.setRequestMethod("GET");
+        con.setRequestProperty("Content-Type", "application/json");
+        con.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+        if (headers != null)
+            headers.forEach(con::setRequestProperty);
+
+        final int status = con.getResponseCode();
+
+        Map<String, String> responseHeaders = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : con.getHeaderFields().entrySet()) {
+            // The status line has a null key
+            if (header.getKey() != null && !header.getValue().isEmpty())
+                responseHeaders.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue().get(0));
+        }
+        NightbotHttpResponse response = new NightbotHttpResponse(status, con.getResponseMessage(), responseHeaders);
+
+        InputStream raw = status >= 400 ? con.getErrorStream() : con.getInputStream();
+        if (raw == null)
+            return reader.read(response, new ByteArrayInputStream(new byte[0]));
+
+        InputStream body = decompress(raw, con.getContentEncoding());
+        try {
+            return reader.read(response, body);
+        } finally {
+            skipAndClose(body);
+        }
+    }
+
+    private static InputStream decompress(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null)
+            return in;
+
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in);
+            case "deflate":
+                return new InflaterInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Reads until the end and closes the stream, which hands the connection back to the keep-alive cache
+     */
+    private static void skipAndClose(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+
+        try {
+            while (in.read(buffer) != -1) {
+                // Only skipped
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
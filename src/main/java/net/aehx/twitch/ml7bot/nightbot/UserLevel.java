@@ -0,0 +1,50 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+/**
+ * Who may use a command, as in the <code>userLevel</code> field of the nightbot api
+ */
+public enum UserLevel {
+    EVERYONE("everyone"),
+    SUBSCRIBER("subscriber"),
+    REGULAR("regular"),
+    TWITCH_VIP("twitch_vip"),
+    MODERATOR("moderator"),
+    ADMIN("admin"),
+    OWNER("owner"),
+    /** Level added to nightbot after this was written, its name is kept in {@link NightbotCommand#otherLevel} */
+    UNKNOWN("unknown");
+
+    private static final UserLevel[] VALUES = values();
+
+    private final String apiName;
+
+    UserLevel(String apiName) {
+        this.apiName = apiName;
+    }
+
+    public String getApiName() {
+        return apiName;
+    }
+
+    /**
+     * @return {@link #UNKNOWN} for unknown levels, <code>null</code> for <code>null</code>
+     */
+    public static UserLevel fromApiName(CharSequence apiName) {
+        if (apiName == null)
+            return null;
+
+        for (UserLevel level : VALUES) {
+            if (level.apiName.contentEquals(apiName))
+                return level;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * The api name, as shown in announcements
+     */
+    @Override
+    public String toString() {
+        return apiName;
+    }
+}
@@ -0,0 +1,15 @@
+package net.aehx.twitch.ml7bot.replay;
+
+import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
+
+public class ChatLogEntry {
+    /** Time the message was originally sent, or -1 if unknown */
+    public final long timestampMillis;
+
+    public final ChannelMessageEvent event;
+
+    public ChatLogEntry(long timestampMillis, ChannelMessageEvent event) {
+        this.timestampMillis = timestampMillis;
+        this.event = event;
+    }
+}
@@ -0,0 +1,135 @@
+package net.aehx.twitch.ml7bot.replay;
+
+import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
+import com.github.twitch4j.chat.events.channel.IRCMessageEvent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads chat messages from a recorded twitch IRC log, plain or gzip compressed.
+ *
+ * <p>
+ *     Every line is a raw IRC line as received from twitch, optionally prefixed by the epoch millis it was
+ *     received at and a space:
+ *     <pre>1643823202355 @badges=moderator/1;mod=1;tmi-sent-ts=1643823202355 :foo!foo@foo.tmi.twitch.tv PRIVMSG #bar :!addcom !test hi</pre>
+ *     Without prefix, the <code>tmi-sent-ts</code> tag is used as timestamp. Lines other than <code>PRIVMSG</code>,
+ *     empty lines and lines starting with <code>#</code> are skipped.
+ * </p>
+ */
+public class ChatLogReader implements Closeable {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private final BufferedReader reader;
+
+
+    public ChatLogReader(InputStream in) throws IOException {
+        BufferedInputStream bufferedIn = new BufferedInputStream(in);
+
+        bufferedIn.mark(2);
+        int magic = bufferedIn.read() | (bufferedIn.read() << 8);
+        bufferedIn.reset();
+
+        InputStream decodedIn = magic == GZIP_MAGIC ? new GZIPInputStream(bufferedIn) : bufferedIn;
+        reader = new BufferedReader(new InputStreamReader(decodedIn, StandardCharsets.UTF_8));
+    }
+
+    public static ChatLogReader open(Path path) throws IOException {
+        return new ChatLogReader(Files.newInputStream(path));
+    }
+
+    /**
+     * @return the next chat message or <code>null</code> at the end of the log
+     */
+    public ChatLogEntry next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            ChatLogEntry entry = parseLine(line);
+            if (entry != null)
+                return entry;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    static ChatLogEntry parseLine(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#')
+            return null;
+
+        long timestamp = -1;
+        if (Character.isDigit(line.charAt(0))) {
+            int split = line.indexOf(' ');
+            if (split < 0)
+                return null;
+
+            try {
+                timestamp = Long.parseLong(line.substring(0, split));
+            } catch (NumberFormatException e) {
+                // Some other log format, e.g. a date
+                return null;
+            }
+            line = line.substring(split + 1);
+        }
+
+        if (!line.contains(" PRIVMSG #"))
+            return null;
+
+        if (timestamp < 0)
+            timestamp = parseSentTimestamp(line);
+
+        IRCMessageEvent ircEvent = new IRCMessageEvent(line,
+                Collections.emptyMap(), Collections.emptyMap(), Collections.emptySet());
+
+        if (!ircEvent.getMessage().isPresent())
+            return null;
+
+        ChannelMessageEvent event = new ChannelMessageEvent(
+                ircEvent.getChannel(),
+                ircEvent,
+                ircEvent.getUser(),
+                ircEvent.getMessage().get(),
+                ircEvent.getClientPermissions());
+
+        return new ChatLogEntry(timestamp, event);
+    }
+
+    /**
+     * @return value of the <code>tmi-sent-ts</code> tag, or -1
+     */
+    private static long parseSentTimestamp(String line) {
+        if (line.charAt(0) != '@')
+            return -1;
+
+        int tagsEnd = line.indexOf(' ');
+        if (tagsEnd < 0)
+            return -1;
+
+        for (String tag : line.substring(1, tagsEnd).split(";")) {
+            if (tag.startsWith("tmi-sent-ts=")) {
+                try {
+                    return Long.parseLong(tag.substring("tmi-sent-ts=".length()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+
+        return -1;
+    }
+}
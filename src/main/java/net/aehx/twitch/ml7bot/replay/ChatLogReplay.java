@@ -0,0 +1,264 @@
+package net.aehx.twitch.ml7bot.replay;
+
+import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
+import com.github.twitch4j.common.enums.CommandPermission;
+import net.aehx.twitch.ml7bot.AdaptivePollScheduler;
+import net.aehx.twitch.ml7bot.AnnouncementDispatcher;
+import net.aehx.twitch.ml7bot.ChatMessagePipeline;
+import net.aehx.twitch.ml7bot.CommandChangelogService;
+import net.aehx.twitch.ml7bot.DiscordMessageSender;
+import net.aehx.twitch.ml7bot.TimingWheelScheduler;
+import net.aehx.twitch.ml7bot.config.CommandChangelogChannelConfig;
+import net.aehx.twitch.ml7bot.config.Config;
+import net.aehx.twitch.ml7bot.config.InvalidConfigException;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recorded chat log through the same {@link ChatMessagePipeline} and
+ * {@link CommandChangelogService#onChatMessage} path as live twitch chat, to benchmark how many messages per second
+ * the command changelog can handle. Nightbot and discord are replaced by in-process stand-ins.
+ *
+ * <p>
+ *     Usage: <code>java -cp ml7bot-all.jar net.aehx.twitch.ml7bot.replay.ChatLogReplay &lt;chat.log[.gz]&gt;
+ *     [--speed &lt;factor&gt;] [--commands &lt;count&gt;]</code>
+ * </p>
+ *
+ * <p>
+ *     Without <code>--speed</code>, messages are replayed as fast as possible. Otherwise the original message
+ *     timing is kept, sped up by the given factor. Once all messages were handled, the commands updates the chat
+ *     edits are waiting for run right away, so their diffs and announcements are part of the measured time.
+ * </p>
+ */
+public class ChatLogReplay {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChatLogReplay.class);
+
+    private static final int PIPELINE_CAPACITY = 8192;
+    private static final int PIPELINE_BATCH_SIZE = 256;
+
+    private final double speed;
+    private final Config config;
+    private final MetricsService metricsService;
+    private final ReplayNightbotAPI nightbot;
+    private final AdaptivePollScheduler pollScheduler;
+    private final Map<String, CommandChangelogService> services;
+    private final AtomicLong announcements;
+
+    /** Submit times of the messages currently in the pipeline, indexed by sequence number */
+    private final long[] submitNanos;
+    private final int submitNanosMask;
+    /** Only written by the pipeline worker */
+    private volatile long handledMessages;
+    private long[] latenciesNanos;
+
+    private final DiscordMessageSender messageSender;
+    private TimingWheelScheduler scheduler;
+    private AnnouncementDispatcher announcementDispatcher;
+
+
+    /**
+     * @param speed factor to speed up the original message timing by, or <= 0 to replay as fast as possible
+     * @param initialCommandCount number of commands every channel starts with
+     */
+    public ChatLogReplay(double speed, int initialCommandCount) throws InvalidConfigException {
+        this.speed = speed;
+
+        Properties props = new Properties();
+        props.setProperty("discord.token", "replay");
+        // The stand-in has no request limit, updates should never be deferred for the budget
+        props.setProperty("nightbot.requestsperminute", String.valueOf(Integer.MAX_VALUE / 2));
+        config = Config.fromProperties(props);
+
+        metricsService = new MetricsService("replay", false, null, 0);
+        nightbot = new ReplayNightbotAPI(initialCommandCount);
+        pollScheduler = new AdaptivePollScheduler(config, nightbot::getRateLimit, metricsService);
+        messageSender = new DiscordMessageSender(config.getDiscordMessagesConcurrency(),
+                Duration.ofMillis(config.getDiscordMessagesTimeoutMillis()), config.getDiscordMessagesRetries(),
+                metricsService);
+        services = new ConcurrentHashMap<>();
+        announcements = new AtomicLong();
+
+        // The pipeline blocks when full, so there are never more messages in flight than capacity + one batch
+        int inFlight = Integer.highestOneBit(PIPELINE_CAPACITY + PIPELINE_BATCH_SIZE) << 1;
+        submitNanos = new long[inFlight];
+        submitNanosMask = inFlight - 1;
+        latenciesNanos = new long[1024];
+    }
+
+    public ReplayReport replay(ChatLogReader reader) throws IOException {
+        scheduler = new TimingWheelScheduler("replay", 10, 1, metricsService);
+        scheduler.start();
+        announcementDispatcher = new AnnouncementDispatcher(messageSender, null, scheduler,
+                (discordChannelId, msg) -> Mono.fromRunnable(announcements::incrementAndGet), metricsService);
+
+        ChatMessagePipeline pipeline = new ChatMessagePipeline(PIPELINE_CAPACITY, PIPELINE_BATCH_SIZE,
+                ChatMessagePipeline.OverflowPolicy.BLOCK, this::handleMessage, metricsService);
+        pipeline.start();
+
+        final long allocatedBefore = getAllocatedBytes();
+        final long startNanos = System.nanoTime();
+        long firstTimestamp = -1;
+        long submitted = 0;
+
+        ChatLogEntry entry;
+        while ((entry = reader.next()) != null) {
+            final String channel = entry.event.getChannel().getName().toLowerCase(Locale.ROOT);
+            services.computeIfAbsent(channel, this::startService);
+
+            if (speed > 0 && entry.timestampMillis >= 0) {
+                if (firstTimestamp < 0)
+                    firstTimestamp = entry.timestampMillis;
+
+                long due = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(entry.timestampMillis - firstTimestamp)
+                        / speed);
+                long now;
+                while ((now = System.nanoTime()) < due)
+                    LockSupport.parkNanos(due - now);
+            }
+
+            submitNanos[(int) (submitted++ & submitNanosMask)] = System.nanoTime();
+            pipeline.submit(entry.event);
+        }
+
+        // Measure while the worker is alive, the allocations of exited threads are not counted
+        while (handledMessages < submitted)
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+
+        // Don't wait for the scheduled (wall clock) updates
+        for (CommandChangelogService service : services.values()) {
+            service.updateNow();
+            service.stop();
+        }
+
+        final long durationNanos = System.nanoTime() - startNanos;
+        final long allocatedBytes = allocatedBefore < 0 ? -1 : getAllocatedBytes() - allocatedBefore;
+
+        pipeline.stop();
+        try {
+            announcementDispatcher.drain(Duration.ofSeconds(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.shutdownNow();
+        messageSender.stop(Duration.ofSeconds(10));
+
+        return new ReplayReport(handledMessages, announcements.get(), durationNanos,
+                Arrays.copyOf(latenciesNanos, (int) handledMessages), allocatedBytes);
+    }
+
+    /**
+     * Runs on the pipeline worker thread
+     */
+    private void handleMessage(ChannelMessageEvent event) {
+        final String channel = event.getChannel().getName().toLowerCase(Locale.ROOT);
+        services.get(channel).onChatMessage(event);
+
+        final long handled = handledMessages;
+        final long latency = System.nanoTime() - submitNanos[(int) (handled & submitNanosMask)];
+        if (handled == latenciesNanos.length)
+            latenciesNanos = Arrays.copyOf(latenciesNanos, latenciesNanos.length * 2);
+        latenciesNanos[(int) handled] = latency;
+
+        // Act like nightbot reacting to the chat command. Not part of the measured latency.
+        Set<CommandPermission> permissions = event.getPermissions();
+        if (permissions.contains(CommandPermission.MODERATOR) || permissions.contains(CommandPermission.BROADCASTER))
+            nightbot.applyChatEdit(channel, event.getMessage());
+
+        handledMessages = handled + 1;
+    }
+
+    private CommandChangelogService startService(String channel) {
+        CommandChangelogChannelConfig channelConfig =
+                new CommandChangelogChannelConfig(channel, services.size() + 1, Collections.emptySet());
+
+        CommandChangelogService service = new ReplayCommandChangelogService(channelConfig);
+        service.start(config.getCommandChangelogUpdateIntervalMillis());
+        return service;
+    }
+
+    /**
+     * @return bytes allocated by all live threads so far, or -1 if not supported by the JVM
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!sunThreadBean.isThreadAllocatedMemorySupported() || !sunThreadBean.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        long total = 0;
+        for (long allocated : sunThreadBean.getThreadAllocatedBytes(sunThreadBean.getAllThreadIds())) {
+            if (allocated > 0)
+                total += allocated;
+        }
+
+        return total;
+    }
+
+
+    /**
+     * Counts announcements instead of sending them to discord
+     */
+    private class ReplayCommandChangelogService extends CommandChangelogService {
+
+        ReplayCommandChangelogService(CommandChangelogChannelConfig channelConfig) {
+            super(config, channelConfig, null, announcementDispatcher, ChatLogReplay.this.nightbot, scheduler, pollScheduler,
+                    null, null, metricsService);
+        }
+
+        @Override
+        protected void connectChangelogChannel() {
+            // No discord
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java -cp ... " + ChatLogReplay.class.getName() +
+                    " <chat.log[.gz]> [--speed <factor>] [--commands <count>]");
+            System.exit(1);
+        }
+
+        double speed = 0;
+        int initialCommandCount = 100;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--speed"))
+                speed = Double.parseDouble(args[i + 1]);
+            else if (args[i].equals("--commands"))
+                initialCommandCount = Integer.parseInt(args[i + 1]);
+            else
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+        }
+
+        LOG.info("Replaying {} {}...", args[0], speed > 0 ? "at " + speed + "x speed" : "as fast as possible");
+
+        ReplayReport report;
+        try (ChatLogReader reader = ChatLogReader.open(Paths.get(args[0]))) {
+            report = new ChatLogReplay(speed, initialCommandCount).replay(reader);
+        }
+
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,105 @@
+package net.aehx.twitch.ml7bot.replay;
+
+import net.aehx.twitch.ml7bot.CommandChangelogService;
+import net.aehx.twitch.ml7bot.nightbot.NightbotAPI;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process stand-in for the nightbot api. Every channel starts with the same synthetic command list, and
+ * replayed chat edits are applied to it, so the following commands updates find (and announce) actual changes.
+ */
+public class ReplayNightbotAPI extends NightbotAPI {
+
+    private final int initialCommandCount;
+
+    /** channel id -> (command name -> command object) */
+    private final Map<String, Map<String, JSONObject>> channelCommands = new ConcurrentHashMap<>();
+
+
+    public ReplayNightbotAPI(int initialCommandCount) {
+        this.initialCommandCount = initialCommandCount;
+    }
+
+    /**
+     * Applies an <code>!addcom/!editcom/!delcom</code> or <code>!commands add/edit/delete</code> chat message
+     */
+    public void applyChatEdit(String channel, String message) {
+        final String command = CommandChangelogService.COMMAND_MODIFICATION_MATCHER.match(message);
+        if (command == null)
+            return;
+
+        final Map<String, JSONObject> commands = getCommands(channel);
+        final String lowerMessage = message.toLowerCase(Locale.ROOT);
+        if (lowerMessage.startsWith("!delcom") || lowerMessage.startsWith("!commands delete")) {
+            commands.remove(command);
+            return;
+        }
+
+        final String text = message.substring(message.indexOf(command) + command.length()).trim();
+        final String now = Instant.now().toString();
+
+        JSONObject previous = commands.get(command);
+        JSONObject commandObj = createCommand(command, text);
+        if (previous != null)
+            commandObj.put("createdAt", previous.getString("createdAt"));
+        commandObj.put("updatedAt", now);
+
+        commands.put(command, commandObj);
+    }
+
+    @Override
+    protected boolean servesCommandsInProcess() {
+        return true;
+    }
+
+    @Override
+    protected JSONObject fetchChannelCommandsJson(String channelId) {
+        JSONArray commandsArr = new JSONArray();
+        getCommands(channelId).values().forEach(commandsArr::put);
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("commands", commandsArr);
+        return responseObj;
+    }
+
+    @Override
+    protected JSONObject fetchChannelByNameJson(String name) {
+        // Use the twitch channel name as nightbot channel id
+        JSONObject channelObj = new JSONObject();
+        channelObj.put("_id", name);
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("channel", channelObj);
+        return responseObj;
+    }
+
+    private Map<String, JSONObject> getCommands(String channelId) {
+        return channelCommands.computeIfAbsent(channelId, id -> {
+            Map<String, JSONObject> commands = new ConcurrentHashMap<>();
+            for (int i = 0; i < initialCommandCount; ++i) {
+                String name = "!synthetic" + i;
+                commands.put(name, createCommand(name, "Synthetic command " + i + " -> https://twitch.tv/" + id));
+            }
+            return commands;
+        });
+    }
+
+    private static JSONObject createCommand(String name, String message) {
+        JSONObject commandObj = new JSONObject();
+        commandObj.put("_id", "replay-" + name);
+        commandObj.put("createdAt", "2022-02-02T17:33:22.000Z");
+        commandObj.put("updatedAt", "2022-02-02T17:33:22.000Z");
+        commandObj.put("name", name);
+        commandObj.put("message", message);
+        commandObj.put("userLevel", "everyone");
+        commandObj.put("count", 0);
+        commandObj.put("coolDown", 30);
+        return commandObj;
+    }
+}
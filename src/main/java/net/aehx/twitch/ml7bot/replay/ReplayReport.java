@@ -0,0 +1,70 @@
+package net.aehx.twitch.ml7bot.replay;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of a {@link ChatLogReplay} run
+ */
+public class ReplayReport {
+
+    public final long messages;
+    public final long announcements;
+    public final long durationNanos;
+
+    /** Sorted latencies between submitting a message and it being handled */
+    private final long[] latenciesNanos;
+
+    /** Bytes allocated by all threads during the replay, or -1 if the JVM can't tell */
+    public final long allocatedBytes;
+
+
+    public ReplayReport(long messages, long announcements, long durationNanos, long[] latenciesNanos,
+                        long allocatedBytes) {
+        this.messages = messages;
+        this.announcements = announcements;
+        this.durationNanos = durationNanos;
+        this.latenciesNanos = latenciesNanos.clone();
+        this.allocatedBytes = allocatedBytes;
+
+        Arrays.sort(this.latenciesNanos);
+    }
+
+    public double getMessagesPerSecond() {
+        return durationNanos > 0 ? messages / (durationNanos / 1e9) : 0;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public long getLatencyPercentileNanos(double percentile) {
+        if (latenciesNanos.length == 0)
+            return 0;
+
+        int index = (int) Math.ceil(percentile / 100.0 * latenciesNanos.length) - 1;
+        return latenciesNanos[Math.max(0, Math.min(index, latenciesNanos.length - 1))];
+    }
+
+    public double getAllocatedBytesPerSecond() {
+        if (allocatedBytes < 0 || durationNanos <= 0)
+            return -1;
+
+        return allocatedBytes / (durationNanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Replayed %d messages in %d ms (%.0f msg/s), %d announcements%n" +
+                        "Latency p50: %.3f ms, p90: %.3f ms, p99: %.3f ms, max: %.3f ms%n" +
+                        "Allocated: %s",
+                messages, TimeUnit.NANOSECONDS.toMillis(durationNanos), getMessagesPerSecond(), announcements,
+                getLatencyPercentileNanos(50) / 1e6,
+                getLatencyPercentileNanos(90) / 1e6,
+                getLatencyPercentileNanos(99) / 1e6,
+                getLatencyPercentileNanos(100) / 1e6,
+                allocatedBytes < 0
+                        ? "unknown"
+                        : String.format("%d MiB (%.1f MiB/s)",
+                                allocatedBytes / (1024 * 1024), getAllocatedBytesPerSecond() / (1024 * 1024)));
+    }
+}
@@ -0,0 +1,355 @@
+package net.aehx.twitch.ml7bot.standin;
+
+import net.aehx.twitch.ml7bot.AdaptivePollScheduler;
+import net.aehx.twitch.ml7bot.AnnouncementDispatcher;
+import net.aehx.twitch.ml7bot.CommandChangelogService;
+import net.aehx.twitch.ml7bot.DiscordMessageSender;
+import net.aehx.twitch.ml7bot.TimingWheelScheduler;
+import net.aehx.twitch.ml7bot.config.CommandChangelogChannelConfig;
+import net.aehx.twitch.ml7bot.config.Config;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.CachingNightbotAPI;
+import net.aehx.twitch.ml7bot.nightbot.NightbotTransport;
+import net.aehx.twitch.ml7bot.nightbot.PooledTransport;
+import net.aehx.twitch.ml7bot.nightbot.UrlConnectionTransport;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Soak test of the command changelog against a {@link NightbotStandInServer}: runs a
+ * {@link CommandChangelogService} per synthetic channel over the real HTTP path, while commands are changed at
+ * random, and reports request latency, how long it took to announce each change, and what the stand-in served.
+ * Announcements are counted instead of sent to discord.
+ *
+ * <p>
+ *     Usage: <code>java -cp ml7bot-all.jar net.aehx.twitch.ml7bot.standin.NightbotSoak [--channels &lt;n&gt;]
+ *     [--commands &lt;n&gt;] [--duration &lt;seconds&gt;] [--interval &lt;millis&gt;] [--changes &lt;per second&gt;]
+ *     [--latency &lt;min-max millis&gt;] [--errors &lt;429 probability,500 probability,timeout probability&gt;]
+ *     [--transport pooled|urlconnection]</code>
+ * </p>
+ */
+public class NightbotSoak {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NightbotSoak.class);
+
+    private static final Pattern QUOTED_NAME = Pattern.compile("`([^`\\s]+)`");
+
+    private final NightbotStandInServer server;
+    private final Config config;
+    private final MetricsService metricsService;
+    private final String transportType;
+
+    /** channel + command name -> time of the not yet announced change */
+    private final Map<String, Long> pendingChanges;
+    private final List<Long> announceLatenciesNanos;
+    private final List<Long> requestLatenciesNanos;
+    private final AtomicLong announcements;
+    private final AtomicLong failedRequests;
+
+    private double rateLimitedProbability;
+    private double serverErrorProbability;
+    private double timeoutProbability;
+
+
+    public NightbotSoak(NightbotStandInServer server, long pollIntervalMillis, String transportType) throws Exception {
+        this.server = server;
+        this.transportType = transportType;
+
+        Properties props = new Properties();
+        props.setProperty("discord.token", "soak");
+        props.setProperty("commandchangelog.updateinterval.millis", String.valueOf(pollIntervalMillis));
+        props.setProperty("commandchangelog.poll.activeinterval.millis", String.valueOf(pollIntervalMillis));
+        props.setProperty("commandchangelog.poll.quietinterval.millis", String.valueOf(pollIntervalMillis));
+        props.setProperty("commandchangelog.poll.minbackoff.millis", "1000");
+        props.setProperty("commandchangelog.poll.maxbackoff.millis", "10000");
+        props.setProperty("nightbot.requestsperminute", "1000000");
+        config = Config.fromProperties(props);
+
+        metricsService = new MetricsService("soak", false, null, 0);
+        pendingChanges = new ConcurrentHashMap<>();
+        announceLatenciesNanos = Collections.synchronizedList(new ArrayList<>());
+        requestLatenciesNanos = Collections.synchronizedList(new ArrayList<>());
+        announcements = new AtomicLong();
+        failedRequests = new AtomicLong();
+    }
+
+    /**
+     * Faults the stand-in injects while commands are changed, see
+     * {@link NightbotStandInServer#setErrorProbabilities(double, double, double)}
+     */
+    public void setErrorProbabilities(double rateLimited, double serverError, double timeout) {
+        rateLimitedProbability = rateLimited;
+        serverErrorProbability = serverError;
+        timeoutProbability = timeout;
+    }
+
+    /**
+     * @param changesPerSecond random command changes over all channels per second
+     */
+    public String run(List<String> channels, long durationMillis, double changesPerSecond) throws Exception {
+        final CachingNightbotAPI nightbot = new CachingNightbotAPI(new TimedTransport(createTransport()),
+                server.getApiUrl(), TimeUnit.HOURS.toMillis(1), 0, TimeUnit.MINUTES.toMillis(10), metricsService);
+        final AdaptivePollScheduler pollScheduler =
+                new AdaptivePollScheduler(config, nightbot::getRateLimit, metricsService);
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("soak",
+                config.getCommandChangelogSchedulerTickMillis(),
+                Math.max(1, Runtime.getRuntime().availableProcessors()), metricsService);
+        scheduler.start();
+        final DiscordMessageSender messageSender = new DiscordMessageSender(config.getDiscordMessagesConcurrency(),
+                Duration.ofMillis(config.getDiscordMessagesTimeoutMillis()), config.getDiscordMessagesRetries(),
+                metricsService);
+        // Discord channel ids are the channel index + 1
+        final AnnouncementDispatcher announcementDispatcher = new AnnouncementDispatcher(messageSender, null,
+                scheduler, (discordChannelId, msg) -> Mono.fromRunnable(
+                        () -> onAnnouncement(channels.get((int) discordChannelId - 1), msg)),
+                metricsService);
+
+        final long interval = config.getCommandChangelogUpdateIntervalMillis();
+        final List<CommandChangelogService> services = new ArrayList<>();
+        long changes = 0;
+        try {
+            for (int i = 0; i < channels.size(); ++i) {
+                CommandChangelogService service = new SoakCommandChangelogService(
+                        new CommandChangelogChannelConfig(channels.get(i), i + 1, Collections.emptySet()),
+                        announcementDispatcher, nightbot, scheduler, pollScheduler);
+                service.start(interval * i / channels.size());
+                services.add(service);
+            }
+
+            // Faults only after the initial fetches, which don't retry
+            server.setErrorProbabilities(rateLimitedProbability, serverErrorProbability, timeoutProbability);
+
+            LOG.info("Started {} channels. Changing commands for {} s...",
+                    channels.size(), TimeUnit.MILLISECONDS.toSeconds(durationMillis));
+
+            final Random random = new Random();
+            final long startNanos = System.nanoTime();
+            final long pauseNanos = (long) (TimeUnit.SECONDS.toNanos(1) / changesPerSecond);
+            while (System.nanoTime() - startNanos < TimeUnit.MILLISECONDS.toNanos(durationMillis)) {
+                changeRandomCommand(channels.get(random.nextInt(channels.size())), random);
+                ++changes;
+                TimeUnit.NANOSECONDS.sleep(pauseNanos);
+            }
+
+            // Give the last changes time to show up
+            server.setErrorProbabilities(0, 0, 0);
+            Thread.sleep(interval * 2 + config.getCommandChangelogPollMaxBackoffMillis());
+        } finally {
+            services.forEach(CommandChangelogService::stop);
+            announcementDispatcher.drain(Duration.ofSeconds(10));
+            scheduler.shutdownNow();
+            messageSender.stop(Duration.ofSeconds(10));
+            nightbot.close();
+        }
+
+        return report(changes);
+    }
+
+    private void changeRandomCommand(String channel, Random random) {
+        final List<String> names = server.getCommandNames(channel);
+        final int action = random.nextInt(10);
+
+        if (names.isEmpty() || action < 2) {
+            String name = "!soak" + random.nextInt(Integer.MAX_VALUE);
+            pendingChanges.put(channel + " " + name, System.nanoTime());
+            server.setCommand(channel, name, "Added by soak test");
+        } else if (action < 3) {
+            String name = names.get(random.nextInt(names.size()));
+            pendingChanges.put(channel + " " + name, System.nanoTime());
+            server.deleteCommand(channel, name);
+        } else if (action < 8) {
+            String name = names.get(random.nextInt(names.size()));
+            pendingChanges.put(channel + " " + name, System.nanoTime());
+            server.setCommand(channel, name, "Edited by soak test " + random.nextInt());
+        } else {
+            // Only the count changes, must not be announced
+            server.useCommand(channel, names.get(random.nextInt(names.size())));
+        }
+    }
+
+    private void onAnnouncement(String channel, String msg) {
+        announcements.incrementAndGet();
+
+        // Messages may pack several announcements or a digest, each names its commands in `...`
+        final Matcher matcher = QUOTED_NAME.matcher(msg);
+        while (matcher.find()) {
+            Long changedAt = pendingChanges.remove(channel + " " + matcher.group(1));
+            if (changedAt != null)
+                announceLatenciesNanos.add(System.nanoTime() - changedAt);
+        }
+    }
+
+    private String report(long changes) {
+        final Timer diffDuration = metricsService.getRegistry().timer("command_diff_duration");
+        return String.format("%d changes, %d announcements, %d changes not announced%n" +
+                        "Change -> announcement: %s%n" +
+                        "Nightbot requests: %s, %d failed%n" +
+                        "Command list diffs: mean: %.3f ms, max: %.3f ms (n=%d)%n" +
+                        "Stand-in: %s",
+                changes, announcements.get(), pendingChanges.size(),
+                formatPercentiles(announceLatenciesNanos),
+                formatPercentiles(requestLatenciesNanos), failedRequests.get(),
+                diffDuration.mean(TimeUnit.MILLISECONDS), diffDuration.max(TimeUnit.MILLISECONDS), diffDuration.count(),
+                server.getStats());
+    }
+
+    private static String formatPercentiles(List<Long> latenciesNanos) {
+        long[] sorted;
+        synchronized (latenciesNanos) {
+            sorted = latenciesNanos.stream().mapToLong(Long::longValue).toArray();
+        }
+        if (sorted.length == 0)
+            return "-";
+
+        Arrays.sort(sorted);
+        return String.format("p50: %.1f ms, p95: %.1f ms, p99: %.1f ms, max: %.1f ms (n=%d)",
+                percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6, percentile(sorted, 99) / 1e6,
+                sorted[sorted.length - 1] / 1e6, sorted.length);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private NightbotTransport createTransport() {
+        if (transportType.equals("urlconnection"))
+            return new UrlConnectionTransport(8, 5000, 5000);
+
+        return new PooledTransport(8, 5000, 5000);
+    }
+
+
+    /**
+     * Records the latency of every request
+     */
+    private class TimedTransport implements NightbotTransport {
+        private final NightbotTransport transport;
+
+        TimedTransport(NightbotTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public <T> CompletableFuture<T> get(URL url, Map<String, String> headers, ResponseReader<T> reader) {
+            final long start = System.nanoTime();
+            // The api's reader fails for error statuses too
+            return transport.get(url, headers, reader).whenComplete((result, e) -> {
+                requestLatenciesNanos.add(System.nanoTime() - start);
+                if (e != null)
+                    failedRequests.incrementAndGet();
+            });
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return transport.getTimeoutMillis();
+        }
+
+        @Override
+        public void close() {
+            transport.close();
+        }
+    }
+
+    /**
+     * Counts announcements instead of sending them to discord
+     */
+    private class SoakCommandChangelogService extends CommandChangelogService {
+
+        SoakCommandChangelogService(CommandChangelogChannelConfig channelConfig,
+                                    AnnouncementDispatcher announcementDispatcher, CachingNightbotAPI nightbot,
+                                    TimingWheelScheduler scheduler, AdaptivePollScheduler pollScheduler) {
+            super(config, channelConfig, null, announcementDispatcher, nightbot, scheduler, pollScheduler, null, null, metricsService);
+        }
+
+        @Override
+        protected void connectChangelogChannel() {
+            // No discord
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int channelCount = 50;
+        int commandCount = 200;
+        long durationSeconds = 60;
+        long intervalMillis = 2000;
+        double changesPerSecond = 5;
+        String transport = "pooled";
+        long minLatency = 20, maxLatency = 80;
+        double rateLimited = 0, serverErrors = 0, timeouts = 0;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "--channels":
+                    channelCount = Integer.parseInt(value);
+                    break;
+                case "--commands":
+                    commandCount = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(value);
+                    break;
+                case "--interval":
+                    intervalMillis = Long.parseLong(value);
+                    break;
+                case "--changes":
+                    changesPerSecond = Double.parseDouble(value);
+                    break;
+                case "--transport":
+                    transport = value;
+                    break;
+                case "--latency": {
+                    String[] bounds = value.split("-");
+                    minLatency = Long.parseLong(bounds[0]);
+                    maxLatency = Long.parseLong(bounds[bounds.length - 1]);
+                    break;
+                }
+                case "--errors": {
+                    String[] probabilities = value.split(",");
+                    rateLimited = Double.parseDouble(probabilities[0]);
+                    serverErrors = Double.parseDouble(probabilities[1]);
+                    timeouts = Double.parseDouble(probabilities[2]);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        NightbotStandInServer server = new NightbotStandInServer(0);
+        List<String> channels = server.addSyntheticChannels(channelCount, commandCount);
+        server.setLatency(minLatency, maxLatency);
+        server.setTimeoutMillis(10_000);
+        server.start();
+
+        try {
+            NightbotSoak soak = new NightbotSoak(server, intervalMillis, transport);
+            soak.setErrorProbabilities(rateLimited, serverErrors, timeouts);
+            String report = soak.run(channels, TimeUnit.SECONDS.toMillis(durationSeconds), changesPerSecond);
+            System.out.println(report);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package net.aehx.twitch.ml7bot.standin;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local HTTP stand-in for the nightbot api endpoints we use (<code>/channels/t/{name}</code> and
+ * <code>/commands</code>), to test the real HTTP path under load without network.
+ *
+ * <p>
+ *     Command lists can be changed at any time, responses support <code>ETag</code> / <code>If-None-Match</code> and
+ *     gzip like the real api. Latency, <code>429</code> / <code>500</code> errors and timeouts (no response at all)
+ *     can be injected with a configurable probability. An optional rate limit sends <code>X-RateLimit-*</code>
+ *     headers and answers with 429 once it is used up.
+ * </p>
+ */
+public class NightbotStandInServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NightbotStandInServer.class);
+
+    private static final String API_PATH = "/1";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /** lower-case channel name -> channel */
+    private final Map<String, StandInChannel> channelsByName;
+    private final Map<String, StandInChannel> channelsById;
+    private final AtomicInteger channelIdCounter;
+
+    // Fault injection
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double rateLimitedProbability;
+    private volatile double serverErrorProbability;
+    private volatile double timeoutProbability;
+    private volatile long timeoutMillis;
+
+    // Rate limit
+    private volatile int rateLimitPerMinute;
+    private final Object rateLimitLock;
+    private long rateLimitWindowStart;
+    private int rateLimitWindowRequests;
+
+    private final Stats stats;
+
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    public NightbotStandInServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "nightbot-stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(API_PATH + "/", this::handle);
+
+        channelsByName = new ConcurrentHashMap<>();
+        channelsById = new ConcurrentHashMap<>();
+        channelIdCounter = new AtomicInteger();
+        rateLimitLock = new Object();
+        timeoutMillis = TimeUnit.SECONDS.toMillis(30);
+        stats = new Stats();
+    }
+
+    public void start() {
+        server.start();
+        LOG.info("Nightbot stand-in listening on {}", getApiUrl());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return base url to use instead of the real nightbot api url
+     */
+    public String getApiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + API_PATH;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+
+    // ---- Channels and commands ----
+
+    /**
+     * Adds a channel with <code>commandCount</code> synthetic commands (<code>!synthetic0</code>, ...)
+     *
+     * @return nightbot channel id
+     */
+    public String addChannel(String name, int commandCount) {
+        final StandInChannel channel = new StandInChannel(
+                "standin" + channelIdCounter.incrementAndGet(), name.toLowerCase(Locale.ROOT));
+
+        for (int i = 0; i < commandCount; ++i) {
+            String commandName = "!synthetic" + i;
+            channel.commands.put(commandName, createCommand(channel.id, commandName,
+                    "Synthetic command " + i + " -> https://twitch.tv/" + channel.name));
+        }
+
+        channelsByName.put(channel.name, channel);
+        channelsById.put(channel.id, channel);
+        return channel.id;
+    }
+
+    /**
+     * Adds channels named <code>synthetic0</code>, <code>synthetic1</code>, ...
+     *
+     * @return names of the added channels
+     */
+    public List<String> addSyntheticChannels(int channelCount, int commandsPerChannel) {
+        List<String> names = new ArrayList<>(channelCount);
+        for (int i = 0; i < channelCount; ++i) {
+            String name = "synthetic" + i;
+            addChannel(name, commandsPerChannel);
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Adds the command, or replaces message and update time of an existing one
+     */
+    public void setCommand(String channelName, String commandName, String message) {
+        final StandInChannel channel = getChannel(channelName);
+        synchronized (channel) {
+            JSONObject command = channel.commands.get(commandName);
+            if (command == null) {
+                channel.commands.put(commandName, createCommand(channel.id, commandName, message));
+            } else {
+                command.put("message", message);
+                command.put("updatedAt", Instant.now().toString());
+            }
+            channel.changed();
+        }
+    }
+
+    public void deleteCommand(String channelName, String commandName) {
+        final StandInChannel channel = getChannel(channelName);
+        synchronized (channel) {
+            if (channel.commands.remove(commandName) != null)
+                channel.changed();
+        }
+    }
+
+    /**
+     * Increments the use count of the command, like nightbot does when it is used in chat. Not a change that
+     * should be announced.
+     */
+    public void useCommand(String channelName, String commandName) {
+        final StandInChannel channel = getChannel(channelName);
+        synchronized (channel) {
+            JSONObject command = channel.commands.get(commandName);
+            if (command != null) {
+                command.put("count", command.getInt("count") + 1);
+                channel.changed();
+            }
+        }
+    }
+
+    /**
+     * @return names of the channel's current commands
+     */
+    public List<String> getCommandNames(String channelName) {
+        final StandInChannel channel = getChannel(channelName);
+        synchronized (channel) {
+            return new ArrayList<>(channel.commands.keySet());
+        }
+    }
+
+    private StandInChannel getChannel(String channelName) {
+        StandInChannel channel = channelsByName.get(channelName.toLowerCase(Locale.ROOT));
+        if (channel == null)
+            throw new IllegalArgumentException("Unknown channel: " + channelName);
+        return channel;
+    }
+
+    private static JSONObject createCommand(String channelId, String name, String message) {
+        final String now = Instant.now().toString();
+
+        JSONObject commandObj = new JSONObject();
+        commandObj.put("_id", channelId + "-" + name);
+        commandObj.put("createdAt", now);
+        commandObj.put("updatedAt", now);
+        commandObj.put("name", name);
+        commandObj.put("message", message);
+        commandObj.put("userLevel", "everyone");
+        commandObj.put("count", 0);
+        commandObj.put("coolDown", 30);
+        return commandObj;
+    }
+
+
+    // ---- Fault injection ----
+
+    /**
+     * Delays every response by a random time between the given bounds
+     */
+    public void setLatency(long minMillis, long maxMillis) {
+        minLatencyMillis = minMillis;
+        maxLatencyMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * @param rateLimited probability of answering with 429
+     * @param serverError probability of answering with 500
+     * @param timeout probability of not answering for <code>timeoutMillis</code> and then closing the connection
+     */
+    public void setErrorProbabilities(double rateLimited, double serverError, double timeout) {
+        rateLimitedProbability = rateLimited;
+        serverErrorProbability = serverError;
+        timeoutProbability = timeout;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param requestsPerMinute allowed requests per minute over all channels, 0 to disable the rate limit
+     */
+    public void setRateLimit(int requestsPerMinute) {
+        rateLimitPerMinute = requestsPerMinute;
+    }
+
+
+    // ---- HTTP ----
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            stats.requests.incrementAndGet();
+            stats.connections.add(exchange.getRemoteAddress().toString());
+
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendEmpty(exchange, 405);
+                return;
+            }
+
+            final long latency = minLatencyMillis + (maxLatencyMillis > minLatencyMillis
+                    ? ThreadLocalRandom.current().nextLong(maxLatencyMillis - minLatencyMillis + 1) : 0);
+            if (latency > 0)
+                Thread.sleep(latency);
+
+            final double fault = ThreadLocalRandom.current().nextDouble();
+            if (fault < timeoutProbability) {
+                stats.timeouts.incrementAndGet();
+                Thread.sleep(timeoutMillis);
+                return; // Closed without response below
+            }
+
+            if (!addRateLimitHeaders(exchange.getResponseHeaders())
+                    || fault < timeoutProbability + rateLimitedProbability) {
+                stats.rateLimited.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendJson(exchange, 429, "{\"status\":429,\"message\":\"Too Many Requests\"}".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            if (fault < timeoutProbability + rateLimitedProbability + serverErrorProbability) {
+                stats.serverErrors.incrementAndGet();
+                sendJson(exchange, 500, "{\"status\":500,\"message\":\"Internal Server Error\"}".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            final String path = exchange.getRequestURI().getPath().substring(API_PATH.length());
+            if (path.startsWith("/channels/t/"))
+                handleChannelByName(exchange, path.substring("/channels/t/".length()));
+            else if (path.equals("/commands"))
+                handleCommands(exchange);
+            else
+                sendEmpty(exchange, 404);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleChannelByName(HttpExchange exchange, String name) throws IOException {
+        final StandInChannel channel = channelsByName.get(name.toLowerCase(Locale.ROOT));
+        if (channel == null) {
+            sendJson(exchange, 404, "{\"status\":404,\"message\":\"Channel not found\"}".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        JSONObject channelObj = new JSONObject();
+        channelObj.put("_id", channel.id);
+        channelObj.put("name", channel.name);
+        channelObj.put("displayName", channel.name);
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("status", 200);
+        responseObj.put("channel", channelObj);
+
+        sendJson(exchange, 200, responseObj.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleCommands(HttpExchange exchange) throws IOException {
+        final String channelId = exchange.getRequestHeaders().getFirst("nightbot-channel");
+        final StandInChannel channel = channelId != null ? channelsById.get(channelId) : null;
+        if (channel == null) {
+            sendJson(exchange, 401, "{\"status\":401,\"message\":\"Unknown channel\"}".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        final byte[] body;
+        final String etag;
+        synchronized (channel) {
+            body = channel.getBody();
+            etag = "\"" + channel.id + "-" + channel.version + "\"";
+        }
+
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            stats.notModified.incrementAndGet();
+            sendEmpty(exchange, 304);
+            return;
+        }
+
+        sendJson(exchange, 200, body);
+    }
+
+    /**
+     * @return false if the rate limit is used up
+     */
+    private boolean addRateLimitHeaders(Headers headers) {
+        final int limit = rateLimitPerMinute;
+        if (limit <= 0)
+            return true;
+
+        final long now = System.currentTimeMillis();
+        final int remaining;
+        final long resetAt;
+        final boolean allowed;
+        synchronized (rateLimitLock) {
+            if (now - rateLimitWindowStart >= TimeUnit.MINUTES.toMillis(1)) {
+                rateLimitWindowStart = now;
+                rateLimitWindowRequests = 0;
+            }
+
+            ++rateLimitWindowRequests;
+            allowed = rateLimitWindowRequests <= limit;
+            remaining = Math.max(0, limit - rateLimitWindowRequests);
+            resetAt = rateLimitWindowStart + TimeUnit.MINUTES.toMillis(1);
+        }
+
+        headers.set("X-RateLimit-Limit", String.valueOf(limit));
+        headers.set("X-RateLimit-Remaining", String.valueOf(remaining));
+        headers.set("X-RateLimit-Reset", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(resetAt + 999)));
+        return allowed;
+    }
+
+    private void sendJson(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+
+        final String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+
+        stats.bytesSent.addAndGet(body.length);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+
+    private static class StandInChannel {
+        final String id;
+        final String name;
+
+        /** Guarded by the channel itself */
+        final Map<String, JSONObject> commands = new LinkedHashMap<>();
+        long version;
+        private byte[] body;
+
+        StandInChannel(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        void changed() {
+            ++version;
+            body = null;
+        }
+
+        /**
+         * @return response body of the current commands, only built again after changes
+         */
+        byte[] getBody() {
+            if (body == null) {
+                JSONArray commandsArr = new JSONArray();
+                commands.values().forEach(commandsArr::put);
+
+                JSONObject responseObj = new JSONObject();
+                responseObj.put("_total", commands.size());
+                responseObj.put("status", 200);
+                responseObj.put("commands", commandsArr);
+                body = responseObj.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return body;
+        }
+    }
+
+    /**
+     * Counters of everything the stand-in served
+     */
+    public static class Stats {
+        public final AtomicLong requests = new AtomicLong();
+        public final AtomicLong notModified = new AtomicLong();
+        public final AtomicLong rateLimited = new AtomicLong();
+        public final AtomicLong serverErrors = new AtomicLong();
+        public final AtomicLong timeouts = new AtomicLong();
+        public final AtomicLong bytesSent = new AtomicLong();
+
+        /** Remote addresses (ip:port) seen, i.e. the number of connections the clients opened */
+        final Set<String> connections = ConcurrentHashMap.newKeySet();
+
+        public int getConnectionCount() {
+            return connections.size();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests (%d not modified, %d rate limited, %d server errors, %d timeouts) " +
+                            "over %d connections, %d KiB sent",
+                    requests.get(), notModified.get(), rateLimited.get(), serverErrors.get(), timeouts.get(),
+                    getConnectionCount(), bytesSent.get() / 1024);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discord announcements that were not sent yet, so announcements survive discord outages and restarts.
+ *
+ * <p>
+ *     A single append-only {@link RecordLog} <code>announcements.outbox</code> holds one record per queued
+ *     announcement and one per acknowledged one. Both are forced to disk before returning, so an announcement is
+ *     sent at least once. Once the file holds {@link #COMPACT_AFTER_RECORDS} records more than there are pending
+ *     announcements, it is rewritten with only the pending ones.
+ * </p>
+ */
+public class AnnouncementOutbox {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AnnouncementOutbox.class);
+
+    static final int FORMAT_VERSION = 1;
+    static final int COMPACT_AFTER_RECORDS = 1024;
+
+    private static final byte TYPE_QUEUED = 1;
+    private static final byte TYPE_ACKNOWLEDGED = 2;
+
+    private final Path file;
+
+    /** id -> entry, in queue order */
+    private final Map<Long, Entry> pending;
+    private long lastId;
+    private int records;
+
+    // Metrics
+    private final Counter corruptRecords;
+
+
+    public AnnouncementOutbox(Path directory, MetricsService metricsService) throws IOException {
+        Files.createDirectories(directory);
+        file = directory.resolve("announcements.outbox");
+        pending = new LinkedHashMap<>();
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        corruptRecords = registry.counter("announcement_outbox_corrupt_records");
+
+        load();
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file))
+            return;
+
+        final boolean intact = RecordLog.read(file, (offset, payload) -> {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported announcement outbox format version " + version);
+
+            final byte type = in.readByte();
+            final long id = in.readLong();
+            if (type == TYPE_QUEUED)
+                pending.put(id, new Entry(id, in.readLong(), in.readLong(), CommandCodec.readString(in)));
+            else
+                pending.remove(id);
+
+            lastId = Math.max(lastId, id);
+            ++records;
+        });
+
+        if (!intact) {
+            corruptRecords.increment();
+            LOG.warn("Ignoring corrupt announcement outbox record #{} and everything after it in {}",
+                    records + 1, file);
+
+            // Records appended after the corrupt one would never be read
+            compact();
+        }
+
+        if (!pending.isEmpty())
+            LOG.info("Found {} unsent announcements in {}", pending.size(), file);
+    }
+
+    /**
+     * @return announcements queued but not acknowledged, in queue order
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Queues the messages and forces them to disk
+     *
+     * @return the queued entries, in order
+     */
+    public synchronized List<Entry> add(long discordChannelId, List<String> messages) throws IOException {
+        final long now = System.currentTimeMillis();
+        final List<Entry> entries = new ArrayList<>(messages.size());
+        final List<byte[]> payloads = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            Entry entry = new Entry(lastId + entries.size() + 1, discordChannelId, now, message);
+            entries.add(entry);
+            payloads.add(encodeQueued(entry));
+        }
+
+        RecordLog.append(file, payloads);
+
+        lastId += entries.size();
+        records += entries.size();
+        for (Entry entry : entries)
+            pending.put(entry.id, entry);
+        return entries;
+    }
+
+    /**
+     * Marks the entry as sent (or given up on), so it is not sent again after a restart
+     */
+    public synchronized void acknowledge(Entry entry) throws IOException {
+        if (pending.remove(entry.id) == null)
+            return;
+
+        RecordLog.append(file, Collections.singletonList(encodeAcknowledged(entry.id)));
+        ++records;
+
+        if (records >= pending.size() + COMPACT_AFTER_RECORDS)
+            compact();
+    }
+
+    private void compact() throws IOException {
+        final List<byte[]> payloads = new ArrayList<>(pending.size());
+        for (Entry entry : pending.values())
+            payloads.add(encodeQueued(entry));
+
+        RecordLog.rewrite(file, payloads);
+        records = payloads.size();
+    }
+
+
+    // ---- Encoding ----
+
+    private static byte[] encodeQueued(Entry entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + entry.message.length() * 2);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeByte(TYPE_QUEUED);
+        out.writeLong(entry.id);
+        out.writeLong(entry.discordChannelId);
+        out.writeLong(entry.queuedAt);
+        CommandCodec.writeString(out, entry.message);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeAcknowledged(long id) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeByte(TYPE_ACKNOWLEDGED);
+        out.writeLong(id);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static class Entry {
+        public final long id;
+        public final long discordChannelId;
+        public final long queuedAt;
+        public final String message;
+
+        public Entry(long id, long discordChannelId, long queuedAt, String message) {
+            this.id = id;
+            this.discordChannelId = discordChannelId;
+            this.queuedAt = queuedAt;
+            this.message = message;
+        }
+    }
+}
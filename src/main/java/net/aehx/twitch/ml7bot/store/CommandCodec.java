@@ -0,0 +1,67 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of {@link NightbotCommand}s shared by the stores
+ */
+final class CommandCodec {
+
+    private CommandCodec() {
+    }
+
+    static void writeCommand(DataOutputStream out, NightbotCommand cmd) throws IOException {
+        writeString(out, cmd.id);
+        writeString(out, cmd.name);
+        writeString(out, cmd.alias);
+        writeString(out, cmd.message);
+        writeString(out, cmd.getUserLevelName());
+        out.writeLong(cmd.createdAt);
+        out.writeLong(cmd.updatedAt);
+        out.writeInt(cmd.count);
+        out.writeInt(cmd.coolDown);
+    }
+
+    static NightbotCommand readCommand(DataInputStream in) throws IOException {
+        NightbotCommand cmd = new NightbotCommand();
+        cmd.id = readString(in);
+        cmd.name = readString(in);
+        cmd.alias = readString(in);
+        cmd.message = readString(in);
+        cmd.setUserLevel(readString(in));
+        cmd.createdAt = in.readLong();
+        cmd.updatedAt = in.readLong();
+        cmd.count = in.readInt();
+        cmd.coolDown = in.readInt();
+        return cmd;
+    }
+
+    /**
+     * Length-prefixed UTF-8, -1 for null. Unlike {@link DataOutputStream#writeUTF(String)} not limited to 64 KiB.
+     */
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0)
+            return null;
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,59 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+/**
+ * Writes the command history of a channel to stdout as JSON lines, one revision per line.
+ *
+ * <p>
+ *     Usage: <code>java -cp ml7bot-all.jar net.aehx.twitch.ml7bot.store.CommandHistoryExport &lt;history dir&gt;
+ *     &lt;twitch channel&gt; [--from &lt;date&gt;] [--to &lt;date&gt;]</code>
+ * </p>
+ *
+ * <p>
+ *     Dates are ISO dates (<code>2024-01-31</code>, UTC midnight) or instants (<code>2024-01-31T12:00:00Z</code>).
+ * </p>
+ */
+public class CommandHistoryExport {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java -cp ... " + CommandHistoryExport.class.getName() +
+                    " <history dir> <twitch channel> [--from <date>] [--to <date>]");
+            System.exit(1);
+        }
+
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--from"))
+                from = parseTime(args[i + 1]);
+            else if (args[i].equals("--to"))
+                to = parseTime(args[i + 1]);
+            else
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+        }
+
+        MetricsService metricsService = new MetricsService("export", false, null, 0);
+        try (CommandHistoryStore store = new CommandHistoryStore(Paths.get(args[0]), metricsService)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            store.export(args[1], from, to, out);
+        }
+    }
+
+    private static long parseTime(String str) {
+        if (str.length() == 10)
+            return LocalDate.parse(str).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+
+        return Instant.parse(str).toEpochMilli();
+    }
+}
@@ -0,0 +1,560 @@
+package net.aehx.twitch.ml7bot.store;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only history of every command version the changelog has seen, per channel.
+ *
+ * <p>
+ *     Revisions are appended to monthly {@link RecordLog} segments <code>&lt;channel&gt;/yyyy-MM.log</code>. When a
+ *     channel is first accessed, its segments are scanned once into an in-memory index (command id, name and editor,
+ *     each sorted by time), so queries only read the matching revisions from disk. {@link #compact()} rewrites past
+ *     months without repeated identical revisions and with compressed payloads (<code>yyyy-MM.clog</code>).
+ * </p>
+ */
+public class CommandHistoryStore implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommandHistoryStore.class);
+
+    static final int FORMAT_VERSION = 1;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTED_SEGMENT_SUFFIX = ".clog";
+    private static final DateTimeFormatter SEGMENT_MONTH =
+            DateTimeFormatter.ofPattern("yyyy-MM").withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private final LongSupplier clock;
+
+    /** lower-case twitch channel -> history */
+    private final Map<String, ChannelHistory> channels;
+
+    // Metrics
+    private final Counter recordedRevisions;
+    private final Counter compactedSegments;
+
+
+    public CommandHistoryStore(Path directory, MetricsService metricsService) throws IOException {
+        this(directory, metricsService, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    CommandHistoryStore(Path directory, MetricsService metricsService, LongSupplier clock) throws IOException {
+        this.directory = directory;
+        this.clock = clock;
+        Files.createDirectories(directory);
+
+        channels = new ConcurrentHashMap<>();
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        recordedRevisions = registry.counter("command_revisions_recorded");
+        compactedSegments = registry.counter("command_history_segments_compacted");
+    }
+
+    public void record(String twitchChannel, List<CommandRevision> revisions) throws IOException {
+        if (!revisions.isEmpty())
+            getChannel(twitchChannel).record(revisions);
+    }
+
+    /**
+     * Records the commands that are not in the history as they are now, e.g. from before the history was enabled
+     * or changed while the bot was down
+     */
+    public void recordBaseline(String twitchChannel, Collection<NightbotCommand> commands) throws IOException {
+        getChannel(twitchChannel).recordBaseline(commands);
+    }
+
+    /**
+     * @return version of the command called <code>name</code> at that time, <code>null</code> if there was none
+     */
+    public CommandRevision getRevisionAt(String twitchChannel, String name, long time) throws IOException {
+        return getChannel(twitchChannel).getRevisionAt(name, time);
+    }
+
+    /**
+     * @return all versions of a command, oldest first
+     */
+    public List<CommandRevision> getRevisions(String twitchChannel, String commandId) throws IOException {
+        return getChannel(twitchChannel).getRevisions(commandId);
+    }
+
+    /**
+     * @return changes by a twitch chat user that took effect in <code>[from, to]</code>, oldest first
+     */
+    public List<CommandRevision> getEditsBy(String twitchChannel, String editor, long from, long to)
+            throws IOException {
+        return getChannel(twitchChannel).getEditsBy(editor, from, to);
+    }
+
+    /**
+     * Writes the revisions that took effect in <code>[from, to]</code> as JSON lines, in recording order
+     */
+    public void export(String twitchChannel, long from, long to, Writer out) throws IOException {
+        getChannel(twitchChannel).export(from, to, out);
+    }
+
+    /**
+     * Compacts all segments before the current month
+     */
+    public void compact() throws IOException {
+        final String currentMonth = SEGMENT_MONTH.format(Instant.ofEpochMilli(clock.getAsLong()));
+
+        try (DirectoryStream<Path> channelDirs = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path channelDir : channelDirs)
+                getChannel(channelDir.getFileName().toString()).compact(currentMonth);
+        }
+    }
+
+    @Override
+    public void close() {
+        channels.values().forEach(ChannelHistory::close);
+    }
+
+    private ChannelHistory getChannel(String twitchChannel) {
+        final String key = twitchChannel.toLowerCase(Locale.ROOT);
+        return channels.computeIfAbsent(key, c -> new ChannelHistory(directory.resolve(c)));
+    }
+
+
+    // ---- Encoding ----
+
+    static byte[] encode(CommandRevision revision) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(FORMAT_VERSION);
+        out.writeByte(revision.type.ordinal());
+        out.writeLong(revision.validFrom);
+        out.writeLong(revision.recordedAt);
+        CommandCodec.writeString(out, revision.editor);
+        CommandCodec.writeString(out, revision.previousName);
+        CommandCodec.writeCommand(out, revision.command);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static CommandRevision decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        final int version = in.readInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported command history format version " + version);
+
+        final CommandRevision.Type type = CommandRevision.Type.values()[in.readUnsignedByte()];
+        final long validFrom = in.readLong();
+        final long recordedAt = in.readLong();
+        final String editor = CommandCodec.readString(in);
+        final String previousName = CommandCodec.readString(in);
+        final NightbotCommand command = CommandCodec.readCommand(in);
+
+        return new CommandRevision(type, validFrom, recordedAt, editor, previousName, command);
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(bytes);
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] bytes) throws IOException {
+        final ByteArrayOutputStream inflated = new ByteArrayOutputStream(bytes.length * 3);
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                inflated.write(buffer, 0, read);
+        }
+        return inflated.toByteArray();
+    }
+
+    private static String commandKey(NightbotCommand cmd) {
+        return cmd.id != null ? cmd.id : cmd.name;
+    }
+
+
+    private static class Segment {
+        final String month;
+        final Path file;
+        final boolean compacted;
+        private FileChannel reader;
+
+        Segment(String month, Path file, boolean compacted) {
+            this.month = month;
+            this.file = file;
+            this.compacted = compacted;
+        }
+
+        byte[] encode(CommandRevision revision) throws IOException {
+            final byte[] payload = CommandHistoryStore.encode(revision);
+            return compacted ? deflate(payload) : payload;
+        }
+
+        CommandRevision decode(byte[] payload) throws IOException {
+            return CommandHistoryStore.decode(compacted ? inflate(payload) : payload);
+        }
+
+        CommandRevision read(long offset) throws IOException {
+            if (reader == null)
+                reader = FileChannel.open(file, StandardOpenOption.READ);
+            return decode(RecordLog.readAt(reader, offset));
+        }
+
+        void close() {
+            if (reader == null)
+                return;
+
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close command history segment {}", file, e);
+            }
+            reader = null;
+        }
+    }
+
+    /**
+     * Index entry of a single revision
+     */
+    private static class Entry {
+        final Segment segment;
+        final long offset;
+        final CommandRevision.Type type;
+        final long validFrom;
+        final String name;
+        final long fingerprint;
+
+        Entry(Segment segment, long offset, CommandRevision revision) {
+            this.segment = segment;
+            this.offset = offset;
+            this.type = revision.type;
+            this.validFrom = revision.validFrom;
+            this.name = revision.command.name;
+            this.fingerprint = revision.command.getContentFingerprint();
+        }
+
+        boolean isSameVersion(NightbotCommand cmd) {
+            return type != CommandRevision.Type.DELETED
+                    && name.equals(cmd.name) && fingerprint == cmd.getContentFingerprint();
+        }
+    }
+
+    private class ChannelHistory {
+        private final Path dir;
+        private boolean loaded;
+
+        /** month -> segment */
+        private final TreeMap<String, Segment> segments = new TreeMap<>();
+
+        /** command id -> entries by validFrom */
+        private final Map<String, List<Entry>> byId = new HashMap<>();
+        /** command name -> ids of all commands that ever had it */
+        private final Map<String, Set<String>> byName = new HashMap<>();
+        /** lower-case editor -> entries by validFrom */
+        private final Map<String, List<Entry>> byEditor = new HashMap<>();
+
+        ChannelHistory(Path dir) {
+            this.dir = dir;
+        }
+
+        synchronized void record(List<CommandRevision> revisions) throws IOException {
+            load();
+
+            final String month = SEGMENT_MONTH.format(Instant.ofEpochMilli(clock.getAsLong()));
+            Segment segment = segments.get(month);
+            if (segment == null) {
+                segment = new Segment(month, dir.resolve(month + SEGMENT_SUFFIX), false);
+                segments.put(month, segment);
+            }
+
+            final List<byte[]> payloads = new ArrayList<>(revisions.size());
+            for (CommandRevision revision : revisions)
+                payloads.add(segment.encode(revision));
+
+            long offset = RecordLog.append(segment.file, payloads);
+            for (int i = 0; i < revisions.size(); ++i) {
+                index(segment, offset, revisions.get(i));
+                offset += RecordLog.HEADER_BYTES + payloads.get(i).length;
+            }
+
+            recordedRevisions.increment(revisions.size());
+        }
+
+        synchronized void recordBaseline(Collection<NightbotCommand> commands) throws IOException {
+            load();
+
+            final long now = clock.getAsLong();
+            final List<CommandRevision> revisions = new ArrayList<>();
+            for (NightbotCommand cmd : commands) {
+                final List<Entry> entries = byId.get(commandKey(cmd));
+                if (entries == null || !entries.get(entries.size() - 1).isSameVersion(cmd))
+                    revisions.add(new CommandRevision(CommandRevision.Type.BASELINE, cmd.updatedAt, now, null, null, cmd));
+            }
+
+            if (!revisions.isEmpty())
+                record(revisions);
+        }
+
+        synchronized CommandRevision getRevisionAt(String name, long time) throws IOException {
+            load();
+
+            Entry found = null;
+            for (String id : byName.getOrDefault(name, Collections.emptySet())) {
+                final List<Entry> entries = byId.get(id);
+                final int index = lastIndexAtOrBefore(entries, time);
+                if (index < 0)
+                    continue;
+
+                final Entry entry = entries.get(index);
+                if (entry.type != CommandRevision.Type.DELETED && entry.name.equals(name)
+                        && (found == null || entry.validFrom > found.validFrom))
+                    found = entry;
+            }
+
+            return found != null ? found.segment.read(found.offset) : null;
+        }
+
+        synchronized List<CommandRevision> getRevisions(String commandId) throws IOException {
+            load();
+            return read(byId.getOrDefault(commandId, Collections.emptyList()), Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        synchronized List<CommandRevision> getEditsBy(String editor, long from, long to) throws IOException {
+            load();
+            return read(byEditor.getOrDefault(editor.toLowerCase(Locale.ROOT), Collections.emptyList()), from, to);
+        }
+
+        synchronized void export(long from, long to, Writer out) throws IOException {
+            load();
+
+            for (Segment segment : segments.values()) {
+                RecordLog.read(segment.file, (offset, payload) -> {
+                    final CommandRevision revision = segment.decode(payload);
+                    if (revision.validFrom < from || revision.validFrom > to)
+                        return;
+
+                    final NightbotCommand cmd = revision.command;
+                    final JSONObject revisionObj = new JSONObject();
+                    revisionObj.put("type", revision.type.name().toLowerCase(Locale.ROOT));
+                    revisionObj.put("validFrom", Instant.ofEpochMilli(revision.validFrom).toString());
+                    revisionObj.put("recordedAt", Instant.ofEpochMilli(revision.recordedAt).toString());
+                    revisionObj.put("editor", revision.editor != null ? revision.editor : JSONObject.NULL);
+                    revisionObj.put("previousName", revision.previousName != null ? revision.previousName : JSONObject.NULL);
+                    revisionObj.put("_id", cmd.id != null ? cmd.id : JSONObject.NULL);
+                    revisionObj.put("name", cmd.name);
+                    revisionObj.put("message", cmd.message != null ? cmd.message : JSONObject.NULL);
+                    revisionObj.put("alias", cmd.alias != null ? cmd.alias : JSONObject.NULL);
+                    revisionObj.put("userLevel", cmd.userLevel != null ? cmd.getUserLevelName() : JSONObject.NULL);
+                    revisionObj.put("coolDown", cmd.coolDown);
+                    revisionObj.put("count", cmd.count);
+
+                    out.write(revisionObj.toString());
+                    out.write('\n');
+                });
+            }
+
+            out.flush();
+        }
+
+        /**
+         * Rewrites the segments before <code>currentMonth</code> without revisions identical to the previous one of
+         * the same command, and with compressed payloads
+         */
+        synchronized void compact(String currentMonth) throws IOException {
+            load();
+
+            boolean compactedAny = false;
+            for (Segment segment : new ArrayList<>(segments.headMap(currentMonth).values())) {
+                if (segment.compacted)
+                    continue;
+
+                final List<byte[]> payloads = new ArrayList<>();
+                final Map<String, Entry> previousVersions = new HashMap<>();
+                final int[] dropped = new int[1];
+                RecordLog.read(segment.file, (offset, payload) -> {
+                    final CommandRevision revision = segment.decode(payload);
+                    final String key = commandKey(revision.command);
+                    final Entry previous = previousVersions.get(key);
+
+                    if (previous != null && revision.type != CommandRevision.Type.DELETED
+                            && previous.isSameVersion(revision.command)) {
+                        ++dropped[0];
+                        return;
+                    }
+
+                    previousVersions.put(key, new Entry(segment, offset, revision));
+                    payloads.add(deflate(payload));
+                });
+
+                final Path compactedFile = dir.resolve(segment.month + COMPACTED_SEGMENT_SUFFIX);
+                RecordLog.rewrite(compactedFile, payloads);
+                segment.close();
+                Files.delete(segment.file);
+
+                compactedSegments.increment();
+                compactedAny = true;
+                LOG.info("Compacted command history segment {}, dropped {} repeated revisions",
+                        segment.file, dropped[0]);
+            }
+
+            // Offsets changed
+            if (compactedAny)
+                unload();
+        }
+
+        synchronized void close() {
+            segments.values().forEach(Segment::close);
+        }
+
+        private void load() throws IOException {
+            if (loaded)
+                return;
+
+            Files.createDirectories(dir);
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    final String fileName = file.getFileName().toString();
+                    if (fileName.endsWith(COMPACTED_SEGMENT_SUFFIX)) {
+                        final String month = fileName.substring(0, fileName.length() - COMPACTED_SEGMENT_SUFFIX.length());
+                        segments.put(month, new Segment(month, file, true));
+                    } else if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                        final String month = fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length());
+                        segments.putIfAbsent(month, new Segment(month, file, false));
+                    }
+                }
+            }
+
+            for (Segment segment : segments.values()) {
+                // Left over from an interrupted compaction
+                final Path uncompacted = dir.resolve(segment.month + SEGMENT_SUFFIX);
+                if (segment.compacted && Files.exists(uncompacted))
+                    Files.delete(uncompacted);
+
+                final List<byte[]> payloads = new ArrayList<>();
+                final boolean intact = RecordLog.read(segment.file, (offset, payload) -> {
+                    index(segment, offset, segment.decode(payload));
+                    payloads.add(payload);
+                });
+
+                if (!intact) {
+                    // Anything appended after a torn record would be unreadable
+                    LOG.warn("Dropping corrupt end of command history segment {}", segment.file);
+                    RecordLog.rewrite(segment.file, payloads);
+                }
+            }
+
+            loaded = true;
+        }
+
+        private void unload() {
+            close();
+            segments.clear();
+            byId.clear();
+            byName.clear();
+            byEditor.clear();
+            loaded = false;
+        }
+
+        private void index(Segment segment, long offset, CommandRevision revision) {
+            final Entry entry = new Entry(segment, offset, revision);
+
+            final String id = commandKey(revision.command);
+            insertByTime(byId.computeIfAbsent(id, k -> new ArrayList<>(2)), entry);
+            byName.computeIfAbsent(revision.command.name, k -> new HashSet<>(2)).add(id);
+
+            if (revision.editor != null)
+                insertByTime(byEditor.computeIfAbsent(revision.editor.toLowerCase(Locale.ROOT), k -> new ArrayList<>()), entry);
+        }
+
+        private List<CommandRevision> read(List<Entry> entries, long from, long to) throws IOException {
+            final List<CommandRevision> revisions = new ArrayList<>();
+            for (int i = firstIndexAtOrAfter(entries, from); i < entries.size(); ++i) {
+                final Entry entry = entries.get(i);
+                if (entry.validFrom > to)
+                    break;
+                revisions.add(entry.segment.read(entry.offset));
+            }
+            return revisions;
+        }
+    }
+
+    /**
+     * Keeps the list sorted by validFrom, equal times in insertion order
+     */
+    private static void insertByTime(List<Entry> entries, Entry entry) {
+        int index = entries.size();
+        while (index > 0 && entries.get(index - 1).validFrom > entry.validFrom)
+            --index;
+        entries.add(index, entry);
+    }
+
+    private static int lastIndexAtOrBefore(List<Entry> entries, long time) {
+        int low = 0, high = entries.size() - 1, found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (entries.get(mid).validFrom <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static int firstIndexAtOrAfter(List<Entry> entries, long time) {
+        int low = 0, high = entries.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (entries.get(mid).validFrom < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
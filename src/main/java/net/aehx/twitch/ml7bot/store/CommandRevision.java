@@ -0,0 +1,46 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+
+/**
+ * One version of a command in the {@link CommandHistoryStore}
+ */
+public class CommandRevision {
+
+    public enum Type {
+        /** Command as first seen, not a change */
+        BASELINE,
+        NEW,
+        EDITED,
+        RENAMED,
+        DELETED
+    }
+
+    public final Type type;
+
+    /** When this version took effect: the command's <code>updatedAt</code>, or the detection time for deletes */
+    public final long validFrom;
+
+    /** When the bot saw the change */
+    public final long recordedAt;
+
+    /** Twitch chat user who likely made the change, <code>null</code> for dashboard edits or unknown */
+    public final String editor;
+
+    /** Name before a rename, otherwise <code>null</code> */
+    public final String previousName;
+
+    /** The new version, or the last one for deletes */
+    public final NightbotCommand command;
+
+
+    public CommandRevision(Type type, long validFrom, long recordedAt, String editor, String previousName,
+                           NightbotCommand command) {
+        this.type = type;
+        this.validFrom = validFrom;
+        this.recordedAt = recordedAt;
+        this.editor = editor;
+        this.previousName = previousName;
+        this.command = command;
+    }
+}
@@ -0,0 +1,170 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.CommandSnapshot;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the last synced command list of every channel on disk, so a restarted bot can diff the first live fetch
+ * against it and announce the changes made while it was down.
+ *
+ * <p>
+ *     Every channel has an append-only {@link RecordLog} <code>&lt;channel&gt;.snapshots</code>. Each save appends
+ *     one record with the full command list, so a crash can at worst leave a torn record at the end, which is
+ *     ignored on load. Once the file holds {@link #MAX_RECORDS_PER_FILE} records, it is rewritten with only the
+ *     latest one.
+ * </p>
+ */
+public class CommandSnapshotStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommandSnapshotStore.class);
+
+    static final int FORMAT_VERSION = 1;
+    static final int MAX_RECORDS_PER_FILE = 32;
+
+    private final Path directory;
+
+    /** twitch channel -> records in its file, to know when to compact */
+    private final Map<String, Integer> recordCounts;
+
+    // Metrics
+    private final Counter savedSnapshots;
+    private final Counter corruptRecords;
+
+
+    public CommandSnapshotStore(Path directory, MetricsService metricsService) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        recordCounts = new HashMap<>();
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        savedSnapshots = registry.counter("command_snapshots_saved");
+        corruptRecords = registry.counter("command_snapshot_corrupt_records");
+    }
+
+    /**
+     * @return latest intact snapshot of the channel, or <code>null</code> if there is none
+     */
+    public synchronized StoredSnapshot load(String twitchChannel) throws IOException {
+        final Path file = getFile(twitchChannel);
+        if (!Files.exists(file))
+            return null;
+
+        final byte[][] latestPayload = new byte[1][];
+        final int[] records = new int[1];
+        final boolean intact = RecordLog.read(file, (offset, payload) -> {
+            latestPayload[0] = payload;
+            ++records[0];
+        });
+
+        if (!intact) {
+            corruptRecords.increment();
+            LOG.warn("Ignoring corrupt command snapshot record #{} and everything after it in {}",
+                    records[0] + 1, file);
+        }
+
+        // Records appended after a corrupt one would never be read, so the next save rewrites the file
+        recordCounts.put(twitchChannel, intact ? records[0] : MAX_RECORDS_PER_FILE);
+
+        if (latestPayload[0] == null)
+            return null;
+
+        return decode(latestPayload[0]);
+    }
+
+    /**
+     * Appends the snapshot to the channel's file and forces it to disk
+     */
+    public synchronized void save(String twitchChannel, String nightbotChannelId, CommandSnapshot snapshot)
+            throws IOException {
+        final List<byte[]> payload = Collections.singletonList(encode(nightbotChannelId, snapshot));
+        final Path file = getFile(twitchChannel);
+
+        // Unknown files (not loaded before) are rewritten as well
+        final int records = recordCounts.getOrDefault(twitchChannel, Files.exists(file) ? MAX_RECORDS_PER_FILE : 0);
+
+        if (records >= MAX_RECORDS_PER_FILE) {
+            // Compact: start a new file with only this record
+            RecordLog.rewrite(file, payload);
+            recordCounts.put(twitchChannel, 1);
+        } else {
+            RecordLog.append(file, payload);
+            recordCounts.put(twitchChannel, records + 1);
+        }
+
+        savedSnapshots.increment();
+    }
+
+    private Path getFile(String twitchChannel) {
+        return directory.resolve(twitchChannel.toLowerCase(Locale.ROOT) + ".snapshots");
+    }
+
+
+    // ---- Encoding ----
+
+    static byte[] encode(String nightbotChannelId, CommandSnapshot snapshot) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + snapshot.size() * 128);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(System.currentTimeMillis());
+        CommandCodec.writeString(out, nightbotChannelId);
+        out.writeInt(snapshot.size());
+
+        for (NightbotCommand cmd : snapshot.getCommands())
+            CommandCodec.writeCommand(out, cmd);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static StoredSnapshot decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        final int version = in.readInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported command snapshot format version " + version);
+
+        final long savedAt = in.readLong();
+        final String nightbotChannelId = CommandCodec.readString(in);
+        final int count = in.readInt();
+
+        final Map<String, NightbotCommand> commands = new HashMap<>((int) (count / 0.75f) + 1);
+        for (int i = 0; i < count; ++i) {
+            NightbotCommand cmd = CommandCodec.readCommand(in);
+            commands.put(cmd.name, cmd);
+        }
+
+        return new StoredSnapshot(nightbotChannelId, savedAt, new CommandSnapshot(commands));
+    }
+
+    public static class StoredSnapshot {
+        public final String nightbotChannelId;
+        public final long savedAt;
+        public final CommandSnapshot commands;
+
+        StoredSnapshot(String nightbotChannelId, long savedAt, CommandSnapshot commands) {
+            this.nightbotChannelId = nightbotChannelId;
+            this.savedAt = savedAt;
+            this.commands = commands;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package net.aehx.twitch.ml7bot.store;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which user a DM relayed to the mod mail channel came from, so moderator replies find the user by the id of the
+ * message they reply to.
+ *
+ * <p>
+ *     A single append-only {@link RecordLog} <code>modmail.threads</code> holds one record per relayed message,
+ *     forced to disk before returning. Only the latest {@link #MAX_THREADS} relays are kept. Once the file holds
+ *     {@link #COMPACT_AFTER_RECORDS} records more than that, it is rewritten with only the kept ones.
+ * </p>
+ */
+public class ModMailThreadStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ModMailThreadStore.class);
+
+    static final int FORMAT_VERSION = 1;
+    static final int MAX_THREADS = 100_000;
+    static final int COMPACT_AFTER_RECORDS = 1024;
+
+    private final Path file;
+    private final int maxThreads;
+
+    /** relay message id -> user id, oldest first */
+    private final Map<Long, Long> threads;
+    private int records;
+
+    // Metrics
+    private final Counter corruptRecords;
+
+
+    public ModMailThreadStore(Path directory, MetricsService metricsService) throws IOException {
+        this(directory, MAX_THREADS, metricsService);
+    }
+
+    @VisibleForTesting
+    ModMailThreadStore(Path directory, int maxThreads, MetricsService metricsService) throws IOException {
+        Files.createDirectories(directory);
+        file = directory.resolve("modmail.threads");
+        this.maxThreads = maxThreads;
+        threads = new LinkedHashMap<>();
+
+        final MeterRegistry registry = metricsService.getRegistry();
+        corruptRecords = registry.counter("modmail_threads_corrupt_records");
+        registry.gauge("modmail_threads", threads, Map::size);
+
+        load();
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file))
+            return;
+
+        final boolean intact = RecordLog.read(file, (offset, payload) -> {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported mod mail thread format version " + version);
+
+            threads.put(in.readLong(), in.readLong());
+            ++records;
+        });
+        evictOldest();
+
+        if (!intact) {
+            corruptRecords.increment();
+            LOG.warn("Ignoring corrupt mod mail thread record #{} and everything after it in {}", records + 1, file);
+
+            // Records appended after the corrupt one would never be read
+            compact();
+        }
+    }
+
+    /**
+     * @return the user whose DM was relayed as the given message, or -1 if unknown
+     */
+    public synchronized long getUserId(long relayMessageId) {
+        final Long userId = threads.get(relayMessageId);
+        return userId != null ? userId : -1;
+    }
+
+    public synchronized int size() {
+        return threads.size();
+    }
+
+    /**
+     * Remembers that the DM of the user was relayed as the given message, and forces it to disk
+     */
+    public synchronized void add(long relayMessageId, long userId) throws IOException {
+        RecordLog.append(file, Collections.singletonList(encode(relayMessageId, userId)));
+        ++records;
+
+        threads.put(relayMessageId, userId);
+        evictOldest();
+
+        if (records >= threads.size() + COMPACT_AFTER_RECORDS)
+            compact();
+    }
+
+    private void evictOldest() {
+        final Iterator<Long> it = threads.keySet().iterator();
+        while (threads.size() > maxThreads) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void compact() throws IOException {
+        final List<byte[]> payloads = new ArrayList<>(threads.size());
+        for (Map.Entry<Long, Long> thread : threads.entrySet())
+            payloads.add(encode(thread.getKey(), thread.getValue()));
+
+        RecordLog.rewrite(file, payloads);
+        records = payloads.size();
+    }
+
+    private static byte[] encode(long relayMessageId, long userId) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(20);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(relayMessageId);
+        out.writeLong(userId);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
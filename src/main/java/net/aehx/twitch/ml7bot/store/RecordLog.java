@@ -0,0 +1,146 @@
+package net.aehx.twitch.ml7bot.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * File of checksummed records <code>[magic][payload length][crc32 of payload][payload]</code> that is only ever
+ * appended to, or replaced as a whole. A crash can at worst leave a torn record at the end, which fails its checksum
+ * and ends reading.
+ */
+final class RecordLog {
+
+    static final int MAGIC = 0x4d4c3753; // "ML7S"
+    static final int HEADER_BYTES = 12;
+
+    private RecordLog() {
+    }
+
+    interface RecordVisitor {
+        void accept(long offset, byte[] payload) throws IOException;
+    }
+
+    /**
+     * Visits all intact records up to the first corrupt one
+     *
+     * @return false if reading stopped at a corrupt or torn record
+     */
+    static boolean read(Path file, RecordVisitor visitor) throws IOException {
+        final long fileSize = Files.size(file);
+        long offset = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (offset < fileSize) {
+                try {
+                    final int magic = in.readInt();
+                    final int length = in.readInt();
+                    final long crc = in.readInt() & 0xffffffffL;
+                    if (magic != MAGIC || length < 0 || length > fileSize - offset - HEADER_BYTES)
+                        return false;
+
+                    final byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc32(payload) != crc)
+                        return false;
+
+                    visitor.accept(offset, payload);
+                    offset += HEADER_BYTES + length;
+                } catch (EOFException e) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the record at the given offset, as passed to a {@link RecordVisitor} before
+     */
+    static byte[] readAt(FileChannel channel, long offset) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, offset);
+        header.flip();
+
+        final int magic = header.getInt();
+        final int length = header.getInt();
+        final long crc = header.getInt() & 0xffffffffL;
+        if (magic != MAGIC || length < 0 || length > channel.size() - offset - HEADER_BYTES)
+            throw new IOException("No record at offset " + offset);
+
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, offset + HEADER_BYTES);
+        if (crc32(payload.array()) != crc)
+            throw new IOException("Corrupt record at offset " + offset);
+
+        return payload.array();
+    }
+
+    /**
+     * Appends the records and forces them to disk
+     *
+     * @return offset of the first appended record
+     */
+    static long append(Path file, List<byte[]> payloads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            final long offset = channel.size();
+            write(channel, payloads);
+            return offset;
+        }
+    }
+
+    /**
+     * Replaces the file atomically with one holding only the given records
+     */
+    static void rewrite(Path file, List<byte[]> payloads) throws IOException {
+        final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, payloads);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(FileChannel channel, List<byte[]> payloads) throws IOException {
+        int size = 0;
+        for (byte[] payload : payloads)
+            size += HEADER_BYTES + payload.length;
+
+        final ByteBuffer records = ByteBuffer.allocate(size);
+        for (byte[] payload : payloads) {
+            records.putInt(MAGIC);
+            records.putInt(payload.length);
+            records.putInt((int) crc32(payload));
+            records.put(payload);
+        }
+        records.flip();
+
+        while (records.hasRemaining())
+            channel.write(records);
+        channel.force(false);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Record at " + position + " ends early");
+        }
+    }
+
+    private static long crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+}
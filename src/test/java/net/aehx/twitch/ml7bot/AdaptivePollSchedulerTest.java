@@ -0,0 +1,168 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.config.MockConfig;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.NightbotHttpException;
+import net.aehx.twitch.ml7bot.nightbot.NightbotRateLimit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptivePollSchedulerTest {
+
+    private long now;
+    private NightbotRateLimit rateLimit;
+    private AdaptivePollScheduler pollScheduler;
+
+    @BeforeEach
+    public void beforeEach() {
+        now = 1_000_000;
+        rateLimit = null;
+
+        Properties props = new Properties();
+        props.setProperty("commandchangelog.updateinterval.millis", "300000");
+        props.setProperty("commandchangelog.poll.activeinterval.millis", "60000");
+        props.setProperty("commandchangelog.poll.quietinterval.millis", "900000");
+        props.setProperty("commandchangelog.poll.activitywindow.millis", "1800000");
+        props.setProperty("commandchangelog.poll.quietafter.millis", "21600000");
+        props.setProperty("commandchangelog.poll.minbackoff.millis", "10000");
+        props.setProperty("commandchangelog.poll.maxbackoff.millis", "600000");
+        props.setProperty("nightbot.requestsperminute", "3");
+
+        pollScheduler = new AdaptivePollScheduler(new MockConfig(props), () -> rateLimit,
+                new MetricsService("test", false, null, 0), () -> now, new Random(42));
+    }
+
+    @Test
+    public void testIntervalDependsOnActivity() {
+        AdaptivePollScheduler.ChannelPollState state = pollScheduler.createChannelState();
+
+        assertBetween(270_000, 330_000, pollScheduler.nextPollDelay(state));
+
+        // Edit found by a poll
+        pollScheduler.onPollSucceeded(state, true);
+        assertBetween(54_000, 66_000, pollScheduler.nextPollDelay(state));
+
+        // Activity window over
+        now += Duration.ofMinutes(31).toMillis();
+        assertBetween(270_000, 330_000, pollScheduler.nextPollDelay(state));
+
+        // No edits for a long time
+        now += Duration.ofHours(6).toMillis();
+        pollScheduler.onPollSucceeded(state, false);
+        assertBetween(810_000, 990_000, pollScheduler.nextPollDelay(state));
+
+        // Chat edit makes it active again
+        assertEquals(5000, pollScheduler.chatTriggeredPollDelay(state));
+        assertBetween(54_000, 66_000, pollScheduler.nextPollDelay(state));
+    }
+
+    @Test
+    public void testBackoff() {
+        AdaptivePollScheduler.ChannelPollState state = pollScheduler.createChannelState();
+
+        for (int failures = 1; failures <= 10; ++failures) {
+            pollScheduler.onPollFailed(state, new Exception("Failed", new NightbotHttpException("500", 500, -1)));
+            assertEquals(failures, state.getConsecutiveFailures());
+
+            long backoff = Math.min(600_000, 10_000L << (failures - 1));
+            long delay = pollScheduler.nextPollDelay(state);
+            assertBetween(backoff / 2, backoff, delay);
+        }
+
+        // Chat edits don't undercut the backoff
+        assertTrue(pollScheduler.chatTriggeredPollDelay(state) >= 300_000);
+
+        pollScheduler.onPollSucceeded(state, false);
+        assertEquals(0, state.getConsecutiveFailures());
+        assertBetween(54_000, 66_000, pollScheduler.nextPollDelay(state));
+    }
+
+    @Test
+    public void testChatEditsAreCoalesced() {
+        AdaptivePollScheduler.ChannelPollState state = pollScheduler.createChannelState();
+
+        // Every edit pushes the sync back...
+        assertEquals(5000, pollScheduler.chatTriggeredPollDelay(state));
+        now += 4000;
+        assertEquals(5000, pollScheduler.chatTriggeredPollDelay(state));
+        now += 4000;
+        assertEquals(5000, pollScheduler.chatTriggeredPollDelay(state));
+
+        // ...but at most until the max wait after the first edit
+        now += 4000;
+        assertEquals(3000, pollScheduler.chatTriggeredPollDelay(state));
+        now += 4000;
+        assertEquals(0, pollScheduler.chatTriggeredPollDelay(state));
+
+        pollScheduler.onPollStarted(state);
+        assertEquals(5000, pollScheduler.chatTriggeredPollDelay(state));
+    }
+
+    @Test
+    public void testPropagationDelayIsLearned() {
+        AdaptivePollScheduler.ChannelPollState state = pollScheduler.createChannelState();
+
+        // Found by the first sync, so nightbot may be faster
+        pollScheduler.onChatEditPropagated(5000, false);
+        assertEquals(4750, pollScheduler.getPropagationEstimateMillis(), 0.01);
+
+        // Needed a re-poll
+        pollScheduler.onChatEditPropagated(13_750, true);
+        assertEquals(7000, pollScheduler.getPropagationEstimateMillis(), 0.01);
+        assertEquals(7000, pollScheduler.chatTriggeredPollDelay(state));
+
+        assertEquals(3500, pollScheduler.repollDelay(state, now - 7000));
+        assertEquals(-1, pollScheduler.repollDelay(state, now - 31_000));
+
+        for (int i = 0; i < 100; ++i)
+            pollScheduler.onChatEditPropagated(60_000, true);
+        assertEquals(30_000, pollScheduler.getPropagationEstimateMillis(), 0.01);
+        for (int i = 0; i < 100; ++i)
+            pollScheduler.onChatEditPropagated(100, false);
+        assertEquals(1000, pollScheduler.getPropagationEstimateMillis(), 0.01);
+    }
+
+    @Test
+    public void testBackoffHonorsRetryAfter() {
+        AdaptivePollScheduler.ChannelPollState state = pollScheduler.createChannelState();
+
+        pollScheduler.onPollFailed(state, new NightbotHttpException("429", 429, 120_000));
+        assertEquals(120_000, pollScheduler.nextPollDelay(state));
+    }
+
+    @Test
+    public void testSharedBudget() {
+        assertEquals(0, pollScheduler.tryAcquire());
+        assertEquals(0, pollScheduler.tryAcquire());
+        assertEquals(0, pollScheduler.tryAcquire());
+
+        // 3 requests per minute, next one after 20s
+        assertBetween(20_000, 21_000, pollScheduler.tryAcquire());
+
+        now += 21_000;
+        assertEquals(0, pollScheduler.tryAcquire());
+    }
+
+    @Test
+    public void testNightbotRateLimit() {
+        rateLimit = new NightbotRateLimit(100, 1, now + 30_000);
+        assertBetween(30_000, 31_000, pollScheduler.tryAcquire());
+
+        rateLimit = new NightbotRateLimit(100, 50, now + 30_000);
+        assertEquals(0, pollScheduler.tryAcquire());
+
+        // Reset already passed
+        rateLimit = new NightbotRateLimit(100, 0, now - 1);
+        assertEquals(0, pollScheduler.tryAcquire());
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual >= min && actual <= max, actual + " not in [" + min + ", " + max + "]");
+    }
+}
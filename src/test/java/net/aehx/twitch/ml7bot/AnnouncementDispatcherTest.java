@@ -0,0 +1,218 @@
+package net.aehx.twitch.ml7bot;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.store.AnnouncementOutbox;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AnnouncementDispatcherTest {
+
+    private long start;
+    private long now;
+    private MetricsService metricsService;
+    private TimingWheelScheduler scheduler;
+
+    private List<String> sent;
+    private List<Long> attemptTimes;
+    /** Errors of the next attempts, one each */
+    private Deque<Throwable> failures;
+    /** Error of every attempt if set */
+    private Throwable failAll;
+
+    @BeforeEach
+    public void beforeEach() {
+        // Close to the real time, entries written to the outbox are timestamped with it
+        start = System.currentTimeMillis();
+        now = start;
+        metricsService = new MetricsService("test", false, null, 0);
+        scheduler = new TimingWheelScheduler(100, 512, MoreExecutors.newDirectExecutorService(), () -> now,
+                metricsService, "test");
+
+        sent = new ArrayList<>();
+        attemptTimes = new ArrayList<>();
+        failures = new ArrayDeque<>();
+    }
+
+    @Test
+    public void testRateLimitsEachRoute() {
+        AnnouncementDispatcher dispatcher = createDispatcher(null);
+        dispatcher.dispatch(1, Arrays.asList("a", "b", "c", "d", "e", "f", "g"), null);
+        dispatcher.dispatch(2, Arrays.asList("x", "y"), null);
+
+        // A full bucket per route, the other route is not held up
+        assertEquals(Arrays.asList("1:a", "1:b", "1:c", "1:d", "1:e", "2:x", "2:y"), sent);
+        assertEquals(2, dispatcher.getQueuedAnnouncements());
+
+        // One token per second
+        advanceTo(999);
+        assertEquals(7, sent.size());
+        advanceTo(1_000);
+        assertEquals("1:f", sent.get(7));
+        advanceTo(1_999);
+        assertEquals(8, sent.size());
+        advanceTo(2_000);
+        assertEquals("1:g", sent.get(8));
+        assertEquals(0, dispatcher.getQueuedAnnouncements());
+    }
+
+    @Test
+    public void testRetriesWithBackoff() {
+        for (int i = 0; i < 8; ++i)
+            failures.add(new RuntimeException("unavailable"));
+
+        AnnouncementDispatcher dispatcher = createDispatcher(null);
+        dispatcher.dispatch(1, Arrays.asList("a", "b"), null);
+        assertEquals(2, dispatcher.getQueuedAnnouncements());
+
+        advanceTo(1_000_000);
+
+        List<Long> delays = new ArrayList<>();
+        for (int i = 1; i < attemptTimes.size(); ++i)
+            delays.add(attemptTimes.get(i) - attemptTimes.get(i - 1));
+
+        // Doubling from 5s, capped at 5min. The successful attempt of a is followed by b right away.
+        assertEquals(Arrays.asList(5_000L, 10_000L, 20_000L, 40_000L, 80_000L, 160_000L, 300_000L, 300_000L, 0L),
+                delays);
+        assertEquals(Arrays.asList("1:a", "1:b"), sent);
+        assertEquals(0, dispatcher.getQueuedAnnouncements());
+        assertEquals(0, dropped());
+    }
+
+    @Test
+    public void testDropsRejectedAndExpired() {
+        AtomicInteger callbacks = new AtomicInteger();
+        AnnouncementDispatcher dispatcher = createDispatcher(null);
+
+        // Rejected right away, the next one is sent anyway
+        failures.add(new IllegalArgumentException("rejected"));
+        dispatcher.dispatch(1, Arrays.asList("a", "b"), callbacks::incrementAndGet);
+        assertEquals(Collections.singletonList("1:b"), sent);
+        assertEquals(1, callbacks.get());
+        assertEquals(1, dropped());
+
+        // Retried until it is a day old
+        failAll = new RuntimeException("unavailable");
+        dispatcher.dispatch(1, Collections.singletonList("c"), callbacks::incrementAndGet);
+        advanceTo(AnnouncementDispatcher.MAX_ANNOUNCEMENT_AGE_MILLIS - 1);
+        assertEquals(1, dispatcher.getQueuedAnnouncements());
+
+        advanceTo(AnnouncementDispatcher.MAX_ANNOUNCEMENT_AGE_MILLIS + AnnouncementDispatcher.MAX_RETRY_DELAY_MILLIS);
+        assertEquals(0, dispatcher.getQueuedAnnouncements());
+        assertEquals(2, dropped());
+        assertEquals(1, sent.size());
+        assertEquals(1, callbacks.get());
+    }
+
+    @Test
+    public void testDrainLeavesUnsentInOutbox() throws Exception {
+        Path dir = Files.createTempDirectory("outbox");
+        AnnouncementOutbox outbox = new AnnouncementOutbox(dir, metricsService);
+        AnnouncementDispatcher dispatcher = createDispatcher(outbox);
+
+        failures.add(new RuntimeException("unavailable"));
+        dispatcher.dispatch(1, Arrays.asList("a", "b"), null);
+
+        // Waiting for the retry
+        assertFalse(dispatcher.drain(Duration.ofMillis(50)));
+        assertEquals(2, outbox.getPending().size());
+
+        // The next run sends them
+        AnnouncementOutbox reopened = new AnnouncementOutbox(dir, metricsService);
+        AnnouncementDispatcher restarted = createDispatcher(reopened);
+        restarted.start();
+        assertTrue(restarted.drain(Duration.ofSeconds(10)));
+        assertEquals(Arrays.asList("1:a", "1:b"), sent);
+        assertEquals(0, reopened.getPending().size());
+    }
+
+    @Test
+    public void testDrainWaitsForRetry() throws Exception {
+        AnnouncementDispatcher dispatcher = createDispatcher(null);
+        failures.add(new RuntimeException("unavailable"));
+        dispatcher.dispatch(1, Collections.singletonList("a"), null);
+
+        boolean[] drained = new boolean[1];
+        Thread drainer = new Thread(() -> {
+            try {
+                drained[0] = dispatcher.drain(Duration.ofSeconds(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        drainer.start();
+        drainer.join(100);
+        assertTrue(drainer.isAlive());
+
+        advanceTo(AnnouncementDispatcher.MIN_RETRY_DELAY_MILLIS);
+        drainer.join(10_000);
+        assertFalse(drainer.isAlive());
+        assertTrue(drained[0]);
+        assertEquals(Collections.singletonList("1:a"), sent);
+    }
+
+
+    private AnnouncementDispatcher createDispatcher(AnnouncementOutbox outbox) {
+        return new AnnouncementDispatcher(new DirectMessageSender(metricsService), outbox, scheduler, this::send,
+                metricsService, () -> now, e -> !(e instanceof IllegalArgumentException));
+    }
+
+    private Mono<?> send(long discordChannelId, String message) {
+        attemptTimes.add(now);
+
+        Throwable failure = failAll != null ? failAll : failures.poll();
+        if (failure != null)
+            return Mono.error(failure);
+
+        sent.add(discordChannelId + ":" + message);
+        return Mono.empty();
+    }
+
+    private void advanceTo(long elapsed) {
+        // Tick by tick like the tick thread, so timers scheduled by tasks are picked up
+        while (now < start + elapsed) {
+            now = Math.min(now + 100, start + elapsed);
+            scheduler.advance(now);
+        }
+    }
+
+    private long dropped() {
+        return (long) metricsService.getRegistry().counter("announcements_dropped").count();
+    }
+
+    /**
+     * Sends on the submitting thread, without retries or timeouts
+     */
+    private static class DirectMessageSender extends DiscordMessageSender {
+
+        DirectMessageSender(MetricsService metricsService) {
+            super(1, Duration.ofSeconds(1), 0, metricsService);
+        }
+
+        @Override
+        public void submit(List<Mono<Void>> sends) {
+            for (Mono<Void> send : sends)
+                send.onErrorResume(e -> Mono.empty()).subscribe();
+        }
+
+        @Override
+        Mono<Void> send(Function<String, Mono<?>> target, String message) {
+            return Mono.defer(() -> target.apply(message)).then();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package net.aehx.twitch.ml7bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AnnouncementPackerTest {
+
+    @Test
+    public void testPacksInOrder() {
+        assertEquals(Arrays.asList("aaaa\n\nbbbb", "cccccc", "dddddddddddd"),
+                AnnouncementPacker.pack(Arrays.asList("aaaa", "bbbb", "cccccc", "dddddddddddd"), 10));
+        assertEquals(Collections.emptyList(), AnnouncementPacker.pack(Collections.emptyList(), 10));
+    }
+
+    @Test
+    public void testDigestContinuesSectionsAndCountsTheRest() {
+        Map<String, List<String>> sections = new LinkedHashMap<>();
+        sections.put("New:", Arrays.asList("!a", "!b"));
+        sections.put("Deleted:", Collections.emptyList());
+        sections.put("Edited:", Arrays.asList("!c", "!d", "!e"));
+
+        assertEquals(Collections.singletonList("Digest\nNew: !a, !b\nEdited: !c, !d, !e"),
+                AnnouncementPacker.packDigest("Digest", sections, 100, 1));
+
+        // 32 chars are reserved for the last line
+        assertEquals(Arrays.asList("Digest\nNew: !a, !b", "Edited: !c, !d, !e"),
+                AnnouncementPacker.packDigest("Digest", sections, 32 + 19, 2));
+        assertEquals(Collections.singletonList("Digest\nNew: !a, !b\n… and 3 more"),
+                AnnouncementPacker.packDigest("Digest", sections, 32 + 19, 1));
+    }
+}
@@ -0,0 +1,213 @@
+package net.aehx.twitch.ml7bot;
+
+import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
+import com.github.twitch4j.chat.events.channel.IRCMessageEvent;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatMessagePipelineTest {
+
+    private MetricsService metricsService;
+    private List<String> handled;
+
+    /** Holds the worker in the handler of the first message until counted down */
+    private CountDownLatch firstHandled;
+    private CountDownLatch release;
+
+    @BeforeEach
+    public void beforeEach() {
+        metricsService = new MetricsService("test", false, null, 0);
+        handled = new CopyOnWriteArrayList<>();
+        firstHandled = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+    }
+
+    @Test
+    public void testHandlesMessagesInOrder() {
+        ChatMessagePipeline pipeline = start(100, 4, ChatMessagePipeline.OverflowPolicy.BLOCK, this::record);
+        for (int i = 0; i < 10; ++i)
+            pipeline.submit(message(i));
+        pipeline.stop();
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            expected.add("message " + i);
+        assertEquals(expected, handled);
+        assertEquals(0, dropped(ChatMessagePipeline.OverflowPolicy.BLOCK));
+    }
+
+    @Test
+    public void testDrainsInBatches() throws Exception {
+        List<Integer> depths = new CopyOnWriteArrayList<>();
+        ChatMessagePipeline[] pipeline = new ChatMessagePipeline[1];
+        pipeline[0] = start(10, 4, ChatMessagePipeline.OverflowPolicy.BLOCK, event -> {
+            depths.add(pipeline[0].getQueueDepth());
+            recordBlockingFirst(event);
+        });
+
+        pipeline[0].submit(message(0));
+        firstHandled.await();
+        for (int i = 1; i <= 9; ++i)
+            pipeline[0].submit(message(i));
+
+        release.countDown();
+        pipeline[0].stop();
+
+        // Queue depth seen while handling each message: whole batches of 4 leave the buffer at once
+        assertEquals(Arrays.asList(0, 5, 5, 5, 5, 1, 1, 1, 1, 0), depths);
+        assertEquals(10, handled.size());
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        ChatMessagePipeline pipeline = start(2, 4, ChatMessagePipeline.OverflowPolicy.DROP_NEWEST,
+                this::recordBlockingFirst);
+        fillBehindBlockedWorker(pipeline);
+
+        pipeline.submit(message(3));
+        assertEquals(2, pipeline.getQueueDepth());
+
+        release.countDown();
+        pipeline.stop();
+        assertEquals(Arrays.asList("message 0", "message 1", "message 2"), handled);
+        assertEquals(1, dropped(ChatMessagePipeline.OverflowPolicy.DROP_NEWEST));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        ChatMessagePipeline pipeline = start(2, 4, ChatMessagePipeline.OverflowPolicy.DROP_OLDEST,
+                this::recordBlockingFirst);
+        fillBehindBlockedWorker(pipeline);
+
+        pipeline.submit(message(3));
+        assertEquals(2, pipeline.getQueueDepth());
+
+        release.countDown();
+        pipeline.stop();
+        assertEquals(Arrays.asList("message 0", "message 2", "message 3"), handled);
+        assertEquals(1, dropped(ChatMessagePipeline.OverflowPolicy.DROP_OLDEST));
+    }
+
+    @Test
+    public void testBlockWaitsForSpace() throws Exception {
+        ChatMessagePipeline pipeline = start(2, 4, ChatMessagePipeline.OverflowPolicy.BLOCK,
+                this::recordBlockingFirst);
+        fillBehindBlockedWorker(pipeline);
+
+        Thread submitter = new Thread(() -> pipeline.submit(message(3)));
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+
+        pipeline.stop();
+        assertEquals(Arrays.asList("message 0", "message 1", "message 2", "message 3"), handled);
+        assertEquals(0, dropped(ChatMessagePipeline.OverflowPolicy.BLOCK));
+    }
+
+    @Test
+    public void testStopHandlesBufferedAndDropsLater() {
+        ChatMessagePipeline pipeline = start(100, 2, ChatMessagePipeline.OverflowPolicy.DROP_NEWEST, this::record);
+        for (int i = 0; i < 5; ++i)
+            pipeline.submit(message(i));
+        pipeline.stop();
+        assertEquals(5, handled.size());
+
+        pipeline.submit(message(5));
+        assertEquals(5, handled.size());
+        assertEquals(0, pipeline.getQueueDepth());
+        assertEquals(1, dropped(ChatMessagePipeline.OverflowPolicy.DROP_NEWEST));
+    }
+
+    @Test
+    public void testSubmitDuringStopIsHandledOrDropped() throws Exception {
+        final int submitters = 4;
+        final int messagesPerSubmitter = 5000;
+        ChatMessagePipeline pipeline = start(64, 16, ChatMessagePipeline.OverflowPolicy.DROP_OLDEST, this::record);
+
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch submitting = new CountDownLatch(submitters);
+        for (int t = 0; t < submitters; ++t) {
+            threads.add(new Thread(() -> {
+                submitting.countDown();
+                for (int i = 0; i < messagesPerSubmitter; ++i)
+                    pipeline.submit(message(i));
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        submitting.await();
+        pipeline.stop();
+        for (Thread thread : threads)
+            thread.join();
+
+        // Every message is either handled or counted as dropped, none stays in the buffer
+        assertEquals(0, pipeline.getQueueDepth());
+        assertEquals(submitters * messagesPerSubmitter,
+                handled.size() + dropped(ChatMessagePipeline.OverflowPolicy.DROP_OLDEST));
+    }
+
+
+    private ChatMessagePipeline start(int capacity, int maxBatchSize, ChatMessagePipeline.OverflowPolicy policy,
+                                      Consumer<ChannelMessageEvent> handler) {
+        ChatMessagePipeline pipeline = new ChatMessagePipeline(capacity, maxBatchSize, policy, handler,
+                metricsService);
+        pipeline.start();
+        return pipeline;
+    }
+
+    /**
+     * Submits message 0, waits until the worker is blocked in its handler, then fills the buffer of 2
+     */
+    private void fillBehindBlockedWorker(ChatMessagePipeline pipeline) throws InterruptedException {
+        pipeline.submit(message(0));
+        firstHandled.await();
+        pipeline.submit(message(1));
+        pipeline.submit(message(2));
+        assertEquals(2, pipeline.getQueueDepth());
+    }
+
+    private void record(ChannelMessageEvent event) {
+        handled.add(event.getMessage());
+    }
+
+    private void recordBlockingFirst(ChannelMessageEvent event) {
+        record(event);
+        if (firstHandled.getCount() > 0) {
+            firstHandled.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long dropped(ChatMessagePipeline.OverflowPolicy policy) {
+        return (long) metricsService.getRegistry()
+                .counter("chat_pipeline_dropped_messages", "policy", policy.name())
+                .count();
+    }
+
+    private static ChannelMessageEvent message(int i) {
+        IRCMessageEvent ircEvent = new IRCMessageEvent(
+                "@badges=;mod=0;user-id=1 :foo!foo@foo.tmi.twitch.tv PRIVMSG #ml7support :message " + i,
+                Collections.emptyMap(), Collections.emptyMap(), Collections.emptySet());
+        return new ChannelMessageEvent(ircEvent.getChannel(), ircEvent, ircEvent.getUser(),
+                ircEvent.getMessage().get(), ircEvent.getClientPermissions());
+    }
+}
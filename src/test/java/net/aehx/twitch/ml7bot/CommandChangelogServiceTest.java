@@ -2,12 +2,18 @@ package net.aehx.twitch.ml7bot;
 
 import net.aehx.twitch.ml7bot.config.MockConfig;
 import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import net.aehx.twitch.ml7bot.nightbot.UserLevel;
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import static net.aehx.twitch.ml7bot.CommandChangelogService.getModifiedCommand;
@@ -42,6 +48,27 @@ public class CommandChangelogServiceTest {
 
         assertEquals("!twitch2", getModifiedCommand("!addcom !twitch2 -a=!twitch"));
         assertEquals("twitch", getModifiedCommand("!addcom twitch test")); // modified needn't start with !
+
+        assertEquals("!twitch", getModifiedCommand("!ADDCOM\t!twitch test"));
+        assertNull(getModifiedCommand("!addcom"));
+        assertNull(getModifiedCommand("!addcom   "));
+        assertNull(getModifiedCommand("!addcommand !twitch test"));
+        assertNull(getModifiedCommand(" !addcom !twitch test"));
+        assertNull(getModifiedCommand(""));
+    }
+
+    @Test
+    public void testRegisterCommandModificationSyntax() {
+        CommandModificationMatcher.Builder builder = CommandModificationMatcher.defaultBuilder()
+                .register("$cmd", "new|set|remove");
+        CommandModificationMatcher matcher = builder.build();
+
+        assertEquals("!twitch", matcher.match("$cmd set !twitch test"));
+        assertEquals("!twitch", matcher.match("!editcom !twitch test"));
+        assertNull(matcher.match("$cmd update !twitch test"));
+
+        assertThrows(IllegalArgumentException.class, () -> builder.register("!a||!b"));
+        assertThrows(IllegalArgumentException.class, () -> builder.register("!a b"));
     }
 
     @Test
@@ -127,13 +154,152 @@ public class CommandChangelogServiceTest {
         assertTrue(commandsUpdater.announcedEditedCommands.isEmpty());
     }
 
+    @Test
+    public void testUnchangedCommandsAreSkipped() {
+        JSONObject commandObj = new JSONObject();
+        commandObj.put("_id", "cmd1");
+        commandObj.put("createdAt", "2022-02-02T17:33:22.000Z");
+        commandObj.put("updatedAt", "2022-02-02T17:33:22.355Z");
+        commandObj.put("name", "!test");
+        commandObj.put("message", "Testing 123");
+        commandObj.put("userLevel", "everyone");
+        commandObj.put("count", 0);
+        commandObj.put("coolDown", 30);
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("commands", new JSONArray().put(commandObj));
+        service.getNightbotAPI().setChannelCommandsResponse(responseObj);
+
+        commandsUpdater.runNow();
+        assertEquals(1, commandsUpdater.announcedNewCommands.size());
+
+        commandsUpdater.clearAnnouncements();
+
+        // Same list again must not be parsed or diffed
+        commandsUpdater.runNow();
+        assertTrue(commandsUpdater.announcedNewCommands.isEmpty());
+        assertTrue(commandsUpdater.announcedEditedCommands.isEmpty());
+        assertEquals(1, service.getCommands().size());
+
+        commandObj.put("message", "Updated message");
+        commandObj.put("updatedAt", "2022-02-03T10:00:00.000Z");
+        responseObj.put("commands", new JSONArray().put(commandObj));
+        service.getNightbotAPI().setChannelCommandsResponse(responseObj);
+
+        commandsUpdater.runNow();
+        assertEquals(1, commandsUpdater.announcedEditedCommands.size());
+    }
+
+    @Test
+    public void testRenamedCommandIsOneAnnouncement() {
+        JSONObject commandObj = new JSONObject();
+        commandObj.put("_id", "cmd1");
+        commandObj.put("createdAt", "2022-02-02T17:33:22.000Z");
+        commandObj.put("updatedAt", "2022-02-02T17:33:22.355Z");
+        commandObj.put("name", "!test");
+        commandObj.put("message", "Testing 123");
+        commandObj.put("userLevel", "everyone");
+        commandObj.put("count", 0);
+        commandObj.put("coolDown", 30);
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("commands", new JSONArray().put(commandObj));
+        service.getNightbotAPI().setChannelCommandsResponse(responseObj);
+        commandsUpdater.runNow();
+        commandsUpdater.clearAnnouncements();
+
+        commandObj.put("name", "!renamed");
+        commandObj.put("updatedAt", "2022-02-03T10:00:00.000Z");
+        responseObj.put("commands", new JSONArray().put(commandObj));
+        service.getNightbotAPI().setChannelCommandsResponse(responseObj);
+        service.setLastTwitchCommandEditor("!test", "SomeUser");
+
+        commandsUpdater.runNow();
+        assertTrue(commandsUpdater.announcedNewCommands.isEmpty());
+        assertTrue(commandsUpdater.announcedDeletedCommands.isEmpty());
+        assertEquals(1, commandsUpdater.announcedRenamedCommands.size());
+        assertEquals("!renamed", service.getCommands().getById("cmd1").name);
+    }
+
+    @Test
+    public void testBurstIsAnnouncedAsDigest() {
+        JSONArray commandsArr = new JSONArray();
+        for (int i = 0; i < 300; ++i) {
+            JSONObject commandObj = new JSONObject();
+            commandObj.put("_id", "cmd" + i);
+            commandObj.put("createdAt", "2022-02-02T17:33:22.000Z");
+            commandObj.put("updatedAt", "2022-02-02T17:33:22.355Z");
+            commandObj.put("name", "!command" + i);
+            commandObj.put("message", "Testing " + i);
+            commandObj.put("userLevel", "everyone");
+            commandObj.put("count", 0);
+            commandObj.put("coolDown", 30);
+            commandsArr.put(commandObj);
+        }
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("commands", commandsArr);
+        service.getNightbotAPI().setChannelCommandsResponse(responseObj);
+        commandsUpdater.runNow();
+
+        assertTrue(commandsUpdater.announcedNewCommands.isEmpty());
+        assertEquals(1, commandsUpdater.announcedDigests.size());
+        List<CommandListDiff.Change> changes = commandsUpdater.announcedDigests.get(0);
+        assertEquals(300, changes.size());
+
+        service.setLastTwitchCommandEditor("!command0", "SomeUser");
+        List<String> messages = announcementFormatter.formatChangeDigest(changes, 3);
+        assertEquals(3, messages.size());
+        for (String message : messages)
+            assertTrue(message.length() <= CommandChangelogService.MAX_ANNOUNCEMENT_LENGTH, message);
+        assertTrue(messages.get(0).startsWith("\uD83D\uDCE6 **300 commands changed**"), messages.get(0));
+        assertTrue(messages.get(0).contains("`!command0` by **SomeUser**, `!command1`,"), messages.get(0));
+        assertTrue(messages.get(2).endsWith("`!command99`"), messages.get(2));
+
+        messages = announcementFormatter.formatChangeDigest(changes, 1);
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).length() <= CommandChangelogService.MAX_ANNOUNCEMENT_LENGTH, messages.get(0));
+        assertTrue(messages.get(0).matches("(?s).*\\u2026 and \\d+ more"), messages.get(0));
+    }
+
+    @Test
+    public void testFormatRenamedCommandAnnouncement() {
+        NightbotCommand oldCmd = new NightbotCommand();
+        oldCmd.id = "cmd1";
+        oldCmd.name = "!test";
+        oldCmd.userLevel = UserLevel.EVERYONE;
+        oldCmd.alias = "";
+        oldCmd.coolDown = 30;
+        oldCmd.message = "Testing 123";
+        service.commands.set(new CommandSnapshot(Collections.singletonMap(oldCmd.name, oldCmd)));
+        service.setLastTwitchCommandEditor("!test", "SomeUser");
+
+        NightbotCommand newCmd = new NightbotCommand();
+        newCmd.id = oldCmd.id;
+        newCmd.name = "!renamed";
+        newCmd.userLevel = oldCmd.userLevel;
+        newCmd.alias = oldCmd.alias;
+        newCmd.coolDown = oldCmd.coolDown;
+        newCmd.message = oldCmd.message;
+
+        String announcement = announcementFormatter.formatRenamedCommandAnnouncement(oldCmd, newCmd);
+        assertTrue(StringUtils.containsIgnoreCase(announcement, "renamed"),
+                "Announcement must contain keyword 'renamed': " + announcement);
+        assertTrue(announcement.contains("!test") && announcement.contains("!renamed"),
+                "Announcement must contain old and new command name: " + announcement);
+        assertTrue(announcement.contains("SomeUser"),
+                "Editor of the previous name must be found by command id: " + announcement);
+        assertFalse(announcement.contains("was before"),
+                "Unedited renamed command needs no previous version: " + announcement);
+    }
+
     @Test
     public void testFormatNewCommandAnnouncement() {
         service.setLastTwitchCommandEditor("!test", "SomeUser");
 
         NightbotCommand cmd = new NightbotCommand();
         cmd.name = "!test";
-        cmd.userLevel = "everyone";
+        cmd.userLevel = UserLevel.EVERYONE;
         cmd.alias = "!alias";
         cmd.coolDown = 30;
         cmd.message = "Testing 123";
@@ -157,7 +323,7 @@ public class CommandChangelogServiceTest {
 
         NightbotCommand cmd = new NightbotCommand();
         cmd.name = "!test";
-        cmd.userLevel = "everyone";
+        cmd.userLevel = UserLevel.EVERYONE;
         cmd.alias = "!alias";
         cmd.coolDown = 30;
         cmd.message = "Testing 123";
@@ -181,7 +347,7 @@ public class CommandChangelogServiceTest {
 
         NightbotCommand oldCmd = new NightbotCommand();
         oldCmd.name = "!test";
-        oldCmd.userLevel = "everyone";
+        oldCmd.userLevel = UserLevel.EVERYONE;
         oldCmd.alias = "!alias";
         oldCmd.coolDown = 30;
         oldCmd.message = "Old Testing";
@@ -198,10 +364,25 @@ public class CommandChangelogServiceTest {
                 "Announcement must contain keyword 'edited': " + announcement);
         assertTrue(announcement.contains("SomeUser"),
                 "Announcement must contain editor user name 'SomeUser': " + announcement);
-        assertTrue(announcement.contains("Old Testing"),
-                "Announcement must contain old command message: " + announcement);
+        assertTrue(announcement.contains("~~Old~~ **New** Testing"),
+                "Announcement must contain the changed words: " + announcement);
         assertTrue(announcement.contains("New Testing"),
                 "Announcement must contain new command message: " + announcement);
+        assertFalse(announcement.contains("User-Level: ~~"),
+                "Announcement must not list unchanged settings: " + announcement);
+
+        StringBuilder longMessage = new StringBuilder();
+        for (int i = 0; i < 400; ++i)
+            longMessage.append("word").append(i).append(' ');
+        oldCmd.message = longMessage.toString();
+        newCmd.message = longMessage.toString().replace("word100 ", "changed ").replace("word300 ", "");
+        newCmd.coolDown = 5;
+
+        announcement = announcementFormatter.formatEditedCommandAnnouncement(oldCmd, newCmd);
+        assertTrue(announcement.length() <= CommandChangelogService.MAX_ANNOUNCEMENT_LENGTH, announcement);
+        assertTrue(announcement.contains("~~word100~~ **changed**"), announcement);
+        assertTrue(announcement.contains("~~word300~~"), announcement);
+        assertTrue(announcement.contains("Cooldown: ~~30s~~ **5s**"), announcement);
     }
 
     @Test
@@ -224,4 +405,86 @@ public class CommandChangelogServiceTest {
         assertTrue(announcement.contains("\\>\\>\\> \\_\\_some\\_\\_\\`user\\`\\_\\~\\~Test\\~\\~"),
                 "Discord markdown characters in usernames should be escaped. Actual announcement: " + announcement);
     }
+
+    @Test
+    public void testConcurrentChatEditsAreAttributed() throws Exception {
+        final int chatThreads = CommandChangelogService.MAX_CHANGES_TO_ANNOUNCE - 1;
+        final int editsPerThread = 200;
+        final List<JSONObject> commandObjs = new ArrayList<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Moderators add commands in chat while updates run and readers look at the commands
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < chatThreads; ++t) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < editsPerThread; ++i) {
+                    final String name = "!cmd" + thread + "_" + i;
+                    service.setLastTwitchCommandEditor(name, "mod" + thread);
+
+                    JSONObject commandObj = new JSONObject();
+                    commandObj.put("_id", name);
+                    commandObj.put("createdAt", "2022-02-02T17:33:22.000Z");
+                    commandObj.put("updatedAt", "2022-02-02T17:33:22.355Z");
+                    commandObj.put("name", name);
+                    commandObj.put("message", "Testing " + i);
+                    commandObj.put("userLevel", "everyone");
+                    commandObj.put("count", 0);
+                    commandObj.put("coolDown", 30);
+                    synchronized (commandObjs) {
+                        commandObjs.add(commandObj);
+                        JSONArray commandsArr = new JSONArray();
+                        commandObjs.forEach(commandsArr::put);
+                        JSONObject responseObj = new JSONObject();
+                        responseObj.put("commands", commandsArr);
+                        service.getNightbotAPI().setChannelCommandsResponse(responseObj);
+                    }
+
+                    // One edit at a time per moderator, so no update exceeds the announcement limit
+                    while (service.getCommands().getById(name) == null)
+                        Thread.yield();
+                }
+            }));
+        }
+
+        final Thread updater = new Thread(() -> {
+            while (!done.get())
+                commandsUpdater.runNow();
+        });
+
+        final List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 2; ++t) {
+            readers.add(new Thread(() -> {
+                int lastSize = 0;
+                while (!done.get()) {
+                    final CommandSnapshot snapshot = service.getCommands();
+                    if (snapshot.size() < lastSize)
+                        failure.set(new AssertionError("Commands went back from " + lastSize + " to " + snapshot.size()));
+                    lastSize = snapshot.size();
+                    for (NightbotCommand cmd : snapshot.getCommands()) {
+                        if (snapshot.getById(cmd.id) != cmd || snapshot.getByName(cmd.name) != cmd)
+                            failure.set(new AssertionError("Inconsistent snapshot at " + cmd.name));
+                    }
+                }
+            }));
+        }
+
+        updater.start();
+        readers.forEach(Thread::start);
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+            thread.join();
+        done.set(true);
+        updater.join();
+        for (Thread reader : readers)
+            reader.join();
+        commandsUpdater.runNow();
+
+        assertNull(failure.get());
+        assertEquals(chatThreads * editsPerThread, service.getCommands().size());
+        assertEquals(chatThreads * editsPerThread, commandsUpdater.announcedNewCommands.size());
+        commandsUpdater.announcedNewCommandEditors.forEach((name, editor) ->
+                assertEquals("mod" + name.substring(4, name.indexOf('_')), editor, name));
+    }
 }
@@ -0,0 +1,45 @@
+package net.aehx.twitch.ml7bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandEditorsTest {
+
+    private long now;
+
+    @Test
+    public void testEditDuringUpdateIsKept() {
+        CommandEditors editors = new CommandEditors(() -> now);
+        editors.record("!test", "mod1");
+
+        long mark = editors.beginUpdate();
+        editors.record("!test", "mod2");
+        assertEquals("mod2", editors.get("!test"));
+        editors.endUpdate(mark, Collections.singletonList("!test"));
+
+        assertEquals("mod2", editors.get("!test"));
+
+        mark = editors.beginUpdate();
+        editors.endUpdate(mark, Collections.singletonList("!test"));
+        assertNull(editors.get("!test"));
+        assertTrue(editors.isEmpty());
+    }
+
+    @Test
+    public void testUnattributedEditExpires() {
+        CommandEditors editors = new CommandEditors(() -> now);
+        editors.record("!test", "mod1");
+
+        // Not visible in the nightbot api yet, or the fetch failed
+        editors.endUpdate(editors.beginUpdate(), Collections.emptyList());
+        editors.endUpdate(editors.beginUpdate(), null);
+        assertEquals("mod1", editors.get("!test"));
+
+        now += CommandEditors.MAX_UNATTRIBUTED_EDIT_AGE_MILLIS + 1;
+        editors.endUpdate(editors.beginUpdate(), Collections.emptyList());
+        assertNull(editors.get("!test"));
+    }
+}
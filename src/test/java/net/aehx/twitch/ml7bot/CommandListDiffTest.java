@@ -0,0 +1,112 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import net.aehx.twitch.ml7bot.nightbot.UserLevel;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandListDiffTest {
+
+    @Test
+    public void testDiff() {
+        Map<String, NightbotCommand> oldCommands = new HashMap<>();
+        oldCommands.put("!deleted", createCommand("!deleted", "Deleted", 1000));
+        oldCommands.put("!edited", createCommand("!edited", "Before", 1000));
+        oldCommands.put("!counted", createCommand("!counted", "Same", 1000));
+        oldCommands.put("!unchanged", createCommand("!unchanged", "Same", 1000));
+
+        Map<String, NightbotCommand> newCommands = new HashMap<>();
+        newCommands.put("!new", createCommand("!new", "New", 2000));
+        newCommands.put("!edited", createCommand("!edited", "After", 2000));
+        NightbotCommand counted = createCommand("!counted", "Same", 2000);
+        counted.count = 5;
+        newCommands.put("!counted", counted);
+        newCommands.put("!unchanged", createCommand("!unchanged", "Same", 1000));
+
+        List<CommandListDiff.Change> changes =
+                CommandListDiff.diff(new CommandSnapshot(oldCommands), new CommandSnapshot(newCommands));
+        assertEquals(3, changes.size());
+        assertTrue(changes.stream().anyMatch(c -> c.isNew() && c.newCommand.name.equals("!new")));
+        assertTrue(changes.stream().anyMatch(c -> c.isEdited() && c.newCommand.message.equals("After")));
+        assertTrue(changes.get(2).isDeleted());
+        assertEquals("!deleted", changes.get(2).oldCommand.name);
+
+        assertTrue(CommandListDiff.diff(new CommandSnapshot(newCommands), new CommandSnapshot(newCommands)).isEmpty());
+    }
+
+    @Test
+    public void testRenameIsOneChange() {
+        Map<String, NightbotCommand> oldCommands = new HashMap<>();
+        NightbotCommand oldCmd = createCommand("!old", "Test", 1000);
+        oldCmd.id = "cmd1";
+        oldCommands.put(oldCmd.name, oldCmd);
+
+        Map<String, NightbotCommand> newCommands = new HashMap<>();
+        NightbotCommand newCmd = createCommand("!new", "Test", 2000);
+        newCmd.id = "cmd1";
+        newCommands.put(newCmd.name, newCmd);
+
+        CommandSnapshot newSnapshot = new CommandSnapshot(newCommands);
+        List<CommandListDiff.Change> changes = CommandListDiff.diff(new CommandSnapshot(oldCommands), newSnapshot);
+        assertEquals(1, changes.size());
+        assertTrue(changes.get(0).isRenamed());
+        assertFalse(changes.get(0).isEdited());
+        assertSame(newCmd, newSnapshot.getById("cmd1"));
+        assertSame(newCmd, newSnapshot.getByName("!new"));
+    }
+
+    @Test
+    public void testFingerprintIgnoresCount() {
+        NightbotCommand cmd = createCommand("!test", "Test", 1000);
+        NightbotCommand counted = createCommand("!test", "Test", 2000);
+        counted.count = 42;
+        assertEquals(cmd.getContentFingerprint(), counted.getContentFingerprint());
+
+        NightbotCommand cooldown = createCommand("!test", "Test", 2000);
+        cooldown.coolDown = 5;
+        assertNotEquals(cmd.getContentFingerprint(), cooldown.getContentFingerprint());
+
+        // Text must not shift between fields
+        NightbotCommand shifted = createCommand("!test", "Tes", 2000);
+        shifted.alias = "t";
+        assertNotEquals(cmd.getContentFingerprint(), shifted.getContentFingerprint());
+    }
+
+    @Test
+    public void testEqualFingerprintsAreConfirmed() {
+        Map<String, NightbotCommand> oldCommands = new HashMap<>();
+        NightbotCommand oldCmd = createCommand("!test", "Before", 1000);
+        oldCommands.put(oldCmd.name, oldCmd);
+
+        // Fingerprint cached before the edit, as if both versions collided
+        NightbotCommand newCmd = createCommand("!test", "Before", 2000);
+        newCmd.getContentFingerprint();
+        newCmd.message = "After";
+        assertEquals(oldCmd.getContentFingerprint(), newCmd.getContentFingerprint());
+
+        Map<String, NightbotCommand> newCommands = new HashMap<>();
+        newCommands.put(newCmd.name, newCmd);
+
+        List<CommandListDiff.Change> changes =
+                CommandListDiff.diff(new CommandSnapshot(oldCommands), new CommandSnapshot(newCommands));
+        assertEquals(1, changes.size());
+        assertTrue(changes.get(0).isEdited());
+    }
+
+    private static NightbotCommand createCommand(String name, String message, long updatedAt) {
+        NightbotCommand cmd = new NightbotCommand();
+        cmd.id = name;
+        cmd.updatedAt = updatedAt;
+        cmd.name = name;
+        cmd.message = message;
+        cmd.alias = "";
+        cmd.userLevel = UserLevel.EVERYONE;
+        cmd.coolDown = 30;
+        return cmd;
+    }
+}
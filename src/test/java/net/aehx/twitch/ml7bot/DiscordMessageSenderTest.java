@@ -0,0 +1,48 @@
+package net.aehx.twitch.ml7bot;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiscordMessageSenderTest {
+
+    @Test
+    public void testBatchIsSentInOrderDespiteFailures() {
+        DiscordMessageSender sender = new DiscordMessageSender(4, Duration.ofSeconds(1), 1,
+                new MetricsService("test", false, null, 0));
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger attemptsOfB = new AtomicInteger();
+
+        // Slow first message, b fails once, c fails for good
+        sender.submit(Arrays.asList(
+                sender.send(msg -> Mono.delay(Duration.ofMillis(100)).doOnSuccess(t -> sent.add(msg)), "a"),
+                sender.send(msg -> attemptsOfB.incrementAndGet() == 1
+                        ? Mono.error(new RuntimeException("unavailable"))
+                        : Mono.fromRunnable(() -> sent.add(msg)), "b"),
+                sender.send(msg -> Mono.error(new RuntimeException("unavailable")), "c"),
+                sender.send(msg -> Mono.fromRunnable(() -> sent.add(msg)), "d")));
+
+        sender.stop(Duration.ofSeconds(30));
+
+        assertEquals(Arrays.asList("a", "b", "d"), sent);
+        assertEquals(2, attemptsOfB.get());
+        assertEquals(0, sender.getQueuedMessages());
+    }
+
+    @Test
+    public void testTimesOut() {
+        DiscordMessageSender sender = new DiscordMessageSender(4, Duration.ofMillis(50), 0,
+                new MetricsService("test", false, null, 0));
+
+        assertThrows(RuntimeException.class, () -> sender.send(msg -> Mono.never(), "a").block(Duration.ofSeconds(5)));
+    }
+}
@@ -0,0 +1,99 @@
+package net.aehx.twitch.ml7bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageDiffTest {
+
+    @Test
+    public void testChangedWordsWithContext() {
+        String oldMsg = "Follow on twitter: https://twitter.com/ml7 and check out the merch store for shirts";
+        String newMsg = "Follow on twitter: https://twitter.com/ml7support and check out the merch store for hoodies";
+
+        assertEquals("> Follow on twitter: ~~https://twitter.com/ml7~~ **https://twitter.com/ml7support** and check out …\n" +
+                        "> … merch store for ~~shirts~~ **hoodies**",
+                MessageDiff.render(oldMsg, newMsg, 2000));
+
+        assertEquals("> a ~~b~~ c", MessageDiff.render("a b c", "a c", 2000));
+        assertEquals("> a **b** c", MessageDiff.render("a c", "a b c", 2000));
+        assertEquals("> **$(urlfetch https://example.com)**",
+                MessageDiff.render("", "$(urlfetch https://example.com)", 2000));
+        assertEquals("> _whitespace only_", MessageDiff.render("a  b", "a b", 2000));
+        assertEquals("", MessageDiff.render("a b", "a b", 2000));
+    }
+
+    @Test
+    public void testEscapesMarkdown() {
+        assertEquals("> ~~\\*bold\\*~~ **\\_under\\_**", MessageDiff.render("*bold*", "_under_", 2000));
+    }
+
+    @Test
+    public void testMinimalEdits() {
+        String[] oldWords = "a b c a b b a".split(" ");
+        String[] newWords = "c b a b a c".split(" ");
+
+        int edits = 0;
+        for (MessageDiff.Change change : MessageDiff.diff(oldWords, newWords))
+            edits += (change.oldEnd - change.oldStart) + (change.newEnd - change.newStart);
+        assertEquals(5, edits);
+    }
+
+    @Test
+    public void testPathologicalInputsStayBounded() {
+        // Completely different long messages: more edits than diffed word by word
+        String oldMsg = words("old", 5000);
+        String newMsg = words("new", 5000);
+        assertBounded(oldMsg, newMsg, 2000);
+
+        List<MessageDiff.Change> changes = MessageDiff.diff(oldMsg.split(" "), newMsg.split(" "));
+        assertEquals(1, changes.size());
+
+        // Every tenth word changed: more lines than fit, summarized
+        StringBuilder scattered = new StringBuilder();
+        for (int i = 0; i < 200; ++i)
+            scattered.append(i % 10 == 0 ? "x" : "w").append(i).append(' ');
+        String rendered = assertBounded(words("w", 200), scattered.toString(), 300);
+        assertTrue(rendered.startsWith("> ~~w0~~ **x0** w1 w2 w3 …\n"), rendered);
+        assertTrue(rendered.endsWith(" more changes"), rendered);
+
+        // Repetitive input, worst case for matching
+        assertBounded(repeat("a ", 3000) + "b", "b " + repeat("a ", 3000), 2000);
+
+        // A single huge word without whitespace
+        String huge = repeat("😀*", 10000);
+        rendered = assertBounded(huge, huge + "x", 2000);
+        assertTrue(rendered.contains(" … "), rendered);
+
+        // Almost no room
+        assertEquals("", MessageDiff.render("a b", "a c", 5));
+    }
+
+    private static String assertBounded(String oldMsg, String newMsg, int maxLength) {
+        long start = System.nanoTime();
+        String rendered = MessageDiff.render(oldMsg, newMsg, maxLength);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(rendered.length() <= maxLength, "Too long: " + rendered.length());
+        assertFalse(rendered.isEmpty());
+        assertTrue(millis < 1000, "Took " + millis + "ms");
+        return rendered;
+    }
+
+    private static String words(String prefix, int count) {
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < count; ++i)
+            str.append(prefix).append(i).append(' ');
+        return str.toString();
+    }
+
+    private static String repeat(String str, int count) {
+        StringBuilder repeated = new StringBuilder(str.length() * count);
+        for (int i = 0; i < count; ++i)
+            repeated.append(str);
+        return repeated.toString();
+    }
+}
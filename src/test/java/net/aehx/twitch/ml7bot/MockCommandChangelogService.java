@@ -1,11 +1,13 @@
 package net.aehx.twitch.ml7bot;
 
+import net.aehx.twitch.ml7bot.config.CommandChangelogChannelConfig;
 import net.aehx.twitch.ml7bot.config.Config;
 import net.aehx.twitch.ml7bot.metrics.MetricsService;
 import net.aehx.twitch.ml7bot.nightbot.MockNightbotAPI;
 import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -16,14 +18,16 @@ public class MockCommandChangelogService extends CommandChangelogService {
     private final AnnouncementFormatter announcementFormatter;
 
     public MockCommandChangelogService(Config config) throws Exception {
-        super(config, null, new MetricsService("test", false, null, 0));
+        super(config, new CommandChangelogChannelConfig("test", 1, config.getCommandChangelogIgnoredCommands()),
+                null, null, new MockNightbotAPI(), null,
+                new AdaptivePollScheduler(config, () -> null, new MetricsService("test", false, null, 0)),
+                null, null, new MetricsService("test", false, null, 0));
 
-        nightbot = new MockNightbotAPI();
         commandsUpdater = new CommandsUpdater();
         announcementFormatter = new AnnouncementFormatter();
 
         // Do initial fetch to diff against
-        commands = nightbot.fetchChannelCommands("ignored");
+        commands.set(new CommandSnapshot(nightbot.fetchChannelCommands("ignored")));
     }
 
     public class CommandsUpdater extends CommandChangelogService.CommandsUpdater {
@@ -31,14 +35,18 @@ public class MockCommandChangelogService extends CommandChangelogService {
         List<NightbotCommand> announcedNewCommands = new ArrayList<>();
         List<NightbotCommand> announcedDeletedCommands = new ArrayList<>();
         List<EditedNightbotCommand> announcedEditedCommands = new ArrayList<>();
+        List<EditedNightbotCommand> announcedRenamedCommands = new ArrayList<>();
+        Map<String, String> announcedNewCommandEditors = new HashMap<>();
+        List<List<CommandListDiff.Change>> announcedDigests = new ArrayList<>();
 
         public void runNow() {
-            runIntrnl();
+            runIntrnl().join();
         }
 
         @Override
         protected void onNewCommand(NightbotCommand cmd) {
             announcedNewCommands.add(cmd);
+            announcedNewCommandEditors.put(cmd.name, announcementFormatter.getLikelyEditor(cmd));
         }
 
         @Override
@@ -51,10 +59,23 @@ public class MockCommandChangelogService extends CommandChangelogService {
             announcedEditedCommands.add(new EditedNightbotCommand(oldCmd, newCmd));
         }
 
+        @Override
+        protected void onRenamedCommand(NightbotCommand oldCmd, NightbotCommand newCmd) {
+            announcedRenamedCommands.add(new EditedNightbotCommand(oldCmd, newCmd));
+        }
+
+        @Override
+        protected void onChangeDigest(List<CommandListDiff.Change> changes) {
+            announcedDigests.add(changes);
+        }
+
         public void clearAnnouncements() {
             announcedNewCommands.clear();
             announcedDeletedCommands.clear();
             announcedEditedCommands.clear();
+            announcedRenamedCommands.clear();
+            announcedNewCommandEditors.clear();
+            announcedDigests.clear();
         }
     }
 
@@ -71,11 +92,11 @@ public class MockCommandChangelogService extends CommandChangelogService {
     }
 
     public void setLastTwitchCommandEditor(String command, String editor) {
-        lastTwitchCommandEditors.put(command, editor);
+        commandEditors.record(command, editor);
     }
 
     public void clearLastTwitchCommandEditors() {
-        lastTwitchCommandEditors.clear();
+        commandEditors.clear();
     }
 
 
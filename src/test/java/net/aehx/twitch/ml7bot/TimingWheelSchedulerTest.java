@@ -0,0 +1,105 @@
+package net.aehx.twitch.ml7bot;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelSchedulerTest {
+
+    private long now;
+    private List<String> fired;
+    private TimingWheelScheduler scheduler;
+
+    @BeforeEach
+    public void beforeEach() {
+        now = 1_000_000;
+        fired = new ArrayList<>();
+        scheduler = new TimingWheelScheduler(100, 8, MoreExecutors.newDirectExecutorService(), () -> now,
+                new MetricsService("test", false, null, 0), "test");
+    }
+
+    @Test
+    public void testFiresAtDeadlineNeverEarly() {
+        scheduler.schedule(() -> fired.add("a"), 250, TimeUnit.MILLISECONDS);
+        scheduler.schedule(() -> fired.add("b"), 0, TimeUnit.MILLISECONDS);
+
+        advanceTo(0);
+        assertEquals(1, fired.size());
+        assertEquals("b", fired.get(0));
+
+        advanceTo(249);
+        assertEquals(1, fired.size());
+
+        // Rounded up to the next tick
+        advanceTo(300);
+        assertEquals(2, fired.size());
+        assertEquals(0, scheduler.getPendingTimeouts());
+    }
+
+    @Test
+    public void testDeadlinesBeyondOneRound() {
+        // 8 buckets of 100ms, so these go around the wheel several times
+        scheduler.schedule(() -> fired.add("late"), 2_500, TimeUnit.MILLISECONDS);
+        scheduler.schedule(() -> fired.add("early"), 700, TimeUnit.MILLISECONDS);
+
+        advanceTo(700);
+        assertEquals(1, fired.size());
+        advanceTo(2_499);
+        assertEquals(1, fired.size());
+        advanceTo(2_500);
+        assertEquals("late", fired.get(1));
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheelScheduler.Timeout beforeTransfer = scheduler.schedule(() -> fired.add("a"), 500, TimeUnit.MILLISECONDS);
+        TimingWheelScheduler.Timeout inWheel = scheduler.schedule(() -> fired.add("b"), 500, TimeUnit.MILLISECONDS);
+        TimingWheelScheduler.Timeout fires = scheduler.schedule(() -> fired.add("c"), 500, TimeUnit.MILLISECONDS);
+
+        assertTrue(beforeTransfer.cancel());
+        advanceTo(100);
+        assertEquals(2, scheduler.getPendingTimeouts());
+
+        assertTrue(inWheel.cancel());
+        assertFalse(inWheel.cancel());
+        advanceTo(200);
+        assertEquals(1, scheduler.getPendingTimeouts());
+
+        advanceTo(500);
+        assertEquals(1, fired.size());
+        assertEquals("c", fired.get(0));
+        assertFalse(fires.cancel());
+    }
+
+    @Test
+    public void testFixedDelay() {
+        scheduler.scheduleWithFixedDelay(() -> fired.add("run"), 100, 1_000, TimeUnit.MILLISECONDS);
+
+        advanceTo(100);
+        assertEquals(1, fired.size());
+        advanceTo(1_000);
+        assertEquals(1, fired.size());
+        advanceTo(1_100);
+        assertEquals(2, fired.size());
+
+        scheduler.shutdown();
+        advanceTo(5_000);
+        assertEquals(2, fired.size());
+    }
+
+    private void advanceTo(long elapsed) {
+        // Tick by tick like the tick thread, so timers scheduled by tasks are picked up
+        while (now < 1_000_000 + elapsed) {
+            now = Math.min(now + 100, 1_000_000 + elapsed);
+            scheduler.advance(now);
+        }
+        scheduler.advance(now);
+    }
+}
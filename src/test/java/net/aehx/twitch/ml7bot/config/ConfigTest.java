@@ -0,0 +1,75 @@
+package net.aehx.twitch.ml7bot.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConfigTest {
+
+    @Test
+    public void testCommandChangelogChannels() throws Exception {
+        MockConfig config = new MockConfig();
+        config.getProperties().setProperty("commandchangelog.channels", " ML7Support : 123 ,otherchannel:456");
+        config.getProperties().setProperty("commandchangelog.ignoredcommands", "!Duo");
+        config.getProperties().setProperty("commandchangelog.channel.otherchannel.ignoredcommands", "!foo, !BAR");
+
+        List<CommandChangelogChannelConfig> channels = config.getCommandChangelogChannels();
+        assertEquals(2, channels.size());
+
+        assertEquals("ml7support", channels.get(0).getTwitchChannel());
+        assertEquals(123, channels.get(0).getDiscordChannelId());
+        assertEquals(Collections.singleton("!duo"), channels.get(0).getIgnoredCommands());
+
+        assertEquals("otherchannel", channels.get(1).getTwitchChannel());
+        assertEquals(456, channels.get(1).getDiscordChannelId());
+        assertEquals(new HashSet<>(Arrays.asList("!foo", "!bar")), channels.get(1).getIgnoredCommands());
+    }
+
+    @Test
+    public void testCommandChangelogChannelsInvalid() {
+        MockConfig config = new MockConfig();
+        config.getProperties().setProperty("commandchangelog.channels", "ml7support:123, ML7Support:456");
+        assertThrows(InvalidConfigException.class, config::getCommandChangelogChannels);
+
+        config.getProperties().setProperty("commandchangelog.channels", "ml7support");
+        assertThrows(InvalidConfigException.class, config::getCommandChangelogChannels);
+
+        config.getProperties().setProperty("commandchangelog.channels", "ml7support:abc");
+        assertThrows(InvalidConfigException.class, config::getCommandChangelogChannels);
+    }
+
+    @Test
+    public void testCommandChangelogLegacyChannel() throws Exception {
+        MockConfig config = new MockConfig();
+        config.getProperties().setProperty("commandchangelog.twitch.channel", "ML7Support");
+        config.getProperties().setProperty("commandchangelog.discord.channelid", "123");
+        config.getProperties().setProperty("commandchangelog.ignoredcommands", "!duo");
+
+        List<CommandChangelogChannelConfig> channels = config.getCommandChangelogChannels();
+        assertEquals(1, channels.size());
+        assertEquals("ml7support", channels.get(0).getTwitchChannel());
+        assertEquals(123, channels.get(0).getDiscordChannelId());
+        assertEquals(Collections.singleton("!duo"), channels.get(0).getIgnoredCommands());
+    }
+
+    @Test
+    public void testCommandChangelogChannelsIgnoreDefaultLocale() throws Exception {
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            // Turkish lower-cases I to a dotless ı
+            Locale.setDefault(new Locale("tr", "TR"));
+
+            MockConfig config = new MockConfig();
+            config.getProperties().setProperty("commandchangelog.channels", "ILLUMINATI:123");
+            assertEquals("illuminati", config.getCommandChangelogChannels().get(0).getTwitchChannel());
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+}
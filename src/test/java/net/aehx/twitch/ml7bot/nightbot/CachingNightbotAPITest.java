@@ -0,0 +1,182 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingNightbotAPITest {
+
+    private static final String COMMANDS_BODY = "{\"commands\": [{\"_id\": \"cmd1\", " +
+            "\"createdAt\": \"2022-02-02T17:33:22.000Z\", \"updatedAt\": \"2022-02-02T17:33:22.000Z\", " +
+            "\"name\": \"!test\", \"message\": \"Test\", \"userLevel\": \"everyone\", \"count\": 0, \"coolDown\": 30}]}";
+
+    private long now;
+    private ScriptedTransport transport;
+    private CachingNightbotAPI nightbot;
+
+    @BeforeEach
+    public void beforeEach() {
+        now = 1_000_000;
+        transport = new ScriptedTransport();
+        nightbot = new CachingNightbotAPI(transport, NightbotAPI.NIGHTBOT_API_URL, 60_000, 1000, 600_000,
+                new MetricsService("test", false, null, 0), () -> now);
+    }
+
+    @Test
+    public void testConcurrentFetchesShareOneRequest() throws Exception {
+        CompletableFuture<ScriptedResponse> response = new CompletableFuture<>();
+        transport.responses.add(response);
+
+        ConditionalFetchState state1 = new ConditionalFetchState();
+        ConditionalFetchState state2 = new ConditionalFetchState();
+        CompletableFuture<Map<String, NightbotCommand>> fetch1 = nightbot.fetchChannelCommandsIfChangedAsync("1", state1);
+        CompletableFuture<Map<String, NightbotCommand>> fetch2 = nightbot.fetchChannelCommandsIfChangedAsync("1", state2);
+
+        response.complete(ok(COMMANDS_BODY));
+
+        assertEquals(1, transport.requests);
+        assertEquals(1, fetch1.get().size());
+        assertSame(fetch1.get(), fetch2.get());
+
+        // Fresh list is reused, and unchanged for both callers
+        state1.commit();
+        assertNull(nightbot.fetchChannelCommandsIfChanged("1", state1));
+        assertEquals(1, transport.requests);
+    }
+
+    @Test
+    public void testUnchangedCommandsAreReused() throws Exception {
+        String counterCommand = "{\"_id\": \"cmd2\", \"createdAt\": \"2022-02-02T17:33:22.000Z\", " +
+                "\"updatedAt\": \"2022-02-02T17:33:22.000Z\", \"name\": \"!deaths\", \"message\": \"Deaths: $(count)\", " +
+                "\"userLevel\": \"moderator\", \"count\": %d, \"coolDown\": 5}";
+        String body1 = COMMANDS_BODY.replace("]}", ", " + String.format(counterCommand, 1) + "]}");
+        String body2 = COMMANDS_BODY.replace("]}", ", " + String.format(counterCommand, 2) + "]}");
+        transport.responses.add(CompletableFuture.completedFuture(ok(body1)));
+        transport.responses.add(CompletableFuture.completedFuture(ok(body2)));
+
+        Map<String, NightbotCommand> first = nightbot.fetchChannelCommands("1");
+        now += 5000;
+        Map<String, NightbotCommand> second = nightbot.fetchChannelCommands("1");
+
+        assertSame(first.get("!test"), second.get("!test"));
+        assertNotSame(first.get("!deaths"), second.get("!deaths"));
+        assertSame(first.get("!deaths").message, second.get("!deaths").message);
+        assertEquals(2, second.get("!deaths").count);
+        assertEquals(UserLevel.MODERATOR, second.get("!deaths").userLevel);
+    }
+
+    @Test
+    public void testServesLastGoodListDuringOutage() throws Exception {
+        transport.responses.add(CompletableFuture.completedFuture(ok(COMMANDS_BODY)));
+
+        ConditionalFetchState upToDate = new ConditionalFetchState();
+        assertEquals(1, nightbot.fetchChannelCommandsIfChanged("1", upToDate).size());
+        upToDate.commit();
+
+        now += 5000;
+        transport.responses.add(CompletableFuture.completedFuture(status(500)));
+        transport.responses.add(CompletableFuture.completedFuture(status(500)));
+
+        // Callers that already have the list see the error (and can back off) instead of an empty list
+        assertThrows(Exception.class, () -> nightbot.fetchChannelCommandsIfChanged("1", upToDate));
+
+        // New callers get the last good list
+        Map<String, NightbotCommand> stale = nightbot.fetchChannelCommands("1");
+        assertEquals(Collections.singleton("!test"), stale.keySet());
+        assertEquals(3, transport.requests);
+
+        // Too old to serve
+        now += 600_001;
+        transport.responses.add(CompletableFuture.completedFuture(status(500)));
+        assertThrows(Exception.class, () -> nightbot.fetchChannelCommands("1"));
+    }
+
+    @Test
+    public void testChannelLookupsAreCached() throws Exception {
+        transport.responses.add(CompletableFuture.completedFuture(ok("{\"channel\": {\"_id\": \"abc\"}}")));
+        assertEquals("abc", nightbot.fetchChannelByName("ml7support").id);
+        assertEquals("abc", nightbot.fetchChannelByName("ML7Support").id);
+        assertEquals(1, transport.requests);
+
+        now += 60_000;
+        transport.responses.add(CompletableFuture.completedFuture(ok("{\"channel\": {\"_id\": \"def\"}}")));
+        assertEquals("def", nightbot.fetchChannelByName("ml7support").id);
+        assertEquals(2, transport.requests);
+    }
+
+    @Test
+    public void testNewValidatorsWithSameBodyAreUnchanged() throws Exception {
+        NightbotAPI uncached = new NightbotAPI(transport, NightbotAPI.NIGHTBOT_API_URL);
+        transport.responses.add(CompletableFuture.completedFuture(ok(COMMANDS_BODY, "\"v1\"")));
+        transport.responses.add(CompletableFuture.completedFuture(ok(COMMANDS_BODY, "\"v2\"")));
+
+        ConditionalFetchState state = new ConditionalFetchState();
+        assertEquals(1, uncached.fetchChannelCommandsIfChanged("1", state).size());
+        state.commit();
+        assertEquals("\"v1\"", state.getEtag());
+
+        assertNull(uncached.fetchChannelCommandsIfChanged("1", state));
+    }
+
+    private static ScriptedResponse ok(String body) {
+        return new ScriptedResponse(new NightbotHttpResponse(200, "OK", Collections.emptyMap()), body);
+    }
+
+    private static ScriptedResponse ok(String body, String etag) {
+        return new ScriptedResponse(new NightbotHttpResponse(200, "OK", Collections.singletonMap("etag", etag)), body);
+    }
+
+    private static ScriptedResponse status(int status) {
+        return new ScriptedResponse(new NightbotHttpResponse(status, "Error", Collections.emptyMap()), "");
+    }
+
+
+    private static class ScriptedResponse {
+        final NightbotHttpResponse response;
+        final byte[] body;
+
+        ScriptedResponse(NightbotHttpResponse response, String body) {
+            this.response = response;
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class ScriptedTransport implements NightbotTransport {
+        final Deque<CompletableFuture<ScriptedResponse>> responses = new ArrayDeque<>();
+        int requests;
+
+        @Override
+        public synchronized <T> CompletableFuture<T> get(URL url, Map<String, String> headers,
+                                                         ResponseReader<T> reader) {
+            ++requests;
+            return responses.remove().thenApply(scripted -> {
+                try {
+                    return reader.read(scripted.response, new ByteArrayInputStream(scripted.body));
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return 1000;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
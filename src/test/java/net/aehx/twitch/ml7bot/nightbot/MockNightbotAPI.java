@@ -5,8 +5,8 @@ import org.json.JSONObject;
 
 public class MockNightbotAPI extends NightbotAPI {
 
-    private JSONObject channelCommandsResponse;
-    private JSONObject channelByNameResponse;
+    private volatile JSONObject channelCommandsResponse;
+    private volatile JSONObject channelByNameResponse;
 
     public MockNightbotAPI() {
         channelCommandsResponse = new JSONObject();
@@ -19,6 +19,11 @@ public class MockNightbotAPI extends NightbotAPI {
     }
 
 
+    @Override
+    protected boolean servesCommandsInProcess() {
+        return true;
+    }
+
     @Override
     protected JSONObject fetchChannelCommandsJson(String channelId) throws Exception {
         return channelCommandsResponse;
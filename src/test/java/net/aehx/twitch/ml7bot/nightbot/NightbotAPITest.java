@@ -0,0 +1,71 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NightbotAPITest {
+
+    private static final byte[] COMMANDS_BODY = ("{\"commands\": [{\"_id\": \"cmd1\", " +
+            "\"createdAt\": \"2022-02-02T17:33:22.000Z\", \"updatedAt\": \"2022-02-02T17:33:22.000Z\", " +
+            "\"name\": \"!test\", \"message\": \"Test\", \"userLevel\": \"everyone\", \"count\": 0, " +
+            "\"coolDown\": 30}]}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testUnchangedBodyIsNotDecoded() throws Exception {
+        ConditionalFetchState state = new ConditionalFetchState();
+        CountingInputStream first = new CountingInputStream(COMMANDS_BODY);
+        assertEquals(1, NightbotAPI.decodeIfChanged(first, "\"v1\"", null, state).size());
+        state.commit();
+
+        // Hashed, then read again by the decoder
+        assertEquals(2 * COMMANDS_BODY.length, first.bytesRead);
+
+        CountingInputStream second = new CountingInputStream(COMMANDS_BODY);
+        assertNull(NightbotAPI.decodeIfChanged(second, "\"v2\"", null, state));
+
+        // Only hashed
+        assertEquals(COMMANDS_BODY.length, second.bytesRead);
+    }
+
+    @Test
+    public void testUnchangedBodyKeepsNewValidators() throws Exception {
+        ConditionalFetchState state = new ConditionalFetchState();
+        NightbotAPI.decodeIfChanged(new ByteArrayInputStream(COMMANDS_BODY), "\"v1\"", "Tue, 01 Mar 2022", state);
+        state.commit();
+
+        assertNull(NightbotAPI.decodeIfChanged(new ByteArrayInputStream(COMMANDS_BODY), "\"v2\"",
+                "Wed, 02 Mar 2022", state));
+        assertEquals("\"v2\"", state.getEtag());
+        assertEquals("Wed, 02 Mar 2022", state.getLastModified());
+    }
+
+
+    private static class CountingInputStream extends ByteArrayInputStream {
+        int bytesRead;
+
+        CountingInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read() {
+            int b = super.read();
+            if (b != -1)
+                ++bytesRead;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            int read = super.read(b, off, len);
+            if (read > 0)
+                bytesRead += read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.aehx.twitch.ml7bot.nightbot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NightbotCommandsDecoderTest {
+
+    @Test
+    public void testDecodeMatchesJsonParsing() throws Exception {
+        JSONObject command1Obj = new JSONObject();
+        command1Obj.put("_id", "cmd1");
+        command1Obj.put("createdAt", "2022-02-02T17:33:22.000Z");
+        command1Obj.put("updatedAt", "2022-02-02T17:33:22.355Z");
+        command1Obj.put("name", "!test");
+        command1Obj.put("message", "Testing \"123\" \\ äöü 😀 $(urlfetch https://example.com/a?b=c)");
+        command1Obj.put("userLevel", "everyone");
+        command1Obj.put("count", 0);
+        command1Obj.put("coolDown", 30);
+        command1Obj.put("alias", JSONObject.NULL);
+        command1Obj.put("unused", new JSONObject().put("nested", new JSONArray().put("]}\"").put(1.5).put(true)));
+
+        JSONObject command2Obj = new JSONObject();
+        command2Obj.put("_id", "cmd2");
+        command2Obj.put("createdAt", "2022-02-02T17:33:22Z");
+        command2Obj.put("updatedAt", "2022-02-03T10:00:00.123456Z");
+        command2Obj.put("name", "!test2");
+        command2Obj.put("userLevel", "moderator");
+        command2Obj.put("alias", "!test3");
+        command2Obj.put("count", 10);
+        command2Obj.put("coolDown", 5);
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("_total", 2);
+        responseObj.put("status", 200);
+        responseObj.put("commands", new JSONArray().put(command1Obj).put(command2Obj));
+
+        Map<String, NightbotCommand> expected = NightbotAPI.parseChannelCommands(responseObj);
+        Map<String, NightbotCommand> actual = decode(responseObj.toString(2));
+
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String name : expected.keySet()) {
+            NightbotCommand e = expected.get(name);
+            NightbotCommand a = actual.get(name);
+            assertEquals(e.id, a.id);
+            assertEquals(e.createdAt, a.createdAt);
+            assertEquals(e.updatedAt, a.updatedAt);
+            assertEquals(e.name, a.name);
+            assertEquals(e.alias, a.alias);
+            assertEquals(e.message, a.message);
+            assertEquals(e.userLevel, a.userLevel);
+            assertEquals(e.otherLevel, a.otherLevel);
+            assertEquals(e.count, a.count);
+            assertEquals(e.coolDown, a.coolDown);
+        }
+    }
+
+    @Test
+    public void testKeepsUnknownUserLevel() throws Exception {
+        Map<String, NightbotCommand> commands = decode("{\"commands\": [{\"_id\": \"cmd1\", " +
+                "\"createdAt\": \"2022-02-02T17:33:22.000Z\", \"updatedAt\": \"2022-02-02T17:33:22.000Z\", " +
+                "\"name\": \"!test\", \"userLevel\": \"twitch_lead_moderator\", \"count\": 0, \"coolDown\": 30}]}");
+        NightbotCommand cmd = commands.get("!test");
+        assertEquals(UserLevel.UNKNOWN, cmd.userLevel);
+        assertEquals("twitch_lead_moderator", cmd.getUserLevelName());
+
+        NightbotCommand other = new NightbotCommand();
+        other.setUserLevel("twitch_lead_vip");
+        assertNotEquals(cmd.getContentFingerprint(), other.getContentFingerprint());
+        assertFalse(cmd.hasSameContentAs(other));
+
+        cmd.setUserLevel("moderator");
+        assertEquals(UserLevel.MODERATOR, cmd.userLevel);
+        assertNull(cmd.otherLevel);
+    }
+
+    @Test
+    public void testDecodeMalformed() {
+        assertThrows(IOException.class, () -> decode(""));
+        assertThrows(IOException.class, () -> decode("{}"));
+        assertThrows(IOException.class, () -> decode("{\"commands\": [{\"_id\": \"cmd1\"}]}"));
+        assertThrows(IOException.class, () -> decode("{\"commands\": [{\"_id\": \"cmd1\""));
+    }
+
+    @Test
+    public void testParseIsoMillis() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; ++i) {
+            Instant instant = Instant.ofEpochMilli((long) (random.nextDouble() * 4e12));
+            assertEquals(instant.toEpochMilli(), NightbotCommandsDecoder.parseIsoMillis(instant.toString()));
+        }
+
+        assertEquals(Instant.parse("2022-02-02T16:33:22.350Z").toEpochMilli(),
+                NightbotCommandsDecoder.parseIsoMillis("2022-02-02T17:33:22.35+01:00"));
+
+        assertThrows(IOException.class, () -> NightbotCommandsDecoder.parseIsoMillis("2022-02-02"));
+        assertThrows(IOException.class, () -> NightbotCommandsDecoder.parseIsoMillis("2022-13-02T17:33:22Z"));
+    }
+
+    private static Map<String, NightbotCommand> decode(String json) throws IOException {
+        return NightbotCommandsDecoder.decode(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,67 @@
+package net.aehx.twitch.ml7bot.replay;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatLogReplayTest {
+
+    private static final String CHAT_LOG =
+            "# recorded chat\n" +
+            "@badges=moderator/1;mod=1;tmi-sent-ts=1643823202000;user-id=1 :foo!foo@foo.tmi.twitch.tv " +
+                    "PRIVMSG #ml7support :!addcom !test Testing 123\n" +
+            ":tmi.twitch.tv PING\n" +
+            "1643823202500 @badges=;mod=0;user-id=2 :bar!bar@bar.tmi.twitch.tv PRIVMSG #ml7support :Hello world\n" +
+            "\n" +
+            "2022-03-01 12:00 @badges=;mod=0;user-id=2 :bar!bar@bar.tmi.twitch.tv PRIVMSG #ml7support :Dated\n" +
+            "@badges=;mod=0;tmi-sent-ts=1643823203000;user-id=3 :baz!baz@baz.tmi.twitch.tv " +
+                    "PRIVMSG #otherchannel :!addcom !nope not a mod\n";
+
+    @Test
+    public void testReadChatLog() throws Exception {
+        try (ChatLogReader reader = new ChatLogReader(
+                new ByteArrayInputStream(CHAT_LOG.getBytes(StandardCharsets.UTF_8)))) {
+            ChatLogEntry entry = reader.next();
+            assertNotNull(entry);
+            assertEquals(1643823202000L, entry.timestampMillis);
+            assertEquals("!addcom !test Testing 123", entry.event.getMessage());
+            assertEquals("ml7support", entry.event.getChannel().getName());
+
+            entry = reader.next();
+            assertNotNull(entry);
+            assertEquals(1643823202500L, entry.timestampMillis);
+            assertEquals("Hello world", entry.event.getMessage());
+
+            // The line with a date instead of millis is skipped
+            entry = reader.next();
+            assertNotNull(entry);
+            assertEquals("otherchannel", entry.event.getChannel().getName());
+
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testReplayGzipChatLog() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(CHAT_LOG.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ReplayReport report;
+        try (ChatLogReader reader = new ChatLogReader(new ByteArrayInputStream(compressed.toByteArray()))) {
+            report = new ChatLogReplay(0, 10).replay(reader);
+        }
+
+        assertEquals(3, report.messages);
+        // The moderator's !addcom is found by the update run at the end of the replay
+        assertEquals(1, report.announcements);
+        assertTrue(report.getLatencyPercentileNanos(50) <= report.getLatencyPercentileNanos(100));
+        assertTrue(report.getMessagesPerSecond() > 0);
+    }
+}
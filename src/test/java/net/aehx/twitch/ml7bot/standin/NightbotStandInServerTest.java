@@ -0,0 +1,71 @@
+package net.aehx.twitch.ml7bot.standin;
+
+import net.aehx.twitch.ml7bot.nightbot.ConditionalFetchState;
+import net.aehx.twitch.ml7bot.nightbot.NightbotAPI;
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import net.aehx.twitch.ml7bot.nightbot.NightbotHttpException;
+import net.aehx.twitch.ml7bot.nightbot.UrlConnectionTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NightbotStandInServerTest {
+
+    private NightbotStandInServer server;
+    private NightbotAPI nightbot;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        server = new NightbotStandInServer(0);
+        server.start();
+        nightbot = new NightbotAPI(new UrlConnectionTransport(2, 2000, 2000), server.getApiUrl());
+    }
+
+    @AfterEach
+    public void afterEach() {
+        nightbot.close();
+        server.stop();
+    }
+
+    @Test
+    public void testServesChangedCommandsOnly() throws Exception {
+        final String id = server.addChannel("ML7Support", 3);
+        assertEquals(id, nightbot.fetchChannelByName("ml7support").id);
+
+        final ConditionalFetchState state = new ConditionalFetchState();
+        assertEquals(3, nightbot.fetchChannelCommandsIfChanged(id, state).size());
+        state.commit();
+
+        assertNull(nightbot.fetchChannelCommandsIfChanged(id, state));
+        assertEquals(1, server.getStats().notModified.get());
+
+        server.setCommand("ml7support", "!synthetic1", "Edited");
+        server.deleteCommand("ml7support", "!synthetic2");
+        Map<String, NightbotCommand> commands = nightbot.fetchChannelCommandsIfChanged(id, state);
+        assertEquals(2, commands.size());
+        assertEquals("Edited", commands.get("!synthetic1").message);
+    }
+
+    @Test
+    public void testInjectedErrors() throws Exception {
+        final String id = server.addChannel("ml7support", 1);
+
+        server.setErrorProbabilities(1, 0, 0);
+        NightbotHttpException e = (NightbotHttpException)
+                assertThrows(Exception.class, () -> nightbot.fetchChannelCommands(id)).getCause();
+        assertTrue(e.isRateLimited());
+        assertTrue(e.getRetryAfterMillis() > 0);
+
+        server.setErrorProbabilities(0, 1, 0);
+        e = (NightbotHttpException) assertThrows(Exception.class, () -> nightbot.fetchChannelCommands(id)).getCause();
+        assertTrue(e.isServerError());
+
+        server.setErrorProbabilities(0, 0, 0);
+        assertEquals(1, nightbot.fetchChannelCommands(id).size());
+        assertEquals(3, server.getStats().requests.get());
+    }
+}
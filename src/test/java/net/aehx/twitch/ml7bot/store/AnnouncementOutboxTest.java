@@ -0,0 +1,75 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AnnouncementOutboxTest {
+
+    private Path dir;
+    private AnnouncementOutbox outbox;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        dir = Files.createTempDirectory("outbox");
+        outbox = new AnnouncementOutbox(dir, new MetricsService("test", false, null, 0));
+    }
+
+    @Test
+    public void testPendingSurviveRestart() throws Exception {
+        List<AnnouncementOutbox.Entry> entries = outbox.add(1, Arrays.asList("first", "second"));
+        outbox.add(2, Collections.singletonList("third"));
+        outbox.acknowledge(entries.get(0));
+
+        List<AnnouncementOutbox.Entry> pending = reopen().getPending();
+        assertEquals(2, pending.size());
+        assertEquals("second", pending.get(0).message);
+        assertEquals(1, pending.get(0).discordChannelId);
+        assertEquals("third", pending.get(1).message);
+        assertEquals(2, pending.get(1).discordChannelId);
+    }
+
+    @Test
+    public void testIgnoresTornRecord() throws Exception {
+        outbox.add(1, Collections.singletonList("intact"));
+        outbox.add(1, Collections.singletonList("torn"));
+
+        Path file = dir.resolve("announcements.outbox");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3), StandardOpenOption.TRUNCATE_EXISTING);
+
+        // Rewritten without the torn record, so later records can be read again
+        AnnouncementOutbox reopened = reopen();
+        reopened.add(1, Collections.singletonList("after"));
+
+        List<AnnouncementOutbox.Entry> pending = reopen().getPending();
+        assertEquals(2, pending.size());
+        assertEquals("intact", pending.get(0).message);
+        assertEquals("after", pending.get(1).message);
+    }
+
+    @Test
+    public void testCompacts() throws Exception {
+        for (int i = 0; i < AnnouncementOutbox.COMPACT_AFTER_RECORDS; ++i)
+            outbox.acknowledge(outbox.add(1, Collections.singletonList("message " + i)).get(0));
+        outbox.add(1, Collections.singletonList("pending"));
+
+        assertTrue(Files.size(dir.resolve("announcements.outbox")) < 1024);
+        List<AnnouncementOutbox.Entry> pending = reopen().getPending();
+        assertEquals(1, pending.size());
+        assertEquals("pending", pending.get(0).message);
+    }
+
+    private AnnouncementOutbox reopen() throws Exception {
+        return new AnnouncementOutbox(dir, new MetricsService("test", false, null, 0));
+    }
+}
@@ -0,0 +1,138 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import net.aehx.twitch.ml7bot.nightbot.UserLevel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandHistoryStoreTest {
+
+    private static final long JAN = Instant.parse("2024-01-10T12:00:00Z").toEpochMilli();
+    private static final long FEB = Instant.parse("2024-02-10T12:00:00Z").toEpochMilli();
+    private static final long MAR = Instant.parse("2024-03-10T12:00:00Z").toEpochMilli();
+
+    private Path dir;
+    private long now;
+    private CommandHistoryStore store;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        dir = Files.createTempDirectory("history");
+        now = JAN;
+        store = createStore();
+    }
+
+    @Test
+    public void testRevisionAtTime() throws Exception {
+        store.record("ml7support", Collections.singletonList(
+                revision(CommandRevision.Type.NEW, JAN, "mod1", null, "cmd1", "!socials", "twitter")));
+        now = FEB;
+        store.record("ml7support", Collections.singletonList(
+                revision(CommandRevision.Type.EDITED, FEB, "Mod2", null, "cmd1", "!socials", "twitter + insta")));
+        now = MAR;
+        store.record("ml7support", Arrays.asList(
+                revision(CommandRevision.Type.RENAMED, MAR, "mod1", "!socials", "cmd1", "!links", "twitter + insta"),
+                revision(CommandRevision.Type.NEW, MAR + 1, null, null, "cmd2", "!socials", "see !links")));
+
+        store = createStore();
+        assertNull(store.getRevisionAt("ml7support", "!socials", JAN - 1));
+        assertEquals("twitter", store.getRevisionAt("ml7support", "!socials", JAN).command.message);
+        assertEquals("twitter + insta", store.getRevisionAt("ML7Support", "!socials", FEB + 1000).command.message);
+        assertNull(store.getRevisionAt("ml7support", "!socials", MAR));
+        assertEquals("see !links", store.getRevisionAt("ml7support", "!socials", MAR + 1).command.message);
+        assertEquals("!socials", store.getRevisionAt("ml7support", "!links", MAR).previousName);
+
+        assertEquals(3, store.getRevisions("ml7support", "cmd1").size());
+    }
+
+    @Test
+    public void testEditsByEditor() throws Exception {
+        store.record("ml7support", Arrays.asList(
+                revision(CommandRevision.Type.NEW, JAN, "mod1", null, "cmd1", "!a", "a"),
+                revision(CommandRevision.Type.NEW, FEB, "mod2", null, "cmd2", "!b", "b"),
+                revision(CommandRevision.Type.DELETED, MAR, "Mod1", null, "cmd1", "!a", "a")));
+
+        List<CommandRevision> edits = store.getEditsBy("ml7support", "MOD1", Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(2, edits.size());
+        assertEquals(CommandRevision.Type.NEW, edits.get(0).type);
+        assertEquals(CommandRevision.Type.DELETED, edits.get(1).type);
+
+        assertEquals(1, store.getEditsBy("ml7support", "mod1", JAN + 1, MAR).size());
+        assertTrue(store.getEditsBy("ml7support", "mod1", JAN + 1, MAR - 1).isEmpty());
+    }
+
+    @Test
+    public void testBaselineOnlyRecordsChangedCommands() throws Exception {
+        store.record("ml7support", Collections.singletonList(
+                revision(CommandRevision.Type.NEW, JAN, "mod1", null, "cmd1", "!a", "a")));
+
+        store.recordBaseline("ml7support", Arrays.asList(
+                command("cmd1", "!a", "a", JAN), command("cmd2", "!b", "b", JAN)));
+        store.recordBaseline("ml7support", Arrays.asList(
+                command("cmd1", "!a", "changed", FEB), command("cmd2", "!b", "b", JAN)));
+
+        List<CommandRevision> revisions = store.getRevisions("ml7support", "cmd1");
+        assertEquals(2, revisions.size());
+        assertEquals(CommandRevision.Type.BASELINE, revisions.get(1).type);
+        assertEquals("changed", revisions.get(1).command.message);
+        assertEquals(1, store.getRevisions("ml7support", "cmd2").size());
+    }
+
+    @Test
+    public void testCompactionKeepsHistory() throws Exception {
+        store.record("ml7support", Collections.singletonList(
+                revision(CommandRevision.Type.NEW, JAN, "mod1", null, "cmd1", "!a", "first")));
+        store.record("ml7support", Collections.singletonList(
+                revision(CommandRevision.Type.BASELINE, JAN + 1, null, null, "cmd1", "!a", "first")));
+        now = FEB;
+        store.record("ml7support", Collections.singletonList(
+                revision(CommandRevision.Type.EDITED, FEB, "mod2", null, "cmd1", "!a", "second")));
+
+        store.compact();
+        assertTrue(Files.exists(dir.resolve("ml7support").resolve("2024-01.clog")));
+        assertFalse(Files.exists(dir.resolve("ml7support").resolve("2024-01.log")));
+        assertTrue(Files.exists(dir.resolve("ml7support").resolve("2024-02.log")));
+
+        store = createStore();
+        assertEquals(2, store.getRevisions("ml7support", "cmd1").size());
+        assertEquals("first", store.getRevisionAt("ml7support", "!a", JAN + 1).command.message);
+        assertEquals("second", store.getRevisionAt("ml7support", "!a", FEB).command.message);
+
+        StringWriter out = new StringWriter();
+        store.export("ml7support", JAN, JAN, out);
+        assertEquals(1, out.toString().split("\n").length);
+        assertTrue(out.toString().contains("\"editor\":\"mod1\""));
+    }
+
+    private CommandHistoryStore createStore() throws Exception {
+        return new CommandHistoryStore(dir, new MetricsService("test", false, null, 0), () -> now);
+    }
+
+    private CommandRevision revision(CommandRevision.Type type, long validFrom, String editor, String previousName,
+                                     String id, String name, String message) {
+        return new CommandRevision(type, validFrom, now, editor, previousName, command(id, name, message, validFrom));
+    }
+
+    private static NightbotCommand command(String id, String name, String message, long updatedAt) {
+        NightbotCommand cmd = new NightbotCommand();
+        cmd.id = id;
+        cmd.name = name;
+        cmd.message = message;
+        cmd.alias = "";
+        cmd.userLevel = UserLevel.EVERYONE;
+        cmd.coolDown = 30;
+        cmd.updatedAt = updatedAt;
+        return cmd;
+    }
+}
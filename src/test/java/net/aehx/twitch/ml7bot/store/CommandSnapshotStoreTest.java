@@ -0,0 +1,112 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.CommandSnapshot;
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import net.aehx.twitch.ml7bot.nightbot.NightbotCommand;
+import net.aehx.twitch.ml7bot.nightbot.UserLevel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandSnapshotStoreTest {
+
+    private Path dir;
+    private CommandSnapshotStore store;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        dir = Files.createTempDirectory("snapshots");
+        store = new CommandSnapshotStore(dir, new MetricsService("test", false, null, 0));
+    }
+
+    @Test
+    public void testLoadsLatestSnapshot() throws Exception {
+        assertNull(store.load("ml7support"));
+
+        store.save("ml7support", "channel1", createSnapshot("First"));
+        store.save("ml7support", "channel1", createSnapshot("Second"));
+
+        CommandSnapshotStore.StoredSnapshot stored =
+                new CommandSnapshotStore(dir, new MetricsService("test", false, null, 0)).load("ML7Support");
+        assertEquals("channel1", stored.nightbotChannelId);
+        assertEquals(2, stored.commands.size());
+
+        NightbotCommand cmd = stored.commands.getById("cmd1");
+        assertEquals("!test", cmd.name);
+        assertEquals("Second", cmd.message);
+        assertEquals("", cmd.alias);
+        assertNull(stored.commands.getByName("!other").alias);
+        assertEquals("twitch_lead_moderator", stored.commands.getByName("!other").getUserLevelName());
+        assertEquals(1643882400355L, cmd.updatedAt);
+        assertEquals(30, cmd.coolDown);
+    }
+
+    @Test
+    public void testIgnoresTornRecord() throws Exception {
+        store.save("ml7support", "channel1", createSnapshot("Intact"));
+        Path file = dir.resolve("ml7support.snapshots");
+        long intactSize = Files.size(file);
+
+        store.save("ml7support", "channel1", createSnapshot("Torn"));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10), StandardOpenOption.TRUNCATE_EXISTING);
+
+        assertEquals("Intact", store.load("ml7support").commands.getById("cmd1").message);
+
+        // Saving after a corrupt record starts over, so the new record is readable
+        store.save("ml7support", "channel1", createSnapshot("Second"));
+        assertEquals(intactSize, Files.size(file));
+        assertEquals("Second", store.load("ml7support").commands.getById("cmd1").message);
+    }
+
+    @Test
+    public void testCompacts() throws Exception {
+        Path file = dir.resolve("ml7support.snapshots");
+
+        store.save("ml7support", "channel1", createSnapshot("Message"));
+        long recordSize = Files.size(file);
+
+        for (int i = 1; i < CommandSnapshotStore.MAX_RECORDS_PER_FILE; ++i)
+            store.save("ml7support", "channel1", createSnapshot("Message"));
+        assertEquals(CommandSnapshotStore.MAX_RECORDS_PER_FILE * recordSize, Files.size(file));
+
+        // Full file is rewritten with only the new record
+        store.save("ml7support", "channel1", createSnapshot("Message"));
+        store.save("ml7support", "channel1", createSnapshot("Latest"));
+        assertEquals(2 * recordSize - "Message".length() + "Latest".length(), Files.size(file));
+        assertEquals("Latest", store.load("ml7support").commands.getById("cmd1").message);
+    }
+
+    private static CommandSnapshot createSnapshot(String message) {
+        Map<String, NightbotCommand> commands = new HashMap<>();
+
+        NightbotCommand cmd = new NightbotCommand();
+        cmd.id = "cmd1";
+        cmd.name = "!test";
+        cmd.alias = "";
+        cmd.message = message;
+        cmd.userLevel = UserLevel.EVERYONE;
+        cmd.createdAt = 1643823202000L;
+        cmd.updatedAt = 1643882400355L;
+        cmd.count = 3;
+        cmd.coolDown = 30;
+        commands.put(cmd.name, cmd);
+
+        NightbotCommand other = new NightbotCommand();
+        other.id = "cmd2";
+        other.name = "!other";
+        other.message = "Ünïcödé 😀";
+        other.setUserLevel("twitch_lead_moderator");
+        commands.put(other.name, other);
+
+        return new CommandSnapshot(commands);
+    }
+}
@@ -0,0 +1,54 @@
+package net.aehx.twitch.ml7bot.store;
+
+import net.aehx.twitch.ml7bot.metrics.MetricsService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ModMailThreadStoreTest {
+
+    private Path dir;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        dir = Files.createTempDirectory("modmail");
+    }
+
+    @Test
+    public void testThreadsSurviveRestart() throws Exception {
+        ModMailThreadStore store = open(10);
+        store.add(100, 1);
+        store.add(200, 2);
+
+        ModMailThreadStore reopened = open(10);
+        assertEquals(1, reopened.getUserId(100));
+        assertEquals(2, reopened.getUserId(200));
+        assertEquals(-1, reopened.getUserId(300));
+    }
+
+    @Test
+    public void testKeepsLatestThreads() throws Exception {
+        final int maxThreads = 3;
+        ModMailThreadStore store = open(maxThreads);
+        final int threads = maxThreads + ModMailThreadStore.COMPACT_AFTER_RECORDS + 10;
+        for (int i = 1; i <= threads; ++i)
+            store.add(i, i * 10);
+
+        assertEquals(maxThreads, store.size());
+        assertEquals(-1, store.getUserId(threads - maxThreads));
+        assertEquals(threads * 10, store.getUserId(threads));
+
+        // Compacted to the latest threads
+        ModMailThreadStore reopened = open(maxThreads);
+        assertEquals(maxThreads, reopened.size());
+        assertEquals((threads - maxThreads + 1) * 10, reopened.getUserId(threads - maxThreads + 1));
+    }
+
+    private ModMailThreadStore open(int maxThreads) throws Exception {
+        return new ModMailThreadStore(dir, maxThreads, new MetricsService("test", false, null, 0));
+    }
+}